@@ -0,0 +1,113 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.common.network;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import com.lttldrgn.portochat.common.protocol.ProtoMessage;
+import com.lttldrgn.portochat.common.protocol.ProtoUtil;
+
+/**
+ * Queues a chat message for every member of a channel and takes it off the
+ * queues again, writing it to each socket separately or broadcasting it.
+ * Nothing is written to the sockets, so this is only the cost of encoding
+ * and queueing. Run with -prof gc for the allocation per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"100", "2000", "10000"})
+    private int members;
+
+    private QueueingHandler connection;
+    private List<Socket> sockets;
+    private List<OutboundQueue> queues;
+    private ProtoMessage message;
+
+    @Setup
+    public void setUp() {
+        connection = new QueueingHandler();
+        connection.setOutboundBudget(new OutboundBudget(Integer.MAX_VALUE,
+                Long.MAX_VALUE, EnumSet.noneOf(SlowConsumerPolicy.class)));
+        sockets = new ArrayList<>(members);
+        queues = new ArrayList<>(members);
+        for (int i = 0; i < members; i++) {
+            Socket socket = new Socket();
+            sockets.add(socket);
+            queues.add(connection.addOutboundQueue(socket));
+        }
+        message = new ProtoMessage(ProtoUtil.createChatMessage("user-1234", "#lobby", true,
+                "The quick brown fox jumps over the lazy dog, a chat line of about 100 bytes", false));
+    }
+
+    @Benchmark
+    public void writeToEach(Blackhole blackhole) {
+        for (Socket socket : sockets) {
+            connection.writeData(socket, message);
+        }
+        drain(blackhole);
+    }
+
+    @Benchmark
+    public void broadcast(Blackhole blackhole) {
+        connection.broadcastData(sockets, message);
+        drain(blackhole);
+    }
+
+    private void drain(Blackhole blackhole) {
+        for (OutboundQueue queue : queues) {
+            ConnectionHandler.NetData netData;
+            while ((netData = queue.poll()) != null) {
+                blackhole.consume(netData.data);
+            }
+        }
+    }
+
+    /**
+     * Leaves the queued data for the benchmark to take
+     */
+    private static class QueueingHandler extends ConnectionHandler {
+
+        QueueingHandler() {
+            super("Benchmark");
+        }
+
+        @Override
+        protected void scheduleDrain(OutboundQueue queue) {
+        }
+    }
+}
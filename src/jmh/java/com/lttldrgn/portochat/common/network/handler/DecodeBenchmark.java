@@ -0,0 +1,118 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.common.network.handler;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.lttldrgn.portochat.common.encryption.CipherMode;
+import com.lttldrgn.portochat.common.encryption.EncryptionManager;
+import com.lttldrgn.portochat.common.encryption.SessionCipher;
+import com.lttldrgn.portochat.common.network.BufferPool;
+import com.lttldrgn.portochat.common.protocol.DefaultData;
+import com.lttldrgn.portochat.common.protocol.ProtoMessage;
+import com.lttldrgn.portochat.common.protocol.ProtoUtil;
+import com.lttldrgn.portochat.common.protocol.WireFormat;
+
+/**
+ * Decodes a chat message frame the way a client's reader thread does, from
+ * the pooled buffer it was read into to the parsed ProtoMessage. Run with
+ * -prof gc for the allocation per message.
+ *
+ * Encrypted frames use AES-CBC, as GCM rejects a message it has already
+ * decrypted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    @Param({"V1", "V2"})
+    private WireFormat wireFormat;
+
+    @Param({"false", "true"})
+    private boolean encrypted;
+
+    private final EncryptionManager encryptionManager = EncryptionManager.getInstance();
+    private final BufferPool bufferPool = BufferPool.getInstance();
+    private ChatHandler chatHandler;
+    private byte[] frame;
+
+    @Setup
+    public void setUp() {
+        ProtoMessage message = new ProtoMessage(ProtoUtil.createChatMessage(
+                "8c2f1d6e-7b4a-4c1e-9a53-2f7d9b1e4a10", "#general", true,
+                "hello there, this is a chat message in the benchmark", false));
+        message.populate();
+        byte[] data = message.toByteArray(wireFormat);
+        ByteBuffer output;
+        SessionCipher clientCipher = null;
+        if (encrypted) {
+            SecretKey secretKey = encryptionManager.generateServerSecretKey();
+            SessionCipher serverCipher = encryptionManager.createSessionCipher(
+                    secretKey, CipherMode.AES_CBC, true);
+            clientCipher = encryptionManager.createSessionCipher(
+                    secretKey, CipherMode.AES_CBC, false);
+            output = ByteBuffer.allocate(
+                    1 + serverCipher.getEncryptedLength(data.length, wireFormat));
+            output.put((byte) 1);
+            serverCipher.encrypt(ByteBuffer.wrap(data), output, wireFormat);
+        } else {
+            output = ByteBuffer.allocate(1 + data.length);
+            output.put((byte) 0);
+            output.put(data);
+        }
+        frame = new byte[output.position()];
+        System.arraycopy(output.array(), 0, frame, 0, frame.length);
+        encryptionManager.setServerCipher(clientCipher);
+        chatHandler = new ChatHandler();
+    }
+
+    @TearDown
+    public void tearDown() {
+        encryptionManager.setServerCipher(null);
+    }
+
+    @Benchmark
+    public List<DefaultData> decode() {
+        // As read from the socket
+        ByteBuffer buffer = bufferPool.acquire(frame.length);
+        System.arraycopy(frame, 0, buffer.array(), buffer.arrayOffset(), frame.length);
+        try {
+            chatHandler.processIncoming(null, buffer, wireFormat);
+            return chatHandler.getListenerData();
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.common.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.lttldrgn.portochat.proto.Portochat;
+
+/**
+ * The server's work per chat message: decoding it, reading where it goes
+ * and encoding the frame passed on. Relaying passes the received bytes on,
+ * rebuilding parses the whole message and builds a new one as the server
+ * used to. Run with -prof gc for the allocation per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelayBenchmark {
+
+    private static final String SENDER = "alice";
+
+    @Param({"60", "1000"})
+    private int textLength;
+
+    private final ProtocolHandler protocolHandler = ProtocolHandler.getInstance();
+    private byte[] received;
+
+    @Setup
+    public void setUp() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < textLength) {
+            text.append("hello there, this is chat text. ");
+        }
+        ProtoMessage message = new ProtoMessage(ProtoUtil.createChatMessage(SENDER,
+                "#general", true, text.substring(0, textLength), false));
+        message.populate();
+        received = message.toByteArray(WireFormat.V2);
+    }
+
+    private ProtoMessage decode() {
+        return (ProtoMessage) protocolHandler.processData(
+                ByteBuffer.wrap(received), WireFormat.V2).get(0);
+    }
+
+    @Benchmark
+    public byte[] relay() {
+        ProtoMessage message = decode();
+        message.getChatDestinationId();
+        ProtoMessage relay = message.createRelay(SENDER);
+        relay.populate();
+        return relay.toFrame(WireFormat.V2);
+    }
+
+    @Benchmark
+    public byte[] rebuild() {
+        Portochat.ChatMessage chatMessage = decode().getMessage().getChatMessage();
+        ProtoMessage rebuilt = new ProtoMessage(ProtoUtil.createChatMessage(SENDER,
+                chatMessage.getDestinationId(), chatMessage.getIsChannel(),
+                chatMessage.getMessage(), chatMessage.getIsAction()));
+        rebuilt.populate();
+        return rebuilt.toFrame(WireFormat.V2);
+    }
+}
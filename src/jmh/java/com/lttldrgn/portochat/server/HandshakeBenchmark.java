@@ -0,0 +1,142 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.server;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.lttldrgn.portochat.common.User;
+import com.lttldrgn.portochat.common.encryption.CipherMode;
+import com.lttldrgn.portochat.common.encryption.EncryptionManager;
+import com.lttldrgn.portochat.common.encryption.KeyExchange;
+import com.lttldrgn.portochat.proto.Portochat.SessionTicket;
+
+/**
+ * The CPU each way of starting a session costs: the server's half of an RSA
+ * exchange, of a Diffie-Hellman exchange and of resuming a session from a
+ * ticket, and the RSA key pair a client generates before its first RSA
+ * exchange.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+
+    private final EncryptionManager encryptionManager = EncryptionManager.getInstance();
+    private final SessionTickets sessionTickets = new SessionTickets(60 * 1000);
+    private byte[] rsaPublicKey;
+    private byte[] x25519Share;
+    private byte[] p256Share;
+    private Session session;
+    private byte[] clientNonce;
+    private byte[] binder;
+
+    @Setup
+    public void setUp() {
+        rsaPublicKey = encryptionManager.getClientEncodedPublicKey();
+        x25519Share = encryptionManager.generateKeyShare(KeyExchange.X25519)
+                .getPublic().getEncoded();
+        p256Share = encryptionManager.generateKeyShare(KeyExchange.ECDH_P256)
+                .getPublic().getEncoded();
+
+        User user = new User();
+        user.setId("1");
+        user.setName("alice");
+        session = new Session(null, user);
+        SecretKey secretKey = encryptionManager.generateServerSecretKey();
+        session.setSessionCipher(encryptionManager.createSessionCipher(
+                secretKey, CipherMode.AES_GCM, true));
+        clientNonce = encryptionManager.generateNonce();
+        binder = encryptionManager.createResumeBinder(secretKey, clientNonce);
+    }
+
+    /**
+     * What SetUserPublicKey costs the server
+     */
+    @Benchmark
+    public byte[] serverRsa() {
+        PublicKey clientPublicKey = encryptionManager.getClientPublicKey(rsaPublicKey);
+        SecretKey secretKey = encryptionManager.generateServerSecretKey();
+        return encryptionManager.encryptSecretKeyWithPublicKey(secretKey, clientPublicKey);
+    }
+
+    private SecretKey serverKeyShare(KeyExchange keyExchange, byte[] clientShare) {
+        KeyPair keyShare = encryptionManager.generateKeyShare(keyExchange);
+        return encryptionManager.deriveSharedKey(keyExchange, keyShare.getPrivate(),
+                clientShare, keyShare.getPublic().getEncoded(), true);
+    }
+
+    /**
+     * What SetUserKeyShare costs the server with X25519
+     */
+    @Benchmark
+    public SecretKey serverX25519() {
+        return serverKeyShare(KeyExchange.X25519, x25519Share);
+    }
+
+    /**
+     * What SetUserKeyShare costs the server with P-256
+     */
+    @Benchmark
+    public SecretKey serverP256() {
+        return serverKeyShare(KeyExchange.ECDH_P256, p256Share);
+    }
+
+    /**
+     * What ResumeSession costs the server, including the ticket it issues
+     * and opens, since tickets can only be used once
+     */
+    @Benchmark
+    public SecretKey serverResume() {
+        byte[] ticket = sessionTickets.seal(session, Collections.emptyList());
+        SessionTicket opened = sessionTickets.open(ticket);
+        SecretKey ticketKey = new SecretKeySpec(opened.getSecretKey().toByteArray(), "AES");
+        if (!encryptionManager.verifyResumeBinder(ticketKey, clientNonce, binder)) {
+            throw new IllegalStateException("Binder doesn't match");
+        }
+        return encryptionManager.deriveResumedKey(ticketKey, clientNonce,
+                encryptionManager.generateNonce());
+    }
+
+    /**
+     * The key pair a client generates before its first RSA exchange
+     */
+    @Benchmark
+    public KeyPair clientRsaKeyPair() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+}
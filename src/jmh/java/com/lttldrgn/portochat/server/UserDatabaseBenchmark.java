@@ -0,0 +1,129 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.server;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looks users up in a UserDatabase holding many registered users, as a
+ * direct message or a name check does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserDatabaseBenchmark {
+
+    /** How many looked up names and ids are cycled through */
+    private static final int LOOKUPS = 4096;
+
+    @Param({"100000"})
+    private int users;
+
+    private UserDatabase userDatabase;
+    private Session[] sessions;
+    private String[] ids;
+    private String[] names;
+    private int next = 0;
+    private int renames = 0;
+
+    @Setup
+    public void setUp() {
+        // A line per registered user would drown the results
+        Logger.getLogger(UserDatabase.class.getName()).setLevel(Level.WARNING);
+        userDatabase = UserDatabase.getInstance();
+        sessions = new Session[users];
+        for (int i = 0; i < users; i++) {
+            sessions[i] = userDatabase.addConnection(new LocalSocket());
+            userDatabase.addUser("user" + i, sessions[i]);
+        }
+        Random random = new Random(1);
+        ids = new String[LOOKUPS];
+        names = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            ids[i] = sessions[random.nextInt(users)].getUser().getId();
+            // Half the names asked about are taken
+            names[i] = "USER" + random.nextInt(2 * users);
+        }
+    }
+
+    private int nextLookup() {
+        next = (next + 1) & (LOOKUPS - 1);
+        return next;
+    }
+
+    @Benchmark
+    public Session getSessionByUserId() {
+        return userDatabase.getSessionByUserId(ids[nextLookup()]);
+    }
+
+    @Benchmark
+    public Session getSessionByUserName() {
+        return userDatabase.getSessionByUserName(names[nextLookup()]);
+    }
+
+    @Benchmark
+    public boolean userNameInUse() {
+        return userDatabase.userNameInUse(names[nextLookup()]);
+    }
+
+    @Benchmark
+    public boolean renameUser() {
+        Session session = sessions[renames % users];
+        return userDatabase.renameUser(session, "renamed" + renames++);
+    }
+
+    /**
+     * An unconnected socket with an address, so no host name is looked up
+     */
+    private static class LocalSocket extends Socket {
+
+        private static final InetAddress ADDRESS;
+
+        static {
+            try {
+                ADDRESS = InetAddress.getByAddress("localhost", new byte[]{127, 0, 0, 1});
+            } catch (UnknownHostException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return ADDRESS;
+        }
+    }
+}
@@ -67,9 +67,17 @@ public class ChatPane extends JPanel implements PropertyChangeListener {
 
     private static final Logger logger =
             Logger.getLogger(ChatPane.class.getName());
+    /** How many participants to ask for at a time */
+    public static final int PARTICIPANT_PAGE_SIZE = 100;
+    /** How close to the end of the participant list the next page is asked for */
+    private static final int PARTICIPANT_PAGE_MARGIN = 20;
     private final ResourceBundle messages = ResourceBundle.getBundle("portochat/resource/MessagesBundle", java.util.Locale.getDefault());
     private DefaultListModel<String> participantListModel = null;
     private JList<String> participantList = null;
+    private JScrollPane participantScroll = null;
+    // Paging of the participant list, only used on the event dispatch thread
+    private String nextParticipantPage = "";
+    private boolean participantPageRequested = false;
     private JPopupMenu viewPaneRightClickMenu;
     private final JTextPane viewPane = new JTextPane();
     private final JTextArea textEntry = new JTextArea();
@@ -131,9 +139,12 @@ public class ChatPane extends JPanel implements PropertyChangeListener {
             });
             c.gridx = 1;
             c.weightx = 0.2;
-            JScrollPane participantScroll = new JScrollPane(participantList);
+            participantScroll = new JScrollPane(participantList);
             participantScroll.setPreferredSize(new Dimension(100, 300));
             participantScroll.setMinimumSize(new Dimension(100, 100));
+            // Large channels are listed a page at a time, as they are scrolled
+            participantScroll.getVerticalScrollBar().addAdjustmentListener(
+                    (e) -> requestParticipantPageIfNeeded());
             add(participantScroll, c);
             
             //set up gridwidth for next component
@@ -371,6 +382,10 @@ public class ChatPane extends JPanel implements PropertyChangeListener {
     public void setFocus() {
         textEntry.requestFocusInWindow();
         textEntry.selectAll();
+        if (isChannel) {
+            // Hidden lists aren't paged
+            requestParticipantPageIfNeeded();
+        }
     }
     /**
      * Creates a Chat Pane
@@ -439,6 +454,43 @@ public class ChatPane extends JPanel implements PropertyChangeListener {
         });
     }
 
+    /**
+     * Handles a batch of users joining and parting the channel, updating the
+     * participant list and the chat text once for all of them
+     * @param joined Users that joined the channel
+     * @param parted Users that left the channel
+     */
+    public void membershipChangedEvent(final List<User> joined, final List<User> parted) {
+        SwingUtilities.invokeLater(new Runnable() {
+
+            @Override
+            public void run() {
+                StringBuilder message = new StringBuilder();
+                String timestamp = Util.getTimestamp();
+                for (User user : joined) {
+                    if (!participantListModel.contains(user.getName())) {
+                        participantListModel.addElement(user.getName());
+                        message.append("<span class=\"joinpart\">")
+                                .append(timestamp).append(" ").append(user)
+                                .append(messages.getString("ChatPane.msg.HasJoinedTheChannel"))
+                                .append("</span><br>");
+                    }
+                }
+                for (User user : parted) {
+                    if (participantListModel.removeElement(user.getName())) {
+                        message.append("<span class=\"joinpart\">")
+                                .append(timestamp).append(" ").append(user)
+                                .append(messages.getString("ChatPane.msg.HasLeftTheChannel"))
+                                .append("</span><br>");
+                    }
+                }
+                if (message.length() > 0) {
+                    appendToChatText(message.toString());
+                }
+            }
+        });
+    }
+
     /**
      * Handles users who are disconnecting from the server while in the channel.
      * This will remove the user from the list.
@@ -462,6 +514,40 @@ public class ChatPane extends JPanel implements PropertyChangeListener {
         });
     }
 
+    /**
+     * Handles users in the channel changing their name.  If this is a chat
+     * with the user, messages are sent to the new name.  This update is
+     * thrown on the EDT.
+     * @param oldName The user's previous name
+     * @param user The user, with their new name
+     */
+    public void userRenamedEvent(final String oldName, final User user) {
+        SwingUtilities.invokeLater(new Runnable() {
+
+            @Override
+            public void run() {
+                boolean shown = false;
+                if (isChannel) {
+                    int index = participantListModel.indexOf(oldName);
+                    if (index >= 0) {
+                        participantListModel.set(index, user.getName());
+                        shown = true;
+                    }
+                } else if (oldName.equals(recipient)) {
+                    recipient = user.getName();
+                    shown = true;
+                }
+                if (shown) {
+                    String message = "<span class=\"joinpart\">" + 
+                            Util.getTimestamp() + " " + oldName +
+                            messages.getString("ChatPane.msg.IsNowKnownAs") +
+                            user.getName() + "</span><br>";
+                    appendToChatText(message);
+                }
+            }
+        });
+    }
+
     /**
      * Updates the pane with the received message.  This update is thrown on 
      * the EDT.
@@ -533,6 +619,49 @@ public class ChatPane extends JPanel implements PropertyChangeListener {
         }
     }
     
+    /**
+     * Adds a page of the participants to the channel's list, and notes where
+     * the next page starts
+     * @param participants Participants on the page
+     * @param nextPageToken Token of the next page, empty if this is the last
+     */
+    public void addParticipantPage(final List<User> participants,
+            final String nextPageToken) {
+        SwingUtilities.invokeLater(new Runnable() {
+
+            @Override
+            public void run() {
+                for (User user : participants) {
+                    if (!participantListModel.contains(user.getName())) {
+                        participantListModel.addElement(user.getName());
+                    }
+                }
+                nextParticipantPage = nextPageToken;
+                participantPageRequested = false;
+                // The page may not have filled the list, which is known
+                // once it's laid out again
+                SwingUtilities.invokeLater(() -> requestParticipantPageIfNeeded());
+            }
+        });
+    }
+
+    /**
+     * Asks for the next page of participants once the list is shown and
+     * scrolled near its end
+     */
+    private void requestParticipantPageIfNeeded() {
+        if (nextParticipantPage.isEmpty() || participantPageRequested
+                || !participantList.isShowing()) {
+            return;
+        }
+        int lastVisible = participantList.getLastVisibleIndex();
+        if (lastVisible < 0
+                || lastVisible >= participantListModel.getSize() - PARTICIPANT_PAGE_MARGIN) {
+            participantPageRequested = true;
+            serverConnectionProvider.requestChannelUserPage(recipient, nextParticipantPage);
+        }
+    }
+
     /**
      * This method should be called after a server disconnect to clean up any 
      * artifacts left from the disconnect.
@@ -541,6 +670,8 @@ public class ChatPane extends JPanel implements PropertyChangeListener {
         myUserName = serverConnectionProvider.getConnectedUsername();
         if (isChannel) {
             participantListModel.clear();
+            nextParticipantPage = "";
+            participantPageRequested = false;
         }
     }
 
@@ -35,6 +35,7 @@ import java.awt.event.WindowEvent;
 import java.awt.event.WindowFocusListener;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -424,7 +425,7 @@ public class Client extends JFrame implements ActionListener,
                 tabbedChatPane.indexOfComponent(pane), 
                 new ButtonTabComponent(tabbedChatPane, this));
             connection.joinChannel(channel);
-            connection.requestUsersInChannel(channel);
+            connection.requestUsersInChannelPage(channel, "", ChatPane.PARTICIPANT_PAGE_SIZE);
             updateCurrentView();
         }
         
@@ -474,6 +475,9 @@ public class Client extends JFrame implements ActionListener,
                     channelPaneMap.remove(name);
                 } else {
                     chatPaneMap.remove(name);
+                    if (connected) {
+                        connection.unsubscribePresence(name);
+                    }
                 }
                 tabbedChatPane.remove(i);
 
@@ -675,6 +679,7 @@ public class Client extends JFrame implements ActionListener,
                     disconnect.setEnabled(true);
                     setTitle(messages.getString("Client.title.PortOChatConnectedAs") + myUserName);
                     rejoinOpenChannels();
+                    resubscribeOpenChats();
                     if (notificationTimer.isRunning()) {
                         notificationTimer.restart();
                     } else {
@@ -731,6 +736,29 @@ public class Client extends JFrame implements ActionListener,
         });
     }
     
+    private void renameUser(final User user, final String oldName) {
+        SwingUtilities.invokeLater(() -> {
+            int index = contactListModel.indexOf(oldName);
+            if (index >= 0) {
+                contactListModel.set(index, user.getName());
+            }
+
+            // Rename in channel lists and any chat with the user
+            for (ChatPane pane : channelPaneMap.values()) {
+                pane.userRenamedEvent(oldName, user);
+            }
+            ChatPane pane = chatPaneMap.remove(oldName);
+            if (pane != null) {
+                chatPaneMap.put(user.getName(), pane);
+                pane.userRenamedEvent(oldName, user);
+                int tabIndex = tabbedChatPane.indexOfComponent(pane);
+                if (tabIndex >= 0) {
+                    tabbedChatPane.setTitleAt(tabIndex, user.getName());
+                }
+            }
+        });
+    }
+    
     private void addChannelToList(final String channel) {
         SwingUtilities.invokeLater(() -> {
             if (!channelListModel.contains(channel))
@@ -787,6 +815,10 @@ public class Client extends JFrame implements ActionListener,
         ChatPane pane = ChatPane.createChatPane(this, 
                         userName, myUserName, false);
         chatPaneMap.put(userName, pane);
+        if (connected) {
+            // Hear when they come and go even without a shared channel
+            connection.subscribePresence(userName);
+        }
         tabbedChatPane.add(pane.getPaneTitle(), pane);
         tabbedChatPane.setTabComponentAt(
                 tabbedChatPane.indexOfComponent(pane), 
@@ -801,13 +833,28 @@ public class Client extends JFrame implements ActionListener,
      */
     private void rejoinOpenChannels() {
         Set<Entry<String, ChatPane>> channelEntries = channelPaneMap.entrySet();
+        // A resumed session never left its channels
+        boolean resumed = connection.isSessionResumed();
         for (Entry<String, ChatPane> entry : channelEntries) {
             entry.getValue().rejoin();
-            connection.joinChannel(entry.getKey());
-            connection.requestUsersInChannel(entry.getKey());
+            if (!resumed) {
+                connection.joinChannel(entry.getKey());
+            }
+            connection.requestUsersInChannelPage(entry.getKey(), "",
+                    ChatPane.PARTICIPANT_PAGE_SIZE);
         }
     }
     
+    /**
+     * Asks again to hear when the users of open direct message tabs come
+     * and go, since a new session isn't subscribed to anyone
+     */
+    private void resubscribeOpenChats() {
+        for (String userName : chatPaneMap.keySet()) {
+            connection.subscribePresence(userName);
+        }
+    }
+
     @Override
     public void userListReceived(final List<User> users, String channel) {
     
@@ -824,6 +871,23 @@ public class Client extends JFrame implements ActionListener,
         }
     }
 
+    @Override
+    public void userListPageReceived(List<User> users, String channel,
+            String nextPageToken) {
+        ChatPane pane = channelPaneMap.get(channel);
+        if (pane != null) {
+            pane.addParticipantPage(users, nextPageToken);
+        }
+    }
+
+    @Override
+    public void requestChannelUserPage(String channel, String pageToken) {
+        if (connection != null) {
+            connection.requestUsersInChannelPage(channel, pageToken,
+                    ChatPane.PARTICIPANT_PAGE_SIZE);
+        }
+    }
+
     @Override
     public void userAdded(User user) {
         addUser(user);
@@ -834,6 +898,11 @@ public class Client extends JFrame implements ActionListener,
         removeUser(user);
     }
 
+    @Override
+    public void userRenamed(User user, String oldName) {
+        renameUser(user, oldName);
+    }
+
     @Override
     public void receiveChatMessage(final User fromUser, final boolean action, 
         final String message, final String channel) {
@@ -899,6 +968,22 @@ public class Client extends JFrame implements ActionListener,
         }
     }
 
+    @Override
+    public void receiveChannelMembership(String channel, List<User> joined,
+            List<String> partedUserIds) {
+        ChatPane pane = channelPaneMap.get(channel);
+        if (pane != null) {
+            List<User> parted = new ArrayList<>(partedUserIds.size());
+            for (String userId : partedUserIds) {
+                User user = serverData.getUserById(userId);
+                if (user != null) {
+                    parted.add(user);
+                }
+            }
+            pane.membershipChangedEvent(joined, parted);
+        }
+    }
+
     @Override
     public void channelStatusReceived(final String channel, boolean created) {
         if (created) {
@@ -927,6 +1012,8 @@ public class Client extends JFrame implements ActionListener,
                 if (user != null) {
                     connection.sendMessage(user.getId(), isChannel, action, message);
                 } else {
+                    // They may have come online unannounced, ask for next time
+                    connection.requestPresence(recipient);
                     JOptionPane.showMessageDialog(this, recipient + " not found in user list", "No such user", JOptionPane.ERROR_MESSAGE);
                 }
             }
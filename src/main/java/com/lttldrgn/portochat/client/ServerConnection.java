@@ -17,26 +17,47 @@
 package com.lttldrgn.portochat.client;
 
 import com.lttldrgn.portochat.common.User;
+import com.lttldrgn.portochat.common.encryption.CipherMode;
 import com.lttldrgn.portochat.common.encryption.EncryptionManager;
+import com.lttldrgn.portochat.common.encryption.KeyExchange;
+import com.lttldrgn.portochat.common.encryption.ResumptionTicket;
+import com.lttldrgn.portochat.common.encryption.SessionCipher;
 import com.lttldrgn.portochat.common.network.ConnectionHandler;
 import com.lttldrgn.portochat.common.network.event.NetEvent;
 import com.lttldrgn.portochat.common.network.event.NetListener;
 import com.lttldrgn.portochat.common.protocol.DefaultData;
 import com.lttldrgn.portochat.common.protocol.ProtoMessage;
 import com.lttldrgn.portochat.common.protocol.ProtoUtil;
+import com.lttldrgn.portochat.common.protocol.WireFormat;
 import com.lttldrgn.portochat.proto.Portochat;
+import com.lttldrgn.portochat.proto.Portochat.Capability;
 import com.lttldrgn.portochat.proto.Portochat.ChannelJoin;
 import com.lttldrgn.portochat.proto.Portochat.ChannelList;
+import com.lttldrgn.portochat.proto.Portochat.ChannelMembership;
 import com.lttldrgn.portochat.proto.Portochat.ChannelPart;
 import com.lttldrgn.portochat.proto.Portochat.ChatMessage;
 import com.lttldrgn.portochat.proto.Portochat.ErrorMessage;
 import com.lttldrgn.portochat.proto.Portochat.Notification;
+import com.lttldrgn.portochat.proto.Portochat.PresenceUpdate;
 import com.lttldrgn.portochat.proto.Portochat.Request;
+import com.lttldrgn.portochat.proto.Portochat.Response;
 import com.lttldrgn.portochat.proto.Portochat.StringList;
+import com.lttldrgn.portochat.proto.Portochat.SyncVersion;
+import com.lttldrgn.portochat.proto.Portochat.UserData;
 import com.lttldrgn.portochat.proto.Portochat.UserList;
 import java.io.IOException;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -49,11 +70,31 @@ import javax.crypto.SecretKey;
 public class ServerConnection {
     private static final Logger logger = 
             Logger.getLogger(ServerConnection.class.getName());
+    /** The optional features this client supports */
+    private static final Set<Capability> CAPABILITIES =
+            Collections.unmodifiableSet(EnumSet.of(Capability.KeyShare,
+                    Capability.MembershipDigests, Capability.ListSync));
     private final CopyOnWriteArrayList<ServerDataListener> listeners = 
             new CopyOnWriteArrayList<>();
     private ConnectionHandler socket = null;
     private ClientHandler clientHandler = null;
     private String username = null;
+    private volatile KeyExchange pendingKeyExchange = null;
+    private volatile KeyPair pendingKeyShare = null;
+    private volatile ResumptionTicket pendingResume = null;
+    private byte[] resumeNonce = null;
+    private volatile boolean sessionResumed = false;
+    /** Whether the first pong still has to answer the handshake probe */
+    private volatile boolean handshakeProbePending = false;
+    /** The server's ServerCapabilities response, null until it arrives */
+    private volatile Response serverCapabilities = null;
+    private volatile String serverUsername = null;
+    private final SyncedLists syncedLists = SyncedLists.getInstance();
+    /** Senders of channel messages already asked about */
+    private final Set<String> unknownSenders = ConcurrentHashMap.newKeySet();
+    /** The page size of each channel whose users are asked for by page */
+    private final Map<String, Integer> channelPageSizes = new ConcurrentHashMap<>();
+    private String serverName = null;
     private EncryptionManager encryptionManager = null;
 
     public ServerConnection() {
@@ -69,12 +110,24 @@ public class ServerConnection {
         if (successful) {
             clientHandler = new ClientHandler();
             socket.addListener(clientHandler);
-            sendUserPublicKey();
+            serverName = serverAddress + ":" + port;
+            sessionResumed = false;
+            serverCapabilities = null;
+            sendCapabilities();
+            ResumptionTicket ticket = encryptionManager.takeResumptionTicket(serverName);
+            if (ticket != null && ticket.getUserName().equals(username)) {
+                sendResumeSession(ticket);
+            }
+            requestWireFormat();
+            sendHandshakeProbe();
         }
         return successful;
     }
 
     public void disconnect() {
+        pendingKeyShare = null;
+        pendingResume = null;
+        handshakeProbePending = false;
         socket.disconnect();
         socket.removeListener(clientHandler);
         socket = null;
@@ -84,18 +137,126 @@ public class ServerConnection {
         this.username = username;
     }
 
+    /**
+     * Asks the server to switch to the newest wire format. Servers that
+     * don't know the request ignore it and the connection stays on V1.
+     */
+    public void requestWireFormat() {
+        ProtoMessage protoMessage = new ProtoMessage(
+                ProtoUtil.createSetWireFormatRequest(WireFormat.LATEST.getVersion()));
+        socket.writeData(protoMessage);
+    }
+
     /**
      * Send the user public key to the server
      */
     public void sendUserPublicKey() {
         byte encodedKey[] = encryptionManager.getClientEncodedPublicKey();
         if (encodedKey != null) {
-            ProtoMessage protoMessage = new ProtoMessage(ProtoUtil.createSetPublicKey(encodedKey));
+            ProtoMessage protoMessage = new ProtoMessage(
+                    ProtoUtil.createSetPublicKey(encodedKey, getCipherModeIds()));
             socket.writeData(protoMessage);
         }
 
     }
 
+    /**
+     * Tells the server which optional features the client supports. Servers
+     * that know the request answer with their own capabilities.
+     */
+    private void sendCapabilities() {
+        ProtoMessage protoMessage = new ProtoMessage(
+                ProtoUtil.createSetCapabilities(CAPABILITIES));
+        socket.writeData(protoMessage);
+    }
+
+    /**
+     * Follows the handshake requests with a ping. Servers answer in order,
+     * so once its pong arrives the server has answered everything it knows
+     * of the handshake; a server that hasn't sent its capabilities by then
+     * predates them, and only knows {@link #sendUserPublicKey()}.
+     */
+    private void sendHandshakeProbe() {
+        handshakeProbePending = true;
+        sendPing();
+    }
+
+    /**
+     * Agrees on a session key with the server: a Diffie-Hellman exchange if
+     * the server offered one this client supports, which avoids generating
+     * an RSA key pair, otherwise RSA.
+     */
+    private void startKeyExchange() {
+        Response capabilities = serverCapabilities;
+        if (capabilities != null
+                && capabilities.getCapabilitiesList().contains(Capability.KeyShare)) {
+            for (int id : capabilities.getKeyExchangesList()) {
+                KeyExchange keyExchange = KeyExchange.fromId(id);
+                if (keyExchange != null && keyExchange != KeyExchange.RSA
+                        && keyExchange.isAvailable() && sendUserKeyShare(keyExchange)) {
+                    return;
+                }
+            }
+        }
+        sendUserPublicKey();
+    }
+
+    /**
+     * Sends a fresh public key for a Diffie-Hellman key exchange
+     *
+     * @param keyExchange An exchange the server accepts
+     * @return true if the key share was sent
+     */
+    private boolean sendUserKeyShare(KeyExchange keyExchange) {
+        KeyPair keyShare = encryptionManager.generateKeyShare(keyExchange);
+        if (keyShare == null) {
+            return false;
+        }
+        pendingKeyExchange = keyExchange;
+        pendingKeyShare = keyShare;
+        ProtoMessage protoMessage = new ProtoMessage(ProtoUtil.createSetKeyShare(
+                keyExchange.getId(), keyShare.getPublic().getEncoded(),
+                getCipherModeIds()));
+        socket.writeData(protoMessage);
+        return true;
+    }
+
+    /**
+     * Asks the server to resume the session a ticket was issued for, which
+     * restores the user and its channels without a key exchange. If the
+     * server rejects or doesn't know the ticket the client exchanges keys.
+     * 
+     * @param ticket The ticket
+     */
+    private void sendResumeSession(ResumptionTicket ticket) {
+        byte[] nonce = encryptionManager.generateNonce();
+        byte[] binder = encryptionManager.createResumeBinder(ticket.getSecretKey(), nonce);
+        if (binder == null) {
+            return;
+        }
+        resumeNonce = nonce;
+        pendingResume = ticket;
+        ProtoMessage protoMessage = new ProtoMessage(ProtoUtil.createResumeSession(
+                ticket.getTicket(), nonce, binder));
+        socket.writeData(protoMessage);
+    }
+
+    /**
+     * @return true if the server resumed the session from a ticket, in which
+     *          case the user is still in its channels
+     */
+    public boolean isSessionResumed() {
+        return sessionResumed;
+    }
+
+    private static int[] getCipherModeIds() {
+        int[] cipherModes = new int[CipherMode.PREFERRED.length];
+        for (int i = 0; i < cipherModes.length; i++) {
+            cipherModes[i] = CipherMode.PREFERRED[i].getId();
+        }
+        return cipherModes;
+    }
+
     public void sendUsername(String newUsername) {
         Portochat.PortoChatMessage request = ProtoUtil.createSetUserNameRequest(newUsername);
         ProtoMessage message = new ProtoMessage(request);
@@ -121,8 +282,15 @@ public class ServerConnection {
         socket.writeData(chatMessage);
     }
 
+    /**
+     * Asks for the server's user list, or only what changed since the list
+     * last received from the server
+     */
     public void sendUserListRequest() {
-        Portochat.PortoChatMessage message = ProtoUtil.createUserListRequest();
+        SyncedList<User> users = syncedLists.getUsers(serverName);
+        Portochat.PortoChatMessage message = users.isSynced()
+                ? ProtoUtil.createUserListRequest(users.getEpoch(), users.getVersion())
+                : ProtoUtil.createUserListRequest();
         ProtoMessage protoMessage = new ProtoMessage(message);
         socket.writeData(protoMessage);
     }
@@ -138,20 +306,102 @@ public class ServerConnection {
         Portochat.PortoChatMessage notification = ProtoUtil.createChannelPartNotification(channel, username);
         ProtoMessage protoMessage = new ProtoMessage(notification);
         socket.writeData(protoMessage);
+        syncedLists.removeChannelUsers(serverName, channel);
+        channelPageSizes.remove(channel);
     }
 
+    /**
+     * Asks for the server's channel list, or only what changed since the
+     * list last received from the server
+     */
     public void requestListOfChannels() {
-        Portochat.PortoChatMessage message = ProtoUtil.createChannelListRequest();
+        SyncedList<String> channels = syncedLists.getChannels(serverName);
+        Portochat.PortoChatMessage message = channels.isSynced()
+                ? ProtoUtil.createChannelListRequest(channels.getEpoch(), channels.getVersion())
+                : ProtoUtil.createChannelListRequest();
         ProtoMessage protoMessage = new ProtoMessage(message);
         socket.writeData(protoMessage);
     }
 
+    /**
+     * Asks for a page of the server's channels, in name order
+     *
+     * @param pageToken The token of the page, empty for the first
+     * @param pageSize The most channels on the page
+     */
+    public void requestListOfChannelsPage(String pageToken, int pageSize) {
+        Portochat.PortoChatMessage message = ProtoUtil.createChannelListPageRequest(
+                pageToken, pageSize);
+        socket.writeData(new ProtoMessage(message));
+    }
+
+    /**
+     * Asks for a page of the users in a channel, in name order. If the
+     * whole list last fit on the first page, only what changed since is
+     * asked for, which arrives as the whole list instead of a page.
+     *
+     * @param channel The channel
+     * @param pageToken The token of the page, empty for the first
+     * @param pageSize The most users on the page
+     */
+    public void requestUsersInChannelPage(String channel, String pageToken, int pageSize) {
+        channelPageSizes.put(channel, pageSize);
+        SyncedList<User> users = syncedLists.getChannelUsers(serverName, channel);
+        Portochat.PortoChatMessage message = (pageToken.isEmpty() && users.isSynced())
+                ? ProtoUtil.createChannelUserListPageRequest(channel, pageSize,
+                        users.getEpoch(), users.getVersion())
+                : ProtoUtil.createChannelUserListPageRequest(channel, pageToken, pageSize);
+        socket.writeData(new ProtoMessage(message));
+    }
+
+    /**
+     * Asks for the users in a channel, or only what changed since the list
+     * last received from the server
+     *
+     * @param channel The channel
+     */
     public void requestUsersInChannel(String channel) {
-        Portochat.PortoChatMessage message = ProtoUtil.createChannelUserListRequest(channel);
+        channelPageSizes.remove(channel);
+        SyncedList<User> users = syncedLists.getChannelUsers(serverName, channel);
+        Portochat.PortoChatMessage message = users.isSynced()
+                ? ProtoUtil.createChannelUserListRequest(channel, users.getEpoch(), users.getVersion())
+                : ProtoUtil.createChannelUserListRequest(channel);
         ProtoMessage protoMessage = new ProtoMessage(message);
         socket.writeData(protoMessage);
     }
 
+    /**
+     * Asks the server whether a user is online. The answer adds them to the
+     * server data if they are.
+     *
+     * @param userName Name of the user
+     */
+    public void requestPresence(String userName) {
+        socket.writeData(new ProtoMessage(ProtoUtil.createPresenceRequest(
+                Request.RequestType.UserPresence, userName)));
+    }
+
+    /**
+     * Asks the server whether a user is online and to say when they come
+     * or go, which it otherwise only does for users sharing a channel
+     *
+     * @param userName Name of the user
+     */
+    public void subscribePresence(String userName) {
+        socket.writeData(new ProtoMessage(ProtoUtil.createPresenceRequest(
+                Request.RequestType.SubscribePresence, userName)));
+    }
+
+    /**
+     * Stops the server saying when a user comes or goes
+     *
+     * @param userName Name of the user
+     */
+    public void unsubscribePresence(String userName) {
+        socket.writeData(new ProtoMessage(ProtoUtil.createPresenceRequest(
+                Request.RequestType.UnsubscribePresence, userName)));
+    }
+
     public void addDataListener(ServerDataListener listener) {
         listeners.add(listener);
     }
@@ -163,6 +413,13 @@ public class ServerConnection {
     private class ClientHandler implements NetListener {
         private final ResourceBundle messages = ResourceBundle.getBundle(
                 "portochat/resource/MessagesBundle", java.util.Locale.getDefault());
+        /**
+         * The lists whose parts are still arriving. Messages are handled one
+         * at a time, so these needn't be thread safe.
+         */
+        private final Set<String> openStreams = new HashSet<>();
+        /** Notifications that arrived while a list was being streamed */
+        private final List<Notification> heldNotifications = new ArrayList<>();
 
         @Override
         public void incomingMessage(NetEvent event) {
@@ -175,7 +432,11 @@ public class ServerConnection {
                 ProtoMessage protoMessage = (ProtoMessage) defaultData;
                 switch (protoMessage.getMessage().getApplicationMessageCase()) {
                     case CHANNELLIST:
-                        handleChannelList(protoMessage.getMessage().getChannelList());
+                    {
+                        ChannelList channelList = protoMessage.getMessage().getChannelList();
+                        handleChannelList(channelList);
+                        streamPartReceived("channels", channelList.getMore());
+                    }
                         break;
                     case CHATMESSAGE:
                         handleChatMessage(protoMessage.getMessage().getChatMessage());
@@ -184,21 +445,24 @@ public class ServerConnection {
                         handleErrorMessage(protoMessage.getMessage().getErrorMessage());
                         break;
                     case NOTIFICATION:
-                        handleNotification(protoMessage.getMessage().getNotification());
+                        if (openStreams.isEmpty()) {
+                            handleNotification(protoMessage.getMessage().getNotification());
+                        } else {
+                            heldNotifications.add(protoMessage.getMessage().getNotification());
+                        }
                         break;
                     case REQUEST:
                         handleRequest(protoMessage.getMessage().getRequest());
                         break;
+                    case RESPONSE:
+                        handleResponse(protoMessage.getMessage().getResponse());
+                        break;
                     case USERLIST:
+                    {
                         UserList userList = protoMessage.getMessage().getUserList();
-                        List<User> users = ProtoUtil.getUserList(userList);
-                        String channel = userList.getChannel();
-                        if (channel == null || channel.isEmpty()) {
-                            ServerDataStorage.getInstance().addUsers(users);
-                        }
-                        for (ServerDataListener listener : listeners) {
-                            listener.userListReceived(users, channel);
-                        }
+                        handleUserList(userList);
+                        streamPartReceived("users:" + userList.getChannel(), userList.getMore());
+                    }
                         break;
                     case PING:
                         // Send a pong
@@ -208,6 +472,11 @@ public class ServerConnection {
                         break;
                     case PONG:
                         long pingTime = protoMessage.getMessage().getPong().getTimestamp();
+                        if (handshakeProbePending) {
+                            handshakeProbePending = false;
+                            handleHandshakeProbe();
+                            break;
+                        }
                         System.out.println(messages.getString("ServerConnection.msg.ServerLag") +
                                 (System.currentTimeMillis() - pingTime) +
                                 messages.getString("ServerConnection.msg.Ms"));
@@ -218,19 +487,156 @@ public class ServerConnection {
             }
         }
 
+        /**
+         * Keeps track of the lists being streamed. The later parts of a list
+         * can be sent well after the first, so notifications sent meanwhile
+         * describe a newer state than the list. They are held back until the
+         * list is complete, so the list can't bring back users or channels
+         * that have since gone.
+         *
+         * @param list The list the part belongs to
+         * @param more true if more parts of the list follow
+         */
+        private void streamPartReceived(String list, boolean more) {
+            if (more) {
+                openStreams.add(list);
+            } else if (openStreams.remove(list) && openStreams.isEmpty()) {
+                List<Notification> held = new ArrayList<>(heldNotifications);
+                heldNotifications.clear();
+                for (Notification notification : held) {
+                    handleNotification(notification);
+                }
+            }
+        }
+
         private void handleChannelList(ChannelList channelList) {
             // Received a channel list
             StringList stringList = channelList.getChannels();
             List<String> channels = stringList.getValuesList();
+            if (channelList.getPaged()) {
+                for (ServerDataListener listener : listeners) {
+                    listener.channelListPageReceived(channels, channelList.getNextPageToken());
+                }
+                return;
+            }
+            if (channelList.hasVersion()) {
+                Map<String, String> received = new LinkedHashMap<>();
+                for (String channel : channels) {
+                    received.put(channel, channel);
+                }
+                channels = syncList(syncedLists.getChannels(serverName), received,
+                        channelList.getRemovedChannelsList(), channelList.getDelta(),
+                        channelList.getMore(), channelList.getVersion());
+                if (channels == null && !channelList.getMore()) {
+                    requestListOfChannels();
+                }
+                if (channels == null || channelList.getMore()) {
+                    return;
+                }
+            }
             for (ServerDataListener listener : listeners) {
                 listener.channelListReceived(channels);
             }
         }
 
+        private void handleUserList(UserList userList) {
+            List<User> users = ProtoUtil.getUserList(userList);
+            String channel = userList.getChannel();
+            if (userList.getPaged()) {
+                if (!channel.isEmpty()) {
+                    // Only a channel's whole list has a version to keep
+                    SyncedList<User> channelUsers = syncedLists.getChannelUsers(serverName, channel);
+                    if (userList.hasVersion()) {
+                        Map<String, User> all = new LinkedHashMap<>();
+                        for (User user : users) {
+                            all.put(user.getId(), user);
+                        }
+                        channelUsers.replace(all, userList.getVersion().getEpoch(),
+                                userList.getVersion().getVersion(), false);
+                    } else {
+                        channelUsers.clear();
+                    }
+                }
+                ServerDataStorage.getInstance().addUsers(users);
+                for (ServerDataListener listener : listeners) {
+                    listener.userListPageReceived(users, channel, userList.getNextPageToken());
+                }
+                return;
+            }
+            if (userList.hasVersion()) {
+                Map<String, User> received = new LinkedHashMap<>();
+                for (User user : users) {
+                    received.put(user.getId(), user);
+                }
+                boolean more = userList.getMore();
+                if (channel.isEmpty()) {
+                    users = syncList(syncedLists.getUsers(serverName), received,
+                            userList.getRemovedUserIdsList(), userList.getDelta(),
+                            more, userList.getVersion());
+                    if (users == null && !more) {
+                        sendUserListRequest();
+                    }
+                    for (String userId : userList.getRemovedUserIdsList()) {
+                        ServerDataStorage.getInstance().removeUser(userId);
+                    }
+                } else {
+                    users = syncList(syncedLists.getChannelUsers(serverName, channel),
+                            received, userList.getRemovedUserIdsList(),
+                            userList.getDelta(), more, userList.getVersion());
+                    if (users == null && !more) {
+                        Integer pageSize = channelPageSizes.get(channel);
+                        if (pageSize != null) {
+                            requestUsersInChannelPage(channel, "", pageSize);
+                        } else {
+                            requestUsersInChannel(channel);
+                        }
+                    }
+                }
+                if (users == null || more) {
+                    // The whole list is passed on once it has arrived
+                    return;
+                }
+            }
+            // Channel members may not be in the server list,
+            // but messages from them need resolving
+            ServerDataStorage.getInstance().addUsers(users);
+            for (ServerDataListener listener : listeners) {
+                listener.userListReceived(users, channel);
+            }
+        }
+
+        /**
+         * Brings the copy of a list up to date with what the server sent
+         *
+         * @return The whole list, or null if it must be asked for again
+         */
+        private <T> List<T> syncList(SyncedList<T> list, Map<String, T> received,
+                List<String> removed, boolean delta, boolean more, SyncVersion version) {
+            if (!delta) {
+                return list.replace(received, version.getEpoch(), version.getVersion(), more);
+            }
+            List<T> all = list.update(received, removed, version.getEpoch(),
+                    version.getVersion(), more);
+            if (all == null) {
+                // Changes to a list this client doesn't have
+                list.clear();
+            }
+            return all;
+        }
+
         private void handleChatMessage(ChatMessage message) {
             String channel = message.getIsChannel() ? message.getDestinationId() : null;
             // TODO once sender ID is being used, look up by ID instead of name
             User sender = ServerDataStorage.getInstance().getUserByName(message.getSenderId());
+            if (sender == null && channel != null) {
+                // Quiet channels don't say who joins, so ask about the
+                // sender once and show the message under their name meanwhile
+                if (unknownSenders.add(message.getSenderId())) {
+                    requestPresence(message.getSenderId());
+                }
+                sender = new User();
+                sender.setName(message.getSenderId());
+            }
             if (sender != null) {
                 for (ServerDataListener listener : listeners) {
                     listener.receiveChatMessage(sender,
@@ -256,12 +662,19 @@ public class ServerConnection {
             switch (notification.getNotificationDataCase()) {
                 case CHANNELJOIN:
                     ChannelJoin join = notification.getChannelJoin();
+                    if (join.hasUser()) {
+                        ServerDataStorage.getInstance().addUser(
+                                ProtoUtil.convertToUser(join.getUser()));
+                    }
                     handleChannelJoinPart(join.getUserId(), join.getChannel(), true);
                     break;
                 case CHANNELPART:
                     ChannelPart part = notification.getChannelPart();
                     handleChannelJoinPart(part.getUserId(), part.getChannel(), false);
                     break;
+                case CHANNELMEMBERSHIP:
+                    handleChannelMembership(notification.getChannelMembership());
+                    break;
                 case CHANNELADDED:
                     String channelAdded = notification.getChannelAdded().getChannel();
                     listeners.forEach((listener) -> listener.channelStatusReceived(channelAdded, true));
@@ -279,6 +692,20 @@ public class ServerConnection {
                         ServerDataStorage.getInstance().removeUser(user.getId());
                     }
                     break;
+                case PRESENCEUPDATE:
+                    PresenceUpdate update = notification.getPresenceUpdate();
+                    for (String userId : update.getOfflineUserIdsList()) {
+                        ServerDataStorage.getInstance().removeUser(userId);
+                    }
+                    for (UserData userData : update.getOnlineList()) {
+                        ServerDataStorage.getInstance().addUser(ProtoUtil.convertToUser(userData));
+                    }
+                    break;
+                case USERRENAMED:
+                    ServerDataStorage.getInstance().renameUser(
+                            notification.getUserRenamed().getUserId(),
+                            notification.getUserRenamed().getName());
+                    break;
                 case USERDOESNOTEXIST:
                     User nonExistent = ProtoUtil.convertToUser(notification.getUserDoesNotExist().getUser());
                     for (ServerDataListener listener : listeners) {
@@ -286,6 +713,8 @@ public class ServerConnection {
                     }
                     break;
                 case USERNAMESET:
+                    serverUsername = notification.getUserNameSet().getName();
+                    unknownSenders.clear();
                     for (ServerDataListener listener : listeners) {
                         listener.handleServerConnection(notification.getUserNameSet().getName(), true);
                     }
@@ -293,6 +722,19 @@ public class ServerConnection {
             }
         }
 
+        private void handleChannelMembership(ChannelMembership membership) {
+            List<User> joined = new ArrayList<>(membership.getJoinedCount());
+            for (UserData userData : membership.getJoinedList()) {
+                User user = ProtoUtil.convertToUser(userData);
+                ServerDataStorage.getInstance().addUser(user);
+                joined.add(user);
+            }
+            for (ServerDataListener listener : listeners) {
+                listener.receiveChannelMembership(membership.getChannel(),
+                        joined, membership.getPartedUserIdsList());
+            }
+        }
+
         private void handleChannelJoinPart(String userId, String channel, boolean joined) {
             for (ServerDataListener listener : listeners) {
                 listener.receiveChannelJoinPart(userId, channel, joined);
@@ -304,13 +746,117 @@ public class ServerConnection {
                 case SetServerSharedKey:
                     setServerSecretKey(request);
                     break;
+                case SetSessionTicket:
+                    SessionCipher serverCipher = encryptionManager.getServerCipher();
+                    if (serverCipher != null && serverUsername != null) {
+                        encryptionManager.setResumptionTicket(serverName,
+                                new ResumptionTicket(request.getByteData().toByteArray(),
+                                        serverCipher.getSecretKey(), serverCipher.getMode(),
+                                        serverUsername));
+                    }
+                    break;
+            }
+        }
+
+        private void handleResponse(Response response) {
+            switch (response.getResponseType()) {
+                case WireFormatAccepted:
+                    switchWireFormat(response);
+                    break;
+                case SessionResumed:
+                    resumeSession(response);
+                    break;
+                case SessionResumeRejected:
+                    // The handshake probe's pong follows and starts the
+                    // key exchange
+                    logger.log(Level.INFO, "Server rejected the session ticket");
+                    pendingResume = null;
+                    break;
+                case ServerCapabilities:
+                    serverCapabilities = response;
+                    break;
+            }
+        }
+
+        private void resumeSession(Response response) {
+            ResumptionTicket ticket = pendingResume;
+            if (ticket == null) {
+                logger.log(Level.SEVERE, "Unexpected session resumption");
+                return;
             }
+            pendingResume = null;
+            SecretKey secretKey = encryptionManager.deriveResumedKey(ticket.getSecretKey(),
+                    resumeNonce, response.getByteResponseData().toByteArray());
+            if (secretKey == null) {
+                return;
+            }
+            encryptionManager.setServerCipher(encryptionManager.createSessionCipher(
+                    secretKey, ticket.getMode(), false));
+            sessionResumed = true;
+            ProtoMessage protoMessage = new ProtoMessage(ProtoUtil.createServerKeyAccepted(response.getRequestId()));
+            protoMessage.setCanBeEncrypted(false);
+            socket.writeData(protoMessage);
+        }
+
+        /**
+         * The server has answered the handshake. Unless it resumed the
+         * session or is still to answer the ticket, the key exchange can
+         * start with what the server said it supports.
+         */
+        private void handleHandshakeProbe() {
+            if (serverCapabilities == null) {
+                logger.log(Level.INFO, "Server sent no capabilities, using RSA");
+                pendingResume = null;
+            }
+            if (pendingResume == null && !sessionResumed) {
+                startKeyExchange();
+            }
+        }
+
+        private void switchWireFormat(Response response) {
+            WireFormat wireFormat = WireFormat.fromVersion(response.getIntResponseData());
+            if (wireFormat == null || wireFormat.getVersion() > WireFormat.LATEST.getVersion()) {
+                logger.log(Level.WARNING, "Server accepted unsupported wire format {0}",
+                        response.getIntResponseData());
+                return;
+            }
+            // The server writes the new format after its response, and
+            // reads it after the echoed response
+            Socket clientSocket = socket.getClientSocket();
+            socket.setInboundWireFormat(clientSocket, wireFormat);
+            ProtoMessage protoMessage = new ProtoMessage(ProtoUtil.createWireFormatAccepted(
+                    response.getRequestId(), wireFormat.getVersion()));
+            socket.switchOutboundWireFormat(clientSocket, protoMessage, wireFormat);
         }
 
         private void setServerSecretKey(Request request) {
-            SecretKey serverSecretKey = encryptionManager.decodeSecretKeyWithPrivateKey(
-                    request.getByteData().toByteArray());
-            encryptionManager.setServerSecretKey(serverSecretKey);
+            SecretKey serverSecretKey;
+            if (request.getKeyExchange() != KeyExchange.RSA.getId()) {
+                // the server answered our key share with its own
+                KeyPair keyShare = pendingKeyShare;
+                KeyExchange keyExchange = KeyExchange.fromId(request.getKeyExchange());
+                if (keyShare == null || keyExchange != pendingKeyExchange) {
+                    logger.log(Level.SEVERE, "Unexpected key share: {0}", keyExchange);
+                    return;
+                }
+                pendingKeyShare = null;
+                serverSecretKey = encryptionManager.deriveSharedKey(keyExchange,
+                        keyShare.getPrivate(), keyShare.getPublic().getEncoded(),
+                        request.getByteData().toByteArray(), false);
+            } else {
+                serverSecretKey = encryptionManager.decodeSecretKeyWithPrivateKey(
+                        request.getByteData().toByteArray());
+            }
+            // a server that doesn't name a mode only knows CBC
+            CipherMode cipherMode = (request.getCipherModesCount() > 0)
+                    ? CipherMode.fromId(request.getCipherModes(0)) : CipherMode.AES_CBC;
+            if (serverSecretKey == null || cipherMode == null) {
+                logger.log(Level.SEVERE, "Unable to use the server''s key, mode: {0}",
+                        request.getCipherModesList());
+                return;
+            }
+            encryptionManager.setServerCipher(encryptionManager.createSessionCipher(
+                    serverSecretKey, cipherMode, false));
             ProtoMessage protoMessage = new ProtoMessage(ProtoUtil.createServerKeyAccepted(request.getRequestId()));
             protoMessage.setCanBeEncrypted(false);
             socket.writeData(protoMessage);
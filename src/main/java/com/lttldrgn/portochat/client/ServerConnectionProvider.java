@@ -37,4 +37,11 @@ public interface ServerConnectionProvider {
      * @return Username that is set on the server
      */
     public String getConnectedUsername();
+
+    /**
+     * Asks for a page of the users in a channel
+     * @param channel Channel to list the users of
+     * @param pageToken Token of the page, empty for the first
+     */
+    public void requestChannelUserPage(String channel, String pageToken);
 }
@@ -33,6 +33,20 @@ public interface ServerDataListener {
      * server user list.
      */
     public void userListReceived(List<User> users, String channel);
+
+    /**
+     * This method is called when a page of a user list asked for by page is
+     * received.  By default it is passed to userListReceived.
+     * @param users The page's users
+     * @param channel The channel that this list of users is from, empty if a
+     * server user list.
+     * @param nextPageToken Token to ask for the next page with, empty if this
+     * is the last page
+     */
+    public default void userListPageReceived(List<User> users, String channel,
+            String nextPageToken) {
+        userListReceived(users, channel);
+    }
     
     /**
      * This method is called when a chat message is received.  If the channel
@@ -50,6 +64,18 @@ public interface ServerDataListener {
      * @param channels List of created channels on the server
      */
     public void channelListReceived(List<String> channels);
+
+    /**
+     * This method is called when a page of the channel list asked for by
+     * page is received.  By default it is passed to channelListReceived.
+     * @param channels The page's channels
+     * @param nextPageToken Token to ask for the next page with, empty if this
+     * is the last page
+     */
+    public default void channelListPageReceived(List<String> channels,
+            String nextPageToken) {
+        channelListReceived(channels);
+    }
     
     /**
      * This method is called when a channel join/part event occurs
@@ -59,6 +85,24 @@ public interface ServerDataListener {
      */
     public void receiveChannelJoinPart(String userId, String channel,
             boolean join);
+
+    /**
+     * This method is called when the users that joined and left a channel
+     * since the last such event are received.  By default each is passed to
+     * receiveChannelJoinPart in turn.
+     * @param channel Channel that was joined/parted
+     * @param joined Users that joined the channel
+     * @param partedUserIds IDs of the users that left the channel
+     */
+    public default void receiveChannelMembership(String channel, List<User> joined,
+            List<String> partedUserIds) {
+        for (User user : joined) {
+            receiveChannelJoinPart(user.getId(), channel, true);
+        }
+        for (String userId : partedUserIds) {
+            receiveChannelJoinPart(userId, channel, false);
+        }
+    }
     
     /**
      * This method is called when a channel is created or destroyed
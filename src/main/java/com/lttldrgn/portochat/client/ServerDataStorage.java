@@ -54,6 +54,11 @@ public class ServerDataStorage {
      * @param user User information
      */
     public void addUser(User user) {
+        User stale = nameToUser.get(user.getName());
+        if (stale != null && !stale.getId().equals(user.getId())) {
+            // The name's old session ended without this client hearing of it
+            removeUser(stale.getId());
+        }
         userIdMap.putIfAbsent(user.getId(), user);
         nameToUser.putIfAbsent(user.getName(), user);
         for (UserEventListener listener : userEventListeners) {
@@ -85,6 +90,24 @@ public class ServerDataStorage {
         }
     }
 
+    /**
+     * Rename a user and notify listeners
+     * @param userId ID of the user
+     * @param newName The user's new name
+     */
+    public void renameUser(String userId, String newName) {
+        User user = userIdMap.get(userId);
+        if (user != null && !newName.equals(user.getName())) {
+            String oldName = user.getName();
+            nameToUser.remove(oldName, user);
+            user.setName(newName);
+            nameToUser.put(newName, user);
+            for (UserEventListener listener : userEventListeners) {
+                listener.userRenamed(user, oldName);
+            }
+        }
+    }
+
     /**
      * Get the user with the ID
      * @param userId ID of the user
@@ -0,0 +1,114 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The client's copy of a list the server keeps versioned, and the version
+ * it has, so the server need only send what changed since. A list sent in
+ * several messages has no version until the last arrives, so a list cut
+ * short by a disconnect is asked for whole again.
+ *
+ * @param <T> The list's entries
+ */
+class SyncedList<T> {
+
+    private final Map<String, T> entries = new LinkedHashMap<>();
+    private boolean synced = false;
+    /** true while the rest of a list sent in several messages is due */
+    private boolean partial = false;
+    private long epoch;
+    private long version;
+
+    /**
+     * @return true if the list has a version to ask for changes since
+     */
+    synchronized boolean isSynced() {
+        return synced;
+    }
+
+    synchronized long getEpoch() {
+        return epoch;
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Replaces the whole list
+     *
+     * @param all All the entries by key, or the first of them if more
+     * @param epoch The epoch of the list's version
+     * @param version The list's version
+     * @param more true if the rest of the list follows
+     * @return The entries
+     */
+    synchronized List<T> replace(Map<String, T> all, long epoch, long version,
+            boolean more) {
+        entries.clear();
+        entries.putAll(all);
+        this.epoch = epoch;
+        this.version = version;
+        synced = !more;
+        partial = more;
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Applies the changes since the version the list had when they were
+     * asked for
+     *
+     * @param updated The entries added or updated by key
+     * @param removed The keys of the entries removed
+     * @param epoch The epoch of the list's version
+     * @param version The list's version with the changes made
+     * @param more true if more of a list sent in several messages follows
+     * @return The entries, or null if the changes aren't to this list
+     */
+    synchronized List<T> update(Map<String, T> updated, Collection<String> removed,
+            long epoch, long version, boolean more) {
+        if (!(synced || partial) || epoch != this.epoch) {
+            return null;
+        }
+        for (String key : removed) {
+            entries.remove(key);
+        }
+        entries.putAll(updated);
+        if (partial) {
+            synced = !more;
+            partial = more;
+        }
+        // An answer to an earlier request can arrive after a later one
+        this.version = Math.max(this.version, version);
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Forgets the list, so the whole list is asked for next
+     */
+    synchronized void clear() {
+        entries.clear();
+        synced = false;
+        partial = false;
+    }
+}
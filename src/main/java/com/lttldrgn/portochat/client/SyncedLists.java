@@ -0,0 +1,102 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import com.lttldrgn.portochat.common.User;
+
+/**
+ * The user, channel and channel user lists last received from a server,
+ * kept between connections so reconnecting only needs what changed while
+ * the client was away. Lists are kept for one server at a time.
+ */
+public class SyncedLists {
+
+    private static SyncedLists instance = null;
+    private String serverName = null;
+    private SyncedList<User> users = new SyncedList<>();
+    private SyncedList<String> channels = new SyncedList<>();
+    private final Map<String, SyncedList<User>> channelUsers = new HashMap<>();
+
+    /**
+     * Private constructor
+     */
+    private SyncedLists() {
+    }
+
+    /**
+     * Method to get the instance of this singleton.
+     *
+     * @return SyncedLists
+     */
+    public static synchronized SyncedLists getInstance() {
+        if (instance == null) {
+            instance = new SyncedLists();
+        }
+        return instance;
+    }
+
+    /**
+     * @param serverName The server's address and port
+     * @return The server's user list
+     */
+    synchronized SyncedList<User> getUsers(String serverName) {
+        useServer(serverName);
+        return users;
+    }
+
+    /**
+     * @param serverName The server's address and port
+     * @return The server's channel list
+     */
+    synchronized SyncedList<String> getChannels(String serverName) {
+        useServer(serverName);
+        return channels;
+    }
+
+    /**
+     * @param serverName The server's address and port
+     * @param channel The channel
+     * @return The users in the server's channel
+     */
+    synchronized SyncedList<User> getChannelUsers(String serverName, String channel) {
+        useServer(serverName);
+        return channelUsers.computeIfAbsent(channel, (key) -> new SyncedList<>());
+    }
+
+    /**
+     * Forgets the users of a channel the client left
+     *
+     * @param serverName The server's address and port
+     * @param channel The channel
+     */
+    synchronized void removeChannelUsers(String serverName, String channel) {
+        if (serverName.equals(this.serverName)) {
+            channelUsers.remove(channel);
+        }
+    }
+
+    private void useServer(String serverName) {
+        if (!serverName.equals(this.serverName)) {
+            this.serverName = serverName;
+            users = new SyncedList<>();
+            channels = new SyncedList<>();
+            channelUsers.clear();
+        }
+    }
+}
@@ -25,4 +25,5 @@ import com.lttldrgn.portochat.common.User;
 public interface UserEventListener {
     void userAdded(User user);
     void userRemoved(User user);
+    void userRenamed(User user, String oldName);
 }
@@ -19,11 +19,6 @@ package com.lttldrgn.portochat.common;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.security.PublicKey;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import javax.crypto.SecretKey;
-import com.lttldrgn.portochat.common.network.handler.BufferHandler;
 import java.util.Objects;
 import java.util.UUID;
 
@@ -34,18 +29,14 @@ import java.util.UUID;
 public class User {
     private String id;
     private String name = null;
-    private String host = null;
+    private volatile String host = null;
     private long lastSeen;
-    private SecretKey secretKey = null;
-    private PublicKey clientPublicKey = null;
-    private List<BufferHandler> handlers = null;
     
     /**
      * User constructor
      */
     public User() {
         id = UUID.randomUUID().toString();
-        handlers = new CopyOnWriteArrayList<>();
     }
 
     public String getId() {
@@ -88,22 +79,6 @@ public class User {
         this.name = name;
     }
 
-    public SecretKey getSecretKey() {
-        return secretKey;
-    }
-
-    public void setSecretKey(SecretKey secretKey) {
-        this.secretKey = secretKey;
-    }
-
-    public PublicKey getClientPublicKey() {
-        return clientPublicKey;
-    }
-
-    public void setClientPublicKey(PublicKey clientPublicKey) {
-        this.clientPublicKey = clientPublicKey;
-    }
-
     public long getLastSeen() {
         return lastSeen;
     }
@@ -112,22 +87,6 @@ public class User {
         this.lastSeen = lastSeen;
     }
 
-    public void clearHandlers() {
-        handlers.clear();
-    }
-
-    public List<BufferHandler> getHandlers() {
-        return handlers;
-    }
-      
-    public void addHandler(BufferHandler handler) {
-        handlers.add(handler);
-    }
-    
-    public void removeHandler(BufferHandler handler) {
-        handlers.remove(handler);
-    }
-
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
@@ -0,0 +1,84 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.common.encryption;
+
+import java.util.Collection;
+
+/**
+ * The ways a session's messages can be encrypted with its AES key.
+ *
+ * AES_CBC is the original mode. Each message carries a random 16 byte IV,
+ * and for V1 frames is laid out as length prefixed IV and cipher text
+ * records.
+ *
+ * AES_GCM authenticates as well as encrypts. Each message carries the 8 byte
+ * counter it was sent with, followed by the cipher text and a 16 byte tag.
+ * The nonce is the counter with a prefix for the direction the message
+ * travels, so both sides can share the key without reusing a nonce.
+ *
+ * The client lists the modes it supports in its SetUserPublicKey request and
+ * the server names the one it picked in SetServerSharedKey. A peer that
+ * lists none only knows AES_CBC.
+ */
+public enum CipherMode {
+    AES_CBC(0),
+    AES_GCM(1);
+
+    /** The modes this build supports, most preferred first */
+    public static final CipherMode[] PREFERRED = {AES_GCM, AES_CBC};
+
+    private final int id;
+
+    private CipherMode(int id) {
+        this.id = id;
+    }
+
+    /**
+     * @return The id sent during the key exchange
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @param id A mode id
+     * @return The mode, or null if the id is unknown
+     */
+    public static CipherMode fromId(int id) {
+        for (CipherMode mode : values()) {
+            if (mode.id == id) {
+                return mode;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the mode to use with a peer
+     *
+     * @param offered The ids of the modes the peer supports
+     * @return The most preferred mode the peer supports
+     */
+    public static CipherMode negotiate(Collection<Integer> offered) {
+        for (CipherMode mode : PREFERRED) {
+            if (offered.contains(mode.id)) {
+                return mode;
+            }
+        }
+        return AES_CBC;
+    }
+}
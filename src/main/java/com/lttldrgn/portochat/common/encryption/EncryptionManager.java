@@ -16,31 +16,40 @@
  */
 package com.lttldrgn.portochat.common.encryption;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.InvalidParameterSpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyAgreement;
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import com.lttldrgn.portochat.common.Util;
@@ -57,8 +66,14 @@ public class EncryptionManager {
             Logger.getLogger(Logger.class.getName());
     private static EncryptionManager instance = null;
     private SecretKey serverSecretKey = null; // used for clients to store in
+    private volatile SessionCipher serverCipher = null; // used for clients to store in
     private KeyPair clientKeyPair = null;
+    private final Map<String, ResumptionTicket> resumptionTickets = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
     private final boolean DEBUG = false;
+    private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    /** The length of a session resumption nonce */
+    private static final int NONCE_LENGTH = 16;
     
     /**
      * Private constructor
@@ -103,6 +118,159 @@ public class EncryptionManager {
         return secretKey;
     }
 
+    /**
+     * Generates a fresh key pair for a Diffie-Hellman key exchange. A new
+     * pair is used for every connection.
+     * 
+     * @param keyExchange The Diffie-Hellman exchange
+     * @return The key pair (can be null if an error occurred)
+     */
+    public KeyPair generateKeyShare(KeyExchange keyExchange) {
+        KeyPair keyPair = null;
+        try {
+            keyPair = keyExchange.createKeyPairGenerator().generateKeyPair();
+        } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException ex) {
+            logger.log(Level.SEVERE, "Unable to generate " + keyExchange
+                    + " key share!", ex);
+        }
+
+        return keyPair;
+    }
+
+    /**
+     * Derives the session key of a Diffie-Hellman key exchange. The key is
+     * the first 128 bits of a SHA-256 hash of the shared secret followed by
+     * the client's and the server's encoded public keys, so both sides
+     * arrive at the same key and it is bound to the keys that were sent.
+     * 
+     * @param keyExchange The Diffie-Hellman exchange
+     * @param privateKey This side's private key
+     * @param clientEncodedKey The client's encoded public key
+     * @param serverEncodedKey The server's encoded public key
+     * @param server true if this is the server's end of the session
+     * @return The secret key (can be null if an error occurred)
+     */
+    public SecretKey deriveSharedKey(KeyExchange keyExchange, PrivateKey privateKey,
+            byte[] clientEncodedKey, byte[] serverEncodedKey, boolean server) {
+        SecretKey secretKey = null;
+        try {
+            KeyFactory keyFactory = KeyFactory.getInstance(keyExchange.getKeyAlgorithm());
+            PublicKey peerKey = keyFactory.generatePublic(new X509EncodedKeySpec(
+                    server ? clientEncodedKey : serverEncodedKey));
+            KeyAgreement keyAgreement = KeyAgreement.getInstance(
+                    keyExchange.getAgreementAlgorithm());
+            keyAgreement.init(privateKey);
+            keyAgreement.doPhase(peerKey, true);
+            byte[] sharedSecret = keyAgreement.generateSecret();
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(sharedSecret);
+            digest.update(clientEncodedKey);
+            digest.update(serverEncodedKey);
+            byte[] hash = digest.digest();
+            // 128 bits, the same as the keys the server generates
+            secretKey = new SecretKeySpec(hash, 0, 16, "AES");
+            Arrays.fill(sharedSecret, (byte) 0);
+            Arrays.fill(hash, (byte) 0);
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException |
+                InvalidKeyException | IllegalStateException ex) {
+            logger.log(Level.SEVERE, "Unable to derive " + keyExchange
+                    + " session key!", ex);
+        }
+
+        return secretKey;
+    }
+
+    /**
+     * @return A random nonce for session resumption
+     */
+    public byte[] generateNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Creates the proof a client sends with a resumption ticket that it
+     * holds the ticket's key, an HMAC of its nonce keyed with the key
+     * 
+     * @param secretKey The session key when the ticket was issued
+     * @param nonce The client's nonce
+     * @return The binder (can be null if an error occurred)
+     */
+    public byte[] createResumeBinder(SecretKey secretKey, byte[] nonce) {
+        byte[] binder = null;
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secretKey.getEncoded(), "HmacSHA256"));
+            binder = mac.doFinal(nonce);
+        } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+            logger.log(Level.SEVERE, "Unable to create resumption binder!", ex);
+        }
+
+        return binder;
+    }
+
+    /**
+     * Checks the proof sent with a resumption ticket
+     * 
+     * @param secretKey The key sealed in the ticket
+     * @param nonce The client's nonce
+     * @param binder The client's binder
+     * @return true if the client holds the key
+     */
+    public boolean verifyResumeBinder(SecretKey secretKey, byte[] nonce, byte[] binder) {
+        byte[] expected = createResumeBinder(secretKey, nonce);
+        return expected != null && MessageDigest.isEqual(expected, binder);
+    }
+
+    /**
+     * Derives the key of a resumed session from the key sealed in its ticket
+     * and the nonces of both sides, so a resumed session never reuses a key
+     * 
+     * @param secretKey The key sealed in the ticket
+     * @param clientNonce The client's nonce
+     * @param serverNonce The server's nonce
+     * @return The secret key (can be null if an error occurred)
+     */
+    public SecretKey deriveResumedKey(SecretKey secretKey, byte[] clientNonce,
+            byte[] serverNonce) {
+        SecretKey resumedKey = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(secretKey.getEncoded());
+            digest.update(clientNonce);
+            digest.update(serverNonce);
+            byte[] hash = digest.digest();
+            resumedKey = new SecretKeySpec(hash, 0, 16, "AES");
+            Arrays.fill(hash, (byte) 0);
+        } catch (NoSuchAlgorithmException ex) {
+            logger.log(Level.SEVERE, "Unable to derive resumed session key!", ex);
+        }
+
+        return resumedKey;
+    }
+
+    /**
+     * Creates the cipher state for a session
+     * 
+     * @param secretKey The key shared by the client and server
+     * @param mode The mode agreed during the key exchange
+     * @param server true if this is the server's end of the session
+     * @return The session cipher (can be null if an error occurred)
+     */
+    public SessionCipher createSessionCipher(SecretKey secretKey,
+            CipherMode mode, boolean server) {
+        SessionCipher sessionCipher = null;
+        try {
+            sessionCipher = new SessionCipher(secretKey, mode, server);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException ex) {
+            logger.log(Level.SEVERE, "Unable to create " + mode + " cipher!", ex);
+        }
+
+        return sessionCipher;
+    }
+
     /**
      * Encrypts a byte array encryption
      * 
@@ -118,7 +286,7 @@ public class EncryptionManager {
         }
 
         try {
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
             cipher.init(Cipher.ENCRYPT_MODE, secretKey);
             byte[] encryptedByteArray = cipher.doFinal(data);
 
@@ -154,11 +322,10 @@ public class EncryptionManager {
      * 
      * @param secretKey Key to decode message
      * @param encryptedBytes The encrypted bytes to be decrypted
-     * @return The decrypted byte array (can be null if an error occurred)
+     * @return The decrypted byte array, holding whatever was decrypted
+     *          before an error if one occurred
      */
     public byte[] decrypt(SecretKey secretKey, byte[] encryptedBytes) {
-        byte[] data = new byte[0];
-
         if (logger.isLoggable(Level.FINEST)) {
             logger.log(Level.FINEST,"\ndecrypt(encryptedData) ->"
                     + "\nencryptedData:[{0}]:{1}", 
@@ -166,31 +333,11 @@ public class EncryptionManager {
                         encryptedBytes.length,
                         Util.byteArrayToHexString(encryptedBytes)});
         }
-        
-        try {
-            int remainingBytes = encryptedBytes.length;
-            while (remainingBytes > 0) {
-                EncryptedData encryptedData = new EncryptedData();
-                encryptedData.setData(encryptedBytes);
-
-                // Get the remaining bytes to be decoded
-                remainingBytes -= encryptedData.getParsedLength();
-                byte[] remainingEncryptedBytes = new byte[remainingBytes];
-                System.arraycopy(encryptedBytes, encryptedData.getParsedLength(), 
-                        remainingEncryptedBytes, 0, remainingBytes);
-                encryptedBytes = remainingEncryptedBytes;
-                
-                IvParameterSpec iv = new IvParameterSpec(encryptedData.getIvBytes());
-                Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-                cipher.init(Cipher.DECRYPT_MODE, secretKey, iv);
-                data = Util.concat(data, 
-                        cipher.doFinal(encryptedData.getEncodedData()));                
-            }
-            
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | 
-                InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException ex) {
-            logger.log(Level.SEVERE, "Unable to decrypt data", ex);
-        }
+
+        // the plain text is never longer than the cipher text
+        ByteBuffer output = ByteBuffer.allocate(encryptedBytes.length);
+        decrypt(secretKey, ByteBuffer.wrap(encryptedBytes), output);
+        byte[] data = Arrays.copyOf(output.array(), output.limit());
 
         if (logger.isLoggable(Level.FINEST)) {
             logger.log(Level.FINEST, "data:{0}", Util.byteArrayToHexString(data));
@@ -199,6 +346,36 @@ public class EncryptionManager {
         return data;
     }
 
+    /**
+     * Decrypts the remaining bytes of a buffer holding length prefixed IV and
+     * cipher text records, as written by {@link #encrypt(SecretKey, byte[])}.
+     * The records are decrypted in place, one after another, into the
+     * output. The decrypted data is never longer than the encrypted data, so
+     * an output with that much room is always enough.
+     * 
+     * @param secretKey Key to decode message
+     * @param encrypted The encrypted records, consumed by this method
+     * @param output The buffer to decrypt into, flipped ready to read after
+     * @return true if all the records were decrypted
+     */
+    public boolean decrypt(SecretKey secretKey, ByteBuffer encrypted, ByteBuffer output) {
+        boolean decrypted = false;
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+            SessionCipher.decryptRecords(cipher, secretKey,
+                    new byte[SessionCipher.IV_LENGTH], encrypted, output);
+            decrypted = true;
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | 
+                InvalidAlgorithmParameterException | IllegalBlockSizeException | 
+                BadPaddingException | ShortBufferException | BufferUnderflowException |
+                BufferOverflowException ex) {
+            logger.log(Level.SEVERE, "Unable to decrypt data", ex);
+        }
+        output.flip();
+
+        return decrypted;
+    }
+
     /**
      * Client's use this method to store the secret key received from the server.
      * 
@@ -206,6 +383,30 @@ public class EncryptionManager {
      */
     public void setServerSecretKey(SecretKey serverSecretKey) {
         this.serverSecretKey = serverSecretKey;
+        if (serverSecretKey == null) {
+            serverCipher = null;
+        }
+    }
+
+    /**
+     * Client's use this method to store the session created from the key
+     * and mode received from the server.
+     * 
+     * @param serverCipher The session cipher, or null when disconnected
+     */
+    public void setServerCipher(SessionCipher serverCipher) {
+        this.serverCipher = serverCipher;
+        serverSecretKey = (serverCipher != null) ? serverCipher.getSecretKey() : null;
+    }
+
+    /**
+     * Client's use this method to retrieve the session cipher used to talk
+     * to the server.
+     * 
+     * @return The server's session cipher
+     */
+    public SessionCipher getServerCipher() {
+        return serverCipher;
     }
 
     /**
@@ -218,6 +419,28 @@ public class EncryptionManager {
         return serverSecretKey;
     }
 
+    /**
+     * Client's use this method to keep the latest ticket a server issued,
+     * replacing any earlier one.
+     * 
+     * @param server The server's address and port
+     * @param ticket The ticket
+     */
+    public void setResumptionTicket(String server, ResumptionTicket ticket) {
+        resumptionTickets.put(server, ticket);
+    }
+
+    /**
+     * Client's use this method to take the ticket to resume a session with.
+     * The ticket is removed, as a new one is issued once the session resumes.
+     * 
+     * @param server The server's address and port
+     * @return The ticket, or null if the client has none for the server
+     */
+    public ResumptionTicket takeResumptionTicket(String server) {
+        return resumptionTickets.remove(server);
+    }
+
     /**
      * Generates a client key
      * 
@@ -388,7 +611,6 @@ public class EncryptionManager {
 
         private byte[] ivBytes = null;
         private byte[] encodedData = null;
-        int parsedLength = -1;
         
         private EncryptedData() {
         }
@@ -407,43 +629,12 @@ public class EncryptionManager {
             return baos.toByteArray();
         }
 
-        private void setData(byte[] data) {
-
-            DataInputStream dis = new DataInputStream(
-                    new ByteArrayInputStream(data));
-
-            try {
-                int ivBytesLength = dis.readInt();
-                ivBytes = new byte[ivBytesLength];
-                dis.read(ivBytes);
-                int encodedDataLength = dis.readInt();
-                encodedData = new byte[encodedDataLength];
-                dis.read(encodedData);
-                parsedLength = 4/*ivBytesLength*/ + ivBytesLength + 
-                        4/*encodedDataLength*/ + encodedDataLength;
-            } catch (IOException ex) {
-                logger.log(Level.SEVERE, "Unable to set data from EncryptedData", ex);
-            }
-        }
-
-        private byte[] getEncodedData() {
-            return encodedData;
-        }
-
         private void setEncryptedByteArray(byte[] encodedData) {
             this.encodedData = encodedData;
         }
 
-        private byte[] getIvBytes() {
-            return ivBytes;
-        }
-
         private void setIvBytes(byte[] ivBytes) {
             this.ivBytes = ivBytes;
         }
-
-        public int getParsedLength() {
-            return parsedLength;
-        }
     }
 }
@@ -0,0 +1,127 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.common.encryption;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * The ways a client and server can agree on a session key.
+ *
+ * With RSA the client sends its public key in a SetUserPublicKey request and
+ * the server answers with a SetServerSharedKey holding a key it generated,
+ * encrypted with the client's public key.
+ *
+ * With the Diffie-Hellman exchanges the client sends a fresh public key in
+ * a SetUserKeyShare request and the server answers with a SetServerSharedKey
+ * holding a fresh public key of its own. Both sides then derive the session
+ * key from the shared secret and the two public keys, so the key itself is
+ * never sent. The server lists the exchanges it accepts in its
+ * ServerCapabilities response, and the client falls back to RSA if it
+ * supports none of them.
+ */
+public enum KeyExchange {
+    RSA(0, "RSA", null),
+    X25519(1, "X25519", "X25519"),
+    ECDH_P256(2, "EC", "ECDH");
+
+    /** The Diffie-Hellman exchanges, most preferred first */
+    public static final KeyExchange[] PREFERRED = {X25519, ECDH_P256};
+
+    private final int id;
+    private final String keyAlgorithm;
+    private final String agreementAlgorithm;
+    private volatile Boolean available = null;
+
+    private KeyExchange(int id, String keyAlgorithm, String agreementAlgorithm) {
+        this.id = id;
+        this.keyAlgorithm = keyAlgorithm;
+        this.agreementAlgorithm = agreementAlgorithm;
+    }
+
+    /**
+     * @return The id sent during the key exchange
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return The algorithm name of the exchange's keys
+     */
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    /**
+     * @return The KeyAgreement algorithm name, or null for RSA
+     */
+    public String getAgreementAlgorithm() {
+        return agreementAlgorithm;
+    }
+
+    /**
+     * Creates a generator for the exchange's key pairs
+     *
+     * @return The initialized generator
+     * @throws NoSuchAlgorithmException if the JRE lacks the algorithm
+     * @throws InvalidAlgorithmParameterException if the JRE lacks the curve
+     */
+    KeyPairGenerator createKeyPairGenerator()
+            throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(keyAlgorithm);
+        if (this == ECDH_P256) {
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+        }
+        return generator;
+    }
+
+    /**
+     * X25519 needs Java 11, so whether an exchange can be used depends on
+     * the JRE
+     *
+     * @return true if this JRE supports the exchange
+     */
+    public boolean isAvailable() {
+        if (available == null) {
+            boolean supported;
+            try {
+                createKeyPairGenerator();
+                supported = true;
+            } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException ex) {
+                supported = false;
+            }
+            available = supported;
+        }
+        return available;
+    }
+
+    /**
+     * @param id An exchange id
+     * @return The exchange, or null if the id is unknown
+     */
+    public static KeyExchange fromId(int id) {
+        for (KeyExchange keyExchange : values()) {
+            if (keyExchange.id == id) {
+                return keyExchange;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.common.encryption;
+
+import javax.crypto.SecretKey;
+
+/**
+ * A ticket a client holds to resume its session with a server. The ticket
+ * itself is sealed by the server; the client keeps the session key that was
+ * in use when it was issued, which it must prove it holds to resume.
+ */
+public class ResumptionTicket {
+
+    private final byte[] ticket;
+    private final SecretKey secretKey;
+    private final CipherMode mode;
+    private final String userName;
+
+    /**
+     * Public constructor
+     *
+     * @param ticket The sealed ticket
+     * @param secretKey The session key when the ticket was issued
+     * @param mode The session's cipher mode
+     * @param userName The user's name when the ticket was issued
+     */
+    public ResumptionTicket(byte[] ticket, SecretKey secretKey, CipherMode mode,
+            String userName) {
+        this.ticket = ticket;
+        this.secretKey = secretKey;
+        this.mode = mode;
+        this.userName = userName;
+    }
+
+    /**
+     * @return The sealed ticket
+     */
+    public byte[] getTicket() {
+        return ticket;
+    }
+
+    /**
+     * @return The session key when the ticket was issued
+     */
+    public SecretKey getSecretKey() {
+        return secretKey;
+    }
+
+    /**
+     * @return The session's cipher mode
+     */
+    public CipherMode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return The user's name when the ticket was issued
+     */
+    public String getUserName() {
+        return userName;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.common.encryption;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import com.lttldrgn.portochat.common.protocol.WireFormat;
+
+/**
+ * Encrypts and decrypts the messages of a single session. The ciphers are
+ * created once and reinitialized for each message, and messages are
+ * encrypted and decrypted straight between the caller's buffers.
+ *
+ * One thread may encrypt while another decrypts, but each direction must
+ * be used by one thread at a time, in the order the messages are sent.
+ */
+public class SessionCipher {
+
+    private static final Logger logger =
+            Logger.getLogger(SessionCipher.class.getName());
+    private static final String CBC_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+    /** The length of an AES initialization vector */
+    static final int IV_LENGTH = 16;
+    /** The length of an AES block */
+    private static final int BLOCK_LENGTH = 16;
+    /** The length of the counter sent with each GCM message */
+    private static final int COUNTER_LENGTH = 8;
+    /** The length of a GCM nonce, a direction prefix and the counter */
+    private static final int NONCE_LENGTH = 12;
+    /** The length of a GCM authentication tag */
+    private static final int TAG_LENGTH = 16;
+    /** Nonce prefixes, so the two directions never share a nonce */
+    private static final int CLIENT_NONCE_PREFIX = 0;
+    private static final int SERVER_NONCE_PREFIX = 1;
+
+    private final SecretKey secretKey;
+    private final CipherMode mode;
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+    private final Object encryptLock = new Object();
+    private final Object decryptLock = new Object();
+    private final byte[] encryptIv;
+    private final byte[] decryptIv;
+    private final SecureRandom random;
+    private long sendCounter = 0;
+    private long receiveCounter = -1;
+
+    /**
+     * Package constructor, sessions are created by the EncryptionManager
+     *
+     * @param secretKey The key shared with the peer
+     * @param mode The mode agreed with the peer
+     * @param server true if this is the server's end of the session
+     * @throws NoSuchAlgorithmException if the mode isn't available
+     * @throws NoSuchPaddingException if the mode isn't available
+     */
+    SessionCipher(SecretKey secretKey, CipherMode mode, boolean server)
+            throws NoSuchAlgorithmException, NoSuchPaddingException {
+        this.secretKey = secretKey;
+        this.mode = mode;
+        String transformation = (mode == CipherMode.AES_GCM)
+                ? GCM_TRANSFORMATION : CBC_TRANSFORMATION;
+        encryptCipher = Cipher.getInstance(transformation);
+        decryptCipher = Cipher.getInstance(transformation);
+        if (mode == CipherMode.AES_GCM) {
+            encryptIv = new byte[NONCE_LENGTH];
+            decryptIv = new byte[NONCE_LENGTH];
+            putInt(encryptIv, server ? SERVER_NONCE_PREFIX : CLIENT_NONCE_PREFIX);
+            putInt(decryptIv, server ? CLIENT_NONCE_PREFIX : SERVER_NONCE_PREFIX);
+            random = null;
+        } else {
+            encryptIv = new byte[IV_LENGTH];
+            decryptIv = new byte[IV_LENGTH];
+            random = new SecureRandom();
+        }
+    }
+
+    /**
+     * @return The key shared with the peer
+     */
+    public SecretKey getSecretKey() {
+        return secretKey;
+    }
+
+    /**
+     * @return The mode agreed with the peer
+     */
+    public CipherMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Gets the length of data once encrypted and laid out for the wire format
+     *
+     * @param length The length of the data
+     * @param wireFormat The wire format
+     * @return The encrypted length
+     */
+    public int getEncryptedLength(int length, WireFormat wireFormat) {
+        if (mode == CipherMode.AES_GCM) {
+            return COUNTER_LENGTH + length + TAG_LENGTH;
+        }
+        // PKCS5 always pads, by a whole block if the data fills the last one
+        int cipherLength = (length / BLOCK_LENGTH + 1) * BLOCK_LENGTH;
+        if (wireFormat == WireFormat.V1) {
+            // IV and cipher text records each have an int length
+            return 4 + IV_LENGTH + 4 + cipherLength;
+        }
+        return IV_LENGTH + cipherLength;
+    }
+
+    /**
+     * Encrypts the remaining bytes of a buffer into the output buffer, laid
+     * out for the wire format
+     *
+     * @param data The bytes to encrypt, consumed by this method
+     * @param output The buffer to encrypt into, with room for
+     *          {@link #getEncryptedLength(int, WireFormat)} bytes
+     * @param wireFormat The wire format
+     * @return true if the data was encrypted
+     */
+    public boolean encrypt(ByteBuffer data, ByteBuffer output, WireFormat wireFormat) {
+        boolean encrypted = false;
+        synchronized (encryptLock) {
+            try {
+                AlgorithmParameterSpec spec;
+                if (mode == CipherMode.AES_GCM) {
+                    long counter = sendCounter++;
+                    putLong(encryptIv, NONCE_LENGTH - COUNTER_LENGTH, counter);
+                    output.putLong(counter);
+                    spec = new GCMParameterSpec(TAG_LENGTH * 8, encryptIv);
+                } else {
+                    random.nextBytes(encryptIv);
+                    if (wireFormat == WireFormat.V1) {
+                        output.putInt(IV_LENGTH);
+                        output.put(encryptIv);
+                        output.putInt(getEncryptedLength(data.remaining(), wireFormat)
+                                - 4 - IV_LENGTH - 4);
+                    } else {
+                        output.put(encryptIv);
+                    }
+                    spec = new IvParameterSpec(encryptIv);
+                }
+                encryptCipher.init(Cipher.ENCRYPT_MODE, secretKey, spec);
+                doFinal(encryptCipher, data, output);
+                encrypted = true;
+            } catch (InvalidKeyException | InvalidAlgorithmParameterException |
+                    IllegalBlockSizeException | BadPaddingException |
+                    ShortBufferException | BufferOverflowException ex) {
+                logger.log(Level.SEVERE, "Unable to encrypt message!", ex);
+            }
+        }
+
+        return encrypted;
+    }
+
+    /**
+     * Decrypts the remaining bytes of a buffer laid out for the wire format
+     * into the output buffer. The decrypted data is never longer than the
+     * encrypted data, so an output with that much room is always enough.
+     *
+     * @param encrypted The encrypted bytes, consumed by this method
+     * @param output The buffer to decrypt into, flipped ready to read after
+     * @param wireFormat The wire format
+     * @return true if the data was decrypted
+     */
+    public boolean decrypt(ByteBuffer encrypted, ByteBuffer output, WireFormat wireFormat) {
+        boolean decrypted = false;
+        synchronized (decryptLock) {
+            try {
+                if (mode == CipherMode.AES_GCM) {
+                    long counter = encrypted.getLong();
+                    if (counter > receiveCounter) {
+                        putLong(decryptIv, NONCE_LENGTH - COUNTER_LENGTH, counter);
+                        decryptCipher.init(Cipher.DECRYPT_MODE, secretKey,
+                                new GCMParameterSpec(TAG_LENGTH * 8, decryptIv));
+                        doFinal(decryptCipher, encrypted, output);
+                        receiveCounter = counter;
+                        decrypted = true;
+                    } else {
+                        logger.log(Level.SEVERE, "Discarding replayed message {0}",
+                                counter);
+                    }
+                } else if (wireFormat == WireFormat.V1) {
+                    decryptRecords(decryptCipher, secretKey, decryptIv,
+                            encrypted, output);
+                    decrypted = true;
+                } else {
+                    encrypted.get(decryptIv);
+                    decryptCipher.init(Cipher.DECRYPT_MODE, secretKey,
+                            new IvParameterSpec(decryptIv));
+                    doFinal(decryptCipher, encrypted, output);
+                    decrypted = true;
+                }
+            } catch (InvalidKeyException | InvalidAlgorithmParameterException |
+                    IllegalBlockSizeException | BadPaddingException |
+                    ShortBufferException | BufferUnderflowException |
+                    BufferOverflowException ex) {
+                logger.log(Level.SEVERE, "Unable to decrypt data", ex);
+            }
+        }
+        output.flip();
+
+        return decrypted;
+    }
+
+    /**
+     * Decrypts V1 records, each a length prefixed IV followed by length
+     * prefixed cipher text, until the encrypted bytes are used up. The
+     * records are read in place and decrypted one after another into the
+     * output.
+     *
+     * @param cipher An AES/CBC cipher to initialize for each record
+     * @param secretKey Key to decode the records
+     * @param iv Scratch space for the IV of {@link #IV_LENGTH} bytes
+     * @param encrypted The encrypted bytes, consumed by this method
+     * @param output The buffer to decrypt into
+     */
+    static void decryptRecords(Cipher cipher, SecretKey secretKey, byte[] iv,
+            ByteBuffer encrypted, ByteBuffer output)
+            throws InvalidKeyException, InvalidAlgorithmParameterException,
+            IllegalBlockSizeException, BadPaddingException, ShortBufferException {
+        int end = encrypted.limit();
+        while (encrypted.hasRemaining()) {
+            int ivLength = encrypted.getInt();
+            if (ivLength != IV_LENGTH) {
+                throw new InvalidAlgorithmParameterException("Invalid IV length: "
+                        + ivLength);
+            }
+            encrypted.get(iv);
+            int cipherLength = encrypted.getInt();
+            if (cipherLength < 0 || cipherLength > encrypted.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
+            encrypted.limit(encrypted.position() + cipherLength);
+            try {
+                doFinal(cipher, encrypted, output);
+            } finally {
+                encrypted.limit(end);
+            }
+        }
+    }
+
+    /**
+     * Runs the cipher over the remaining input, using the backing arrays
+     * when both buffers have them since the JCE copies otherwise
+     */
+    private static void doFinal(Cipher cipher, ByteBuffer input, ByteBuffer output)
+            throws IllegalBlockSizeException, BadPaddingException,
+            ShortBufferException {
+        if (input.hasArray() && output.hasArray()) {
+            // the cipher only checks the room left in the whole array
+            if (cipher.getOutputSize(input.remaining()) > output.remaining()) {
+                throw new ShortBufferException();
+            }
+            int count = cipher.doFinal(input.array(),
+                    input.arrayOffset() + input.position(), input.remaining(),
+                    output.array(), output.arrayOffset() + output.position());
+            input.position(input.limit());
+            output.position(output.position() + count);
+        } else {
+            cipher.doFinal(input, output);
+        }
+    }
+
+    private static void putInt(byte[] bytes, int value) {
+        for (int i = 0; i < 4; i++) {
+            bytes[i] = (byte) (value >>> (24 - 8 * i));
+        }
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.common.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of heap buffers for incoming frames, so reading a message doesn't
+ * allocate an array for it. Buffers are kept in power of two size classes;
+ * frames larger than the biggest class get a buffer of their own that isn't
+ * pooled.
+ *
+ * A buffer must be released once, by the thread that is done with it, and
+ * not used afterwards.
+ */
+public class BufferPool {
+
+    /** The smallest buffer handed out */
+    public static final int MIN_BUFFER_SIZE = 512;
+    /** The largest buffer that is pooled */
+    public static final int MAX_POOLED_SIZE = 1024 * 1024;
+    /** Buffers kept for reuse in each size class */
+    private static final int BUFFERS_PER_CLASS = 64;
+
+    private static BufferPool instance = null;
+
+    private final ArrayDeque<ByteBuffer>[] sizeClasses;
+    private final AtomicLong allocatedCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+
+    /**
+     * Private constructor
+     */
+    private BufferPool() {
+        int classCount = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE)
+                - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE) + 1;
+        @SuppressWarnings("unchecked")
+        ArrayDeque<ByteBuffer>[] classes = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[classCount];
+        sizeClasses = classes;
+        for (int i = 0; i < classCount; i++) {
+            sizeClasses[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * @return The singleton instance of the BufferPool
+     */
+    public synchronized static BufferPool getInstance() {
+        if (instance == null) {
+            instance = new BufferPool();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Gets a buffer positioned at zero with its limit at the length
+     *
+     * @param length The number of bytes needed
+     * @return A heap buffer
+     */
+    public ByteBuffer acquire(int length) {
+        int sizeClass = getSizeClass(length);
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0) {
+            ArrayDeque<ByteBuffer> buffers = sizeClasses[sizeClass];
+            synchronized (buffers) {
+                buffer = buffers.poll();
+            }
+        }
+        if (buffer == null) {
+            allocatedCount.incrementAndGet();
+            buffer = ByteBuffer.allocate(
+                    (sizeClass >= 0) ? MIN_BUFFER_SIZE << sizeClass : length);
+        } else {
+            reusedCount.incrementAndGet();
+        }
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer from {@link #acquire(int)} to the pool
+     *
+     * @param buffer The buffer, may be null
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.hasArray()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        int sizeClass = getSizeClass(capacity);
+        if (sizeClass >= 0 && (MIN_BUFFER_SIZE << sizeClass) == capacity) {
+            ArrayDeque<ByteBuffer> buffers = sizeClasses[sizeClass];
+            synchronized (buffers) {
+                if (buffers.size() < BUFFERS_PER_CLASS) {
+                    buffers.push(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param length A buffer length
+     * @return The index of the smallest size class holding the length, or -1
+     *          if the length isn't pooled
+     */
+    private static int getSizeClass(int length) {
+        if (length > MAX_POOLED_SIZE) {
+            return -1;
+        }
+        int size = Math.max(length, MIN_BUFFER_SIZE);
+        int bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return bits - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * @return The number of buffers allocated because none could be reused
+     */
+    public long getAllocatedCount() {
+        return allocatedCount.get();
+    }
+
+    /**
+     * @return The number of buffers handed out again after being released
+     */
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool> allocated: " + getAllocatedCount()
+                + " reused: " + getReusedCount();
+    }
+}
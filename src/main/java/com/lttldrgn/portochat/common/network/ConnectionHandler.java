@@ -17,12 +17,24 @@
 package com.lttldrgn.portochat.common.network;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import com.lttldrgn.portochat.common.User;
@@ -35,6 +47,8 @@ import com.lttldrgn.portochat.common.network.handler.BufferHandler;
 import com.lttldrgn.portochat.common.network.handler.ChatHandler;
 import com.lttldrgn.portochat.common.protocol.ProtoMessage;
 import com.lttldrgn.portochat.common.protocol.ProtoUtil;
+import com.lttldrgn.portochat.common.protocol.WireFormat;
+import com.lttldrgn.portochat.server.Session;
 import com.lttldrgn.portochat.server.UserDatabase;
 
 /**
@@ -49,12 +63,28 @@ public class ConnectionHandler {
     
     private Socket clientSocket = null;
     private List<NetListener> listeners = null;
-    private LinkedBlockingQueue<NetData> writeQueue = null;
+    private final Map<Socket, OutboundQueue> outboundQueues = new ConcurrentHashMap<>();
+    /** Messages written by a drain before it yields to other sockets */
+    private static final int DRAIN_BATCH_SIZE = 64;
+    /** Messages a socket may have waiting to be handled before reading stops */
+    private static final int MAX_PENDING_INCOMING = 64;
+
+    private OutboundBudget outboundBudget = new OutboundBudget();
+    private final Map<Socket, WireFormat> inboundWireFormats = new ConcurrentHashMap<>();
+    /** Sockets that were offered a new format and may switch to it any frame */
+    private final Set<Socket> pendingInboundSwitches = ConcurrentHashMap.newKeySet();
+    private final Map<Socket, SerialExecutor> sessionExecutors = new ConcurrentHashMap<>();
+    private volatile Executor workerPool = null;
+    private final StageStats incomingStats = new StageStats("incoming");
+    private final StageStats outgoingStats = new StageStats("outgoing");
+    private volatile int maxFrameLength = WireFormat.DEFAULT_MAX_FRAME_LENGTH;
+    protected final BufferPool bufferPool = BufferPool.getInstance();
 
     private IncomingThread incomingThread = null;
-    private OutgoingThread outgoingThread = null;
+    private ExecutorService writerPool = null;
     protected UserDatabase userDatabase = null;
-    private User serverUser = null;
+    /** The handlers of a client's connection to the server */
+    private List<BufferHandler> clientHandlers = null;
     private volatile boolean isClientSocket = false;
 
     /*
@@ -64,7 +94,6 @@ public class ConnectionHandler {
      */
     public ConnectionHandler(String name) {
         this.name = name;
-        writeQueue = new LinkedBlockingQueue<>();
         userDatabase = UserDatabase.getInstance();
     }
 
@@ -78,11 +107,9 @@ public class ConnectionHandler {
      */
     public boolean connect(String host, int port) throws IOException {
 
-        serverUser = new User();
-        serverUser.setHost(host);
-
         // TODO cleanup old handlers on reconnect?
-        serverUser.addHandler(new ChatHandler());
+        clientHandlers = new CopyOnWriteArrayList<>();
+        clientHandlers.add(new ChatHandler());
         isClientSocket = true;
         clientSocket = new Socket(host, port);
         startProcessingThreads(clientSocket);
@@ -94,10 +121,10 @@ public class ConnectionHandler {
      * Calling this method disconnects this socket from the remote host
      */
     public void disconnect() {
-        if (outgoingThread != null) {
-            outgoingThread.interrupt();
-        }
         cleanup();
+        if (writerPool != null) {
+            writerPool.shutdown();
+        }
     }
 
     /**
@@ -106,13 +133,9 @@ public class ConnectionHandler {
      * @param socket The socket
      */
     protected void startProcessingThreads(Socket socket) {
+        addOutboundQueue(socket);
         incomingThread = new IncomingThread(socket);
         incomingThread.start();
-
-        if (outgoingThread == null) {
-            outgoingThread = new OutgoingThread();
-            outgoingThread.start();
-        }
     }
 
     /*
@@ -122,12 +145,226 @@ public class ConnectionHandler {
      * @param defaultData the data to be sent
      */
     public void writeData(Socket socket, DefaultData defaultData) {
+        OutboundQueue queue = outboundQueues.get(socket);
+        WireFormat wireFormat = (queue != null) ? queue.getWireFormat() : WireFormat.V1;
+        enqueue(createNetData(socket, defaultData, wireFormat));
+    }
+
+    /**
+     * This method writes the data to the specified socket, then switches
+     * everything written to the socket after it to another wire format.
+     * 
+     * @param socket The socket
+     * @param defaultData the last data to be sent in the current format
+     * @param wireFormat the format of all later data
+     */
+    public void switchOutboundWireFormat(Socket socket, DefaultData defaultData,
+            WireFormat wireFormat) {
+        OutboundQueue queue = outboundQueues.get(socket);
+        WireFormat current = (queue != null) ? queue.getWireFormat() : WireFormat.V1;
+        NetData netData = createNetData(socket, defaultData, current);
+        if (netData != null) {
+            netData.nextWireFormat = wireFormat;
+            if (getInboundWireFormat(socket) != wireFormat) {
+                // the peer may answer in the new format
+                pendingInboundSwitches.add(socket);
+            }
+            enqueue(netData);
+        }
+    }
+
+    /**
+     * This method writes the same data to many sockets. The data is only
+     * serialized once and the bytes are shared by the sockets' queues, so
+     * only the per socket handling such as encryption is repeated.
+     * 
+     * @param sockets The sockets
+     * @param defaultData the data to be sent
+     */
+    public void broadcastData(Collection<Socket> sockets, DefaultData defaultData) {
+        if (sockets == null || sockets.isEmpty()) {
+            return;
+        }
+        defaultData.populate();
+        // Encode once per wire format in use
+        Map<WireFormat, NetData> encodings = new EnumMap<>(WireFormat.class);
+        for (Socket socket : sockets) {
+            broadcastTo(socket, defaultData, encodings);
+        }
+    }
+
+    /**
+     * This method writes the same data to the sockets of many sessions, as
+     * {@link #broadcastData(Collection, DefaultData)} does.
+     * 
+     * @param sessions The sessions, an array this method doesn't change
+     * @param excluded A session not to send the data to, or null
+     * @param defaultData the data to be sent
+     */
+    public void broadcastData(Session[] sessions, Session excluded,
+            DefaultData defaultData) {
+        if (sessions == null || sessions.length == 0) {
+            return;
+        }
+        defaultData.populate();
+        Map<WireFormat, NetData> encodings = new EnumMap<>(WireFormat.class);
+        for (Session session : sessions) {
+            if (session != excluded) {
+                broadcastTo(session.getSocket(), defaultData, encodings);
+            }
+        }
+    }
+
+    /**
+     * Queues broadcast data for a socket, encoding it the first time its
+     * wire format comes up
+     * 
+     * @param socket The socket
+     * @param defaultData the data to be sent, already populated
+     * @param encodings The data encoded so far, by wire format
+     */
+    private void broadcastTo(Socket socket, DefaultData defaultData,
+            Map<WireFormat, NetData> encodings) {
+        OutboundQueue queue = outboundQueues.get(socket);
+        WireFormat wireFormat = (queue != null) ? queue.getWireFormat() : WireFormat.V1;
+        if (!encodings.containsKey(wireFormat)) {
+            encodings.put(wireFormat, encode(null, defaultData, wireFormat));
+        }
+        NetData encoded = encodings.get(wireFormat);
+        if (encoded != null) {
+            enqueue(encoded.copyFor(socket));
+        }
+    }
+
+    /**
+     * Adds the data to its socket's outbound queue
+     * 
+     * @param netData The data, or null if it couldn't be encoded
+     */
+    private void enqueue(NetData netData) {
+        if (netData == null) {
+            return;
+        }
+        OutboundQueue queue = outboundQueues.get(netData.socket);
+        if (queue == null) {
+            logger.log(Level.FINE, "Dropping data for closed socket {0}", netData.socket);
+            return;
+        }
+        netData.queuedNanos = System.nanoTime();
+        switch (queue.offer(netData)) {
+            case DRAIN_NEEDED:
+                scheduleDrain(queue);
+                break;
+            case DISCONNECT:
+                disconnectSlowConsumer(queue);
+                break;
+            default:
+                break;
+        }
+        if (outboundBudget.getExcessBytes() > 0) {
+            enforceOutboundBudget(queue);
+        }
+    }
+
+    /**
+     * Sheds data from the largest offending outbound queue while all the
+     * queues together hold more than the budget allows. If no queue is large
+     * enough to offend, the data is spread thinly and is shed from the queue
+     * that just grew.
+     * 
+     * @param grown The queue data was just offered to
+     */
+    private void enforceOutboundBudget(OutboundQueue grown) {
+        long excess;
+        while ((excess = outboundBudget.getExcessBytes()) > 0) {
+            OutboundQueue largest = outboundBudget.getLargestOffender();
+            if (largest == null) {
+                largest = grown;
+            }
+            if (largest.getQueuedBytes() == 0) {
+                break;
+            }
+            if (!largest.shed(excess, "server outbound budget exhausted")) {
+                if (largest.getDisconnectReason() != null) {
+                    disconnectSlowConsumer(largest);
+                } else {
+                    // nothing more can be shed
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the socket of a queue that couldn't keep up. The usual
+     * disconnect handling runs once the socket has closed.
+     * 
+     * @param queue The queue of the socket
+     */
+    protected void disconnectSlowConsumer(OutboundQueue queue) {
+        Socket socket = queue.getSocket();
+        reportError(isClientSocket ? null : userDatabase.getUserOfSocket(socket),
+                Level.WARNING, "Disconnecting slow consumer: "
+                + queue.getDisconnectReason(), null);
+        closeSocket(socket);
+    }
+
+    /**
+     * Closes a socket. The usual disconnect handling runs once the socket
+     * has closed.
+     * 
+     * @param socket The socket
+     */
+    public void closeSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Error thrown closing socket", ex);
+        }
+    }
+
+    /**
+     * Serializes the data into a NetData bundle destined for the socket
+     * 
+     * @param socket The socket
+     * @param defaultData the data to be sent
+     * @param wireFormat the format to serialize the data in
+     * @return the NetData bundle, or null if the data is too long for the
+     *          wire format
+     */
+    protected NetData createNetData(Socket socket, DefaultData defaultData,
+            WireFormat wireFormat) {
+        defaultData.populate();
+        return encode(socket, defaultData, wireFormat);
+    }
+
+    /**
+     * Serializes populated data into a NetData bundle destined for the socket
+     * 
+     * @param socket The socket
+     * @param defaultData the data to be sent
+     * @param wireFormat the format to serialize the data in
+     * @return the NetData bundle, or null if the data is too long for the
+     *          wire format
+     */
+    private NetData encode(Socket socket, DefaultData defaultData,
+            WireFormat wireFormat) {
+        int encodedLength = defaultData.getEncodedLength(wireFormat);
+        byte[] frame = defaultData.toFrame(wireFormat);
+        if (frame == null) {
+            logFrameTooLong(encodedLength, wireFormat);
+            return null;
+        }
         NetData netData = new NetData();
         netData.socket = socket;
-        defaultData.populate();
-        netData.data = defaultData.toByteArray();
+        netData.source = defaultData;
+        netData.wireFormat = wireFormat;
+        netData.data = frame;
+        netData.offset = frame.length - encodedLength;
         netData.canBeEncrypted = defaultData.canBeEncrypted();
-        writeQueue.offer(netData);
+        netData.droppable = defaultData.isDroppable();
+        netData.coalesceKey = defaultData.getCoalesceKey();
+        return netData;
     }
     
     /**
@@ -167,8 +404,20 @@ public class ConnectionHandler {
      * @param socket The socket this message came from
      * @param defulatData the data to be sent
      */
-    private void fireIncomingMessage(Socket socket, DefaultData defaultData) {
-        NetEvent e = new NetEvent(socket, defaultData);
+    protected void fireIncomingMessage(Socket socket, DefaultData defaultData) {
+        fireIncomingMessage(socket, defaultData, false);
+    }
+
+    /**
+     * Fires incoming messages
+     * 
+     * @param socket The socket this message is about
+     * @param defaultData the data to be sent
+     * @param local true if the data was made here rather than received
+     */
+    protected void fireIncomingMessage(Socket socket, DefaultData defaultData,
+            boolean local) {
+        NetEvent e = new NetEvent(socket, defaultData, local);
 
         if (listeners != null) {
 
@@ -185,6 +434,203 @@ public class ConnectionHandler {
         return clientSocket;
     }
 
+    /**
+     * Creates the outbound queue for a newly connected socket, and the
+     * executor handling its messages if there is a worker pool
+     * 
+     * @param socket The socket
+     * @return the socket's outbound queue
+     */
+    protected OutboundQueue addOutboundQueue(Socket socket) {
+        OutboundQueue queue = new OutboundQueue(socket, outboundBudget);
+        outboundQueues.put(socket, queue);
+        Executor workers = workerPool;
+        if (workers != null) {
+            sessionExecutors.put(socket, new SerialExecutor(workers,
+                    incomingStats, MAX_PENDING_INCOMING));
+        }
+        return queue;
+    }
+
+    /**
+     * Discards the outbound queue and wire format of a closed socket
+     * 
+     * @param socket The socket
+     */
+    protected void removeOutboundQueue(Socket socket) {
+        inboundWireFormats.remove(socket);
+        pendingInboundSwitches.remove(socket);
+        OutboundQueue queue = outboundQueues.remove(socket);
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    /**
+     * Sets the limits on data waiting to be written. Only queues created
+     * afterwards use the new budget.
+     * 
+     * @param outboundBudget The budget
+     */
+    public void setOutboundBudget(OutboundBudget outboundBudget) {
+        this.outboundBudget = outboundBudget;
+    }
+
+    /**
+     * @return The limits on data waiting to be written
+     */
+    public OutboundBudget getOutboundBudget() {
+        return outboundBudget;
+    }
+
+    /**
+     * Switches the format that data read from the socket is expected in.
+     * Calling this while a message from the socket is being processed
+     * switches every frame after that message.
+     * 
+     * @param socket The socket
+     * @param wireFormat The wire format
+     */
+    public void setInboundWireFormat(Socket socket, WireFormat wireFormat) {
+        inboundWireFormats.put(socket, wireFormat);
+        pendingInboundSwitches.remove(socket);
+    }
+
+    /**
+     * Handles messages on a pool of worker threads instead of the threads
+     * reading the sockets, so costly work such as a key exchange doesn't hold
+     * up reading. Each socket's messages are still handled one at a time and
+     * in the order they arrived. Only sockets connected afterwards use the
+     * pool.
+     * 
+     * @param workerPool The pool, or null to handle messages as they are read
+     */
+    public void setWorkerPool(Executor workerPool) {
+        this.workerPool = workerPool;
+    }
+
+    /**
+     * @return Timings of handling the messages read from the sockets
+     */
+    public StageStats getIncomingStats() {
+        return incomingStats;
+    }
+
+    /**
+     * @return Timings of encoding and writing the queued data
+     */
+    public StageStats getOutgoingStats() {
+        return outgoingStats;
+    }
+
+    /**
+     * @param socket The socket
+     * @return The format that data read from the socket is expected in
+     */
+    public WireFormat getInboundWireFormat(Socket socket) {
+        WireFormat wireFormat = inboundWireFormats.get(socket);
+        return (wireFormat != null) ? wireFormat : WireFormat.V1;
+    }
+
+    /**
+     * @param socket The socket
+     * @return The format that data is written to the socket in
+     */
+    public WireFormat getOutboundWireFormat(Socket socket) {
+        OutboundQueue queue = outboundQueues.get(socket);
+        return (queue != null) ? queue.getWireFormat() : WireFormat.V1;
+    }
+
+    /**
+     * Sets the largest frame that may be read or written. Frames can't
+     * exceed the limit of their wire format regardless.
+     * 
+     * @param maxFrameLength The length in bytes
+     */
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * @return The largest frame that may be read or written
+     */
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * @param socket The socket
+     * @return The outbound queue of the socket, or null if it isn't connected
+     */
+    public OutboundQueue getOutboundQueue(Socket socket) {
+        return outboundQueues.get(socket);
+    }
+
+    /**
+     * @return The outbound queues of all connected sockets
+     */
+    public List<OutboundQueue> getOutboundQueues() {
+        return new ArrayList<>(outboundQueues.values());
+    }
+
+    /**
+     * Schedules a drain of the queue on the writer pool. Each socket has at 
+     * most one drain running, so a socket that is slow to accept data only
+     * holds up its own queue.
+     * 
+     * @param queue The queue to drain
+     */
+    protected void scheduleDrain(OutboundQueue queue) {
+        synchronized (this) {
+            if (writerPool == null) {
+                AtomicInteger writerCount = new AtomicInteger();
+                writerPool = Executors.newCachedThreadPool((Runnable r) -> {
+                    Thread thread = new Thread(r, "Writer-" + writerCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+        writerPool.execute(() -> drain(queue));
+    }
+
+    /**
+     * Writes a batch of data from the queue to its socket, rescheduling 
+     * itself if more data remains.
+     * 
+     * @param queue The queue to drain
+     */
+    private void drain(OutboundQueue queue) {
+        Socket socket = queue.getSocket();
+        NetData netData;
+        int written = 0;
+        try {
+            while (written < DRAIN_BATCH_SIZE && (netData = queue.poll()) != null) {
+                queue.markWritten(processOutgoing(queue, netData));
+                written++;
+            }
+        } catch (IOException ex) {
+            queue.clear();
+            if (isClientSocket) {
+                reportError(null, Level.INFO,
+                    "Closing connection to server due to exception", ex);
+                cleanup();
+            } else {
+                // just log and let the IncomingThread code
+                // clean up the user information
+                reportError(userDatabase.getUserOfSocket(socket), Level.INFO,
+                    "Closing connection to client due to exception", ex);
+            }
+        }
+
+        if (written == DRAIN_BATCH_SIZE && !queue.isEmpty()) {
+            // give other sockets a turn before continuing
+            writerPool.execute(() -> drain(queue));
+        } else if (queue.finishDrain()) {
+            scheduleDrain(queue);
+        }
+    }
+
     /**
      * @return The name of this socket
      */
@@ -196,7 +642,9 @@ public class ConnectionHandler {
      * Cleans up everything after socket is disconnected
      */
     protected synchronized void cleanup() {
-        incomingThread.shutdown();
+        if (incomingThread != null) {
+            incomingThread.shutdown();
+        }
         if (clientSocket != null) {
             try {
                 clientSocket.close();
@@ -207,15 +655,23 @@ public class ConnectionHandler {
             }
         }
 
-        writeQueue.clear();
+        for (OutboundQueue queue : outboundQueues.values()) {
+            queue.close();
+        }
+        outboundQueues.clear();
+        inboundWireFormats.clear();
+        pendingInboundSwitches.clear();
         // TODO: Should listeners be cleared also?
     }
 
     private List<BufferHandler> getHandlers(Socket socket) {
-        User user = (serverUser != null
-                ? serverUser : userDatabase.getUserOfSocket(socket));
+        if (clientHandlers != null) {
+            return clientHandlers;
+        }
+        Session session = userDatabase.getSession(socket);
 
-        return user.getHandlers();
+        return (session != null)
+                ? session.getHandlers() : Collections.<BufferHandler>emptyList();
     }
 
     private void removeHandler(Socket socket, BufferHandler handler) {
@@ -226,6 +682,233 @@ public class ConnectionHandler {
         }
     }
 
+    /**
+     * Hands a frame read from the socket on to be handled, on the socket's
+     * executor if it has one or else straight away.
+     * 
+     * @param socket The socket the frame was read from
+     * @param frame The frame, from the buffer's position to its limit
+     * @param pooled true if the frame is a pooled buffer to release once it
+     *          has been handled, false if the caller reuses it on return
+     * @param resume Run once the socket may be read again, if this returns
+     *          false
+     * @return true if the next frame may be read now
+     */
+    protected boolean dispatchIncoming(Socket socket, ByteBuffer frame,
+            boolean pooled, Runnable resume) {
+        if (!isClientSocket) {
+            // anything read shows the client is still there
+            Session session = userDatabase.getSession(socket);
+            if (session != null) {
+                session.markReceived();
+            }
+        }
+        SerialExecutor executor = sessionExecutors.get(socket);
+        if (executor == null) {
+            long start = System.nanoTime();
+            try {
+                processIncoming(socket, frame);
+            } finally {
+                if (pooled) {
+                    bufferPool.release(frame);
+                }
+            }
+            incomingStats.record(0, System.nanoTime() - start);
+            return true;
+        }
+
+        ByteBuffer message = frame;
+        if (!pooled) {
+            message = bufferPool.acquire(frame.remaining());
+            message.put(frame);
+            message.flip();
+        }
+        final ByteBuffer task = message;
+        // a frame read while a switch is pending may switch the format the
+        // next one is read in
+        return executor.submit(() -> {
+            try {
+                processIncoming(socket, task);
+            } finally {
+                bufferPool.release(task);
+            }
+        }, pendingInboundSwitches.contains(socket), resume);
+    }
+
+    /**
+     * Runs a message read from the socket through the socket's handlers, firing
+     * any resulting data to the listeners and writing any responses back.
+     * 
+     * @param socket The socket the message was read from
+     * @param buffer The message, from the buffer's position to its limit. The
+     *          caller may reuse the buffer once this returns.
+     */
+    protected void processIncoming(Socket socket, ByteBuffer buffer) {
+        WireFormat wireFormat = getInboundWireFormat(socket);
+        int position = buffer.position();
+        for (BufferHandler handler : getHandlers(socket)) {
+
+            // If finished go to next, remove on outgoing
+            if (handler.isFinished()) {
+                continue;
+            }
+
+            // every handler sees the whole message
+            buffer.position(position);
+            handler.processIncoming(socket, buffer, wireFormat);
+
+            // Retrieve any data that needs to be sent to listeners
+            List<DefaultData> listenerDataList = handler.getListenerData();
+            if (listenerDataList != null
+                    && listenerDataList.size() > 0) {
+                for (DefaultData defaultData : listenerDataList) {
+                    fireIncomingMessage(socket, defaultData);
+                }
+            }
+
+            // Retrieve any data that needs to be sent to the socket
+            List<DefaultData> socketDataList = handler.getSocketData();
+            if (socketDataList != null
+                    && socketDataList.size() > 0) {
+                for (DefaultData defaultData : socketDataList) {
+
+                    writeData(socket, defaultData);
+                }
+            }
+
+            // If this handler consumes the message, stop iterating
+            if (handler.isMessageConsumed()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Runs outgoing data through the socket's handlers and writes each
+     * resulting frame out with {@link #writeFrame(Socket, ByteBuffer)}.
+     * 
+     * @param queue The queue the data was taken from
+     * @param netData The outgoing data
+     * @return The number of bytes written
+     * @throws IOException if the socket could not be written to
+     */
+    protected int processOutgoing(OutboundQueue queue, NetData netData) throws IOException {
+        long start = System.nanoTime();
+        int bytesWritten = 0;
+        ByteBuffer frame;
+        WireFormat wireFormat = queue.getWireFormat();
+        if (netData.wireFormat != wireFormat) {
+            // queued before the format was switched
+            NetData encoded = encode(netData.socket, netData.source, wireFormat);
+            if (encoded == null) {
+                return 0;
+            }
+            netData.data = encoded.data;
+            netData.offset = encoded.offset;
+            netData.wireFormat = wireFormat;
+        }
+        for (BufferHandler handler : getHandlers(netData.socket)) {
+
+            if (handler.isFinished()
+                    && (handler.getSocketData() == null
+                    || handler.getSocketData().isEmpty())) {
+                // If the hander is finished and has no response,
+                // remove the handler 
+                removeHandler(netData.socket, handler);
+                continue;
+            }
+
+            frame = handler.processOutgoing(netData);
+
+            if (frame != null && frame.remaining() > maxFrameLength) {
+                logFrameTooLong(frame.remaining(), wireFormat);
+            } else if (frame != null) {
+                if (logger.isLoggable(Level.FINEST)) {
+                    logger.log(Level.FINEST, "{0} is writing:{1}",
+                            new Object[]{handler, Util.byteArrayToHexString(
+                            Arrays.copyOfRange(frame.array(), frame.position(), frame.limit()))});
+                }
+                bytesWritten += frame.remaining();
+                writeFrame(netData.socket, frame);
+            }
+
+            // If handler is finished, remove it
+            if (handler.isFinished()) {
+                removeHandler(netData.socket, handler);
+            }
+
+            // If this handler consumes the message, stop iterating
+            if (handler.isMessageConsumed()) {
+                break;
+            }
+        }
+        if (netData.nextWireFormat != null) {
+            queue.setWireFormat(netData.nextWireFormat);
+        }
+        outgoingStats.record(start - netData.queuedNanos, System.nanoTime() - start);
+        return bytesWritten;
+    }
+
+    private void logFrameTooLong(int length, WireFormat wireFormat) {
+        logger.log(Level.SEVERE, "Dropping {0} byte frame, the {1} limit is {2}",
+                new Object[]{length, wireFormat,
+                    Math.min(maxFrameLength, wireFormat.getMaxFrameLength())});
+    }
+
+    /**
+     * Writes a single length prefixed frame to the socket. The length is
+     * already in the buffer, so the frame goes out in a single write instead
+     * of tripping Nagle's algorithm with a tiny segment.
+     * 
+     * @param socket The socket
+     * @param frame The frame, from its position to its limit
+     * @throws IOException if the socket could not be written to
+     */
+    protected void writeFrame(Socket socket, ByteBuffer frame)
+            throws IOException {
+        socket.getOutputStream().write(frame.array(),
+                frame.arrayOffset() + frame.position(), frame.remaining());
+        frame.position(frame.limit());
+    }
+
+    /**
+     * Fires a disconnect message to the listeners for the user of a socket
+     * that has closed.
+     * 
+     * @param socket The socket that closed
+     */
+    protected void fireUserDisconnect(Socket socket) {
+        if (isClientSocket) {
+            EncryptionManager.getInstance().setServerCipher(null);
+        }
+        SerialExecutor executor = sessionExecutors.remove(socket);
+        if (executor != null) {
+            // after the messages still waiting to be handled, which may
+            // have named the user
+            executor.submit(() -> fireDisconnectMessage(socket), false, null);
+        } else {
+            fireDisconnectMessage(socket);
+        }
+    }
+
+    private void fireDisconnectMessage(Socket socket) {
+        User theUser = null;
+        if (!isClientSocket) {
+            theUser = userDatabase.getUserOfSocket(socket);
+            // this is a server so report which user has disconnected
+            if (theUser == null || theUser.getName() == null) {
+                // Hasn't set a username yet
+                String host = (theUser != null) ? theUser.getHost()
+                        : socket.getInetAddress().getHostAddress();
+                theUser = new User();
+                theUser.setName("unknown");
+                theUser.setHost(host);
+            }
+        }
+        ProtoMessage userConnectStatus = new ProtoMessage(ProtoUtil.createUserConnectionStatus(theUser, false));
+        fireIncomingMessage(socket, userConnectStatus, true);
+    }
+
     /**
      * This class is used to processIncoming incoming data.
      */
@@ -235,6 +918,8 @@ public class ConnectionHandler {
         private DataInputStream inputStream;
         private User user = null;
         private volatile boolean processingIncoming = true;
+        /** Released when the socket's handling has caught up with reading */
+        private final Semaphore caughtUp = new Semaphore(0);
 
         public IncomingThread(Socket incomingSocket) {
             super("IncomingThread");
@@ -249,27 +934,29 @@ public class ConnectionHandler {
         }
 
         /**
-         * Read a single message from the stream
-         * @param bis
-         * @return 
+         * Read a single message from the stream into a pooled buffer, which
+         * the caller must release
+         * @return The message, or null if the stream can't be read
          */
-        private byte[] readMessage() {
-            byte buffer[];
+        private ByteBuffer readMessage() {
+            ByteBuffer buffer = null;
             try {
-                int length = inputStream.readUnsignedShort();
-                int bytesRead = 0;
-                buffer = new byte[length];
-                while (bytesRead != -1 && bytesRead < length) {
-                    bytesRead += inputStream.read(buffer);
-                }
-                if (bytesRead > length) {
-                    logger.log(Level.WARNING, "Read too much data");
+                int length = getInboundWireFormat(incomingSocket).readHeader(inputStream);
+                if (length > maxFrameLength) {
+                    reportError(user, Level.WARNING, "Closing connection, frame of "
+                            + length + " bytes exceeds the limit of "
+                            + maxFrameLength, null);
+                    return null;
                 }
+                // large frames are reassembled over as many reads as it takes
+                buffer = bufferPool.acquire(length);
+                inputStream.readFully(buffer.array(), buffer.arrayOffset(), length);
             } catch (IOException ex) {
                 if (processingIncoming) {
                     // unexpected error so log error
                     logger.log(Level.SEVERE, "Error reading stream", ex);
                 }
+                bufferPool.release(buffer);
                 buffer = null;
             }
             return buffer;
@@ -283,45 +970,19 @@ public class ConnectionHandler {
         @Override
         public void run() {
 
-            byte[] buffer;
+            ByteBuffer buffer;
 
             while (processingIncoming && (buffer = readMessage()) != null) {
-
-                for (BufferHandler handler : getHandlers(incomingSocket)) {
-
-                    // If finished go to next, remove on outgoing
-                    if (handler.isFinished()) {
-                        continue;
-                    }
-
-                    handler.processIncoming(incomingSocket, buffer, buffer.length);
-
-                    // Retrieve any data that needs to be sent to listeners
-                    List<DefaultData> listenerDataList = handler.getListenerData();
-                    if (listenerDataList != null
-                            && listenerDataList.size() > 0) {
-                        for (DefaultData defaultData : listenerDataList) {
-                            fireIncomingMessage(incomingSocket, defaultData);
-                        }
-                    }
-
-                    // Retrieve any data that needs to be sent to the socket
-                    List<DefaultData> socketDataList = handler.getSocketData();
-                    if (socketDataList != null
-                            && socketDataList.size() > 0) {
-                        for (DefaultData defaultData : socketDataList) {
-
-                            writeData(incomingSocket, defaultData);
-                        }
-                    }
-
-                    // If this handler consumes the message, stop iterating
-                    if (handler.isMessageConsumed()) {
+                if (!dispatchIncoming(incomingSocket, buffer, true, caughtUp::release)) {
+                    try {
+                        caughtUp.acquire();
+                    } catch (InterruptedException ex) {
                         break;
                     }
                 }
             }
 
+            removeOutboundQueue(incomingSocket);
             try {
                 sendUserDisconnect();
                 incomingSocket.close();
@@ -336,106 +997,7 @@ public class ConnectionHandler {
          * 
          */
         protected void sendUserDisconnect() {
-            User theUser = null;
-            if (!isClientSocket) {
-                theUser = user;
-                // this is a server so report which user has disconnected
-                if (theUser == null) {
-                    // Hasn't set a username yet
-                    theUser = new User();
-                    theUser.setName("unknown");
-                    theUser.setHost(incomingSocket.getInetAddress().getHostName());
-                }
-            } else {
-                EncryptionManager.getInstance().setServerSecretKey(null);
-            }
-            ProtoMessage userConnectStatus = new ProtoMessage(ProtoUtil.createUserConnectionStatus(theUser, false));
-            fireIncomingMessage(incomingSocket, userConnectStatus);
-        }
-    }
-
-    /**
-     * This class is used to processIncoming outgoing messages
-     */
-    private class OutgoingThread extends Thread {
-        private volatile boolean processingOutbound = true;
-        public OutgoingThread() {
-            super("Outgoing Thread");
-        }
-
-        @Override
-        public void run() {
-            User user = null;
-            // Write the data
-            try {
-                while (processingOutbound) {
-                    NetData netData = writeQueue.take();
-
-                    byte[] data;
-                    user = userDatabase.getUserOfSocket(netData.socket);
-                    for (BufferHandler handler : getHandlers(netData.socket)) {
-                        
-                        if (handler.isFinished()
-                                && (handler.getSocketData() == null
-                                || handler.getSocketData().isEmpty())) {
-                            // If the hander is finished and has no response,
-                            // remove the handler 
-                            removeHandler(netData.socket, handler);
-                            continue;
-                        }
-
-                        data = handler.processOutgoing(netData);
-
-                        if (data != null) {
-                            try {
-                                DataOutputStream dos = new DataOutputStream(
-                                        netData.socket.getOutputStream());
-                                if (logger.isLoggable(Level.FINEST)) {
-                                    logger.log(Level.FINEST, "{0} is writing:{1}",
-                                            new Object[]{handler, Util.byteArrayToHexString(data)});
-                                }
-                                dos.writeShort(data.length);
-                                dos.write(data);
-                                dos.flush();
-                            } catch (IOException ex) {
-                                if (isClientSocket) {
-                                    processingOutbound = false;
-                                    reportError(user, Level.INFO,
-                                        "Closing connection to server due to exception", ex);
-                                } else {
-                                    // just log and let the IncomingThread code
-                                    // clean up the user information
-                                    reportError(user, Level.INFO,
-                                        "Closing connection to client due to exception", ex);
-                                }
-                                break;
-                            }
-                        }
-
-                        // If handler is finished, remove it
-                        if (handler.isFinished()) {
-                            removeHandler(netData.socket, handler);
-                        }
-
-                        // If this handler consumes the message, stop iterating
-                        if (handler.isMessageConsumed()) {
-                            break;
-                        }
-                    }
-                }
-            } catch (InterruptedException ex) {
-                // if still processing then this is unexpected so log as SEVERE, otherwise FINE
-                Level level = processingOutbound ? Level.SEVERE : Level.FINE;
-                reportError(user, level, "Exiting outgoing thread due to interruption", ex);
-            } finally {
-                cleanup();
-            }
-        }
-
-        @Override
-        public void interrupt() {
-            processingOutbound = false;
-            super.interrupt();
+            fireUserDisconnect(incomingSocket);
         }
     }
 
@@ -447,7 +1009,7 @@ public class ConnectionHandler {
      * @param message The message
      * @param ex The exception
      */
-    private void reportError(User user, Level level,
+    protected void reportError(User user, Level level,
             String message, Exception ex) {
         if (logger.isLoggable(level)) {
             StringBuilder sb = new StringBuilder();
@@ -468,8 +1030,43 @@ public class ConnectionHandler {
     public class NetData {
 
         public Socket socket = null;
+        /** The unencrypted frame, which may be shared with other sockets */
         public byte[] data = null;
+        /** Where the data starts in the frame, after the length and flag */
+        public int offset = 0;
         public boolean canBeEncrypted;
+        /** Whether a slow consumer policy may discard this data */
+        public boolean droppable;
+        /** Data with the same key supersedes this data, or null */
+        public String coalesceKey;
+        /** The format the data bytes are laid out in */
+        public WireFormat wireFormat = WireFormat.V1;
+        /** The data before serialization */
+        public DefaultData source = null;
+        /** The format of everything written after this data, or null */
+        public WireFormat nextWireFormat = null;
+        /** When the data was queued, from System.nanoTime() */
+        public long queuedNanos = 0;
+
+        /**
+         * Creates a copy of this data for another socket. The data bytes are
+         * shared, not copied, so they must not be modified.
+         * 
+         * @param socket The socket
+         * @return the copy
+         */
+        public NetData copyFor(Socket socket) {
+            NetData netData = new NetData();
+            netData.socket = socket;
+            netData.data = data;
+            netData.offset = offset;
+            netData.canBeEncrypted = canBeEncrypted;
+            netData.droppable = droppable;
+            netData.coalesceKey = coalesceKey;
+            netData.wireFormat = wireFormat;
+            netData.source = source;
+            return netData;
+        }
         
         @Override
         public String toString() {
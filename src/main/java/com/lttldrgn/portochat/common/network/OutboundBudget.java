@@ -0,0 +1,193 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.common.network;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The limits on data waiting to be written, shared by all the OutboundQueues
+ * of a ConnectionHandler. Each queue may hold up to the session limit, and
+ * all queues together up to the total limit. Also keeps the totals of what
+ * the slow consumer policies have shed.
+ *
+ * Queues holding at least an eighth of the session limit are offenders.
+ * When the total limit is exceeded data is shed from the largest offender,
+ * so only the few large queues are looked at rather than every queue.
+ */
+public class OutboundBudget {
+
+    /** Default bytes that may wait for a single socket */
+    public static final int DEFAULT_MAX_SESSION_BYTES = 1024 * 1024;
+    /** Default bytes that may wait across all sockets */
+    public static final long DEFAULT_MAX_TOTAL_BYTES = 64L * 1024 * 1024;
+
+    private final int maxSessionBytes;
+    private final long maxTotalBytes;
+    private final Set<SlowConsumerPolicy> policies;
+    private final long offenderBytes;
+    private final Set<OutboundQueue> offenders = ConcurrentHashMap.newKeySet();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong droppedChatCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong disconnectCount = new AtomicLong();
+
+    /**
+     * Creates a budget with the default limits and all policies enabled
+     */
+    public OutboundBudget() {
+        this(DEFAULT_MAX_SESSION_BYTES, DEFAULT_MAX_TOTAL_BYTES,
+                EnumSet.allOf(SlowConsumerPolicy.class));
+    }
+
+    /**
+     * Public constructor
+     *
+     * @param maxSessionBytes Bytes that may wait for a single socket
+     * @param maxTotalBytes Bytes that may wait across all sockets
+     * @param policies The policies to apply when a limit is reached
+     */
+    public OutboundBudget(int maxSessionBytes, long maxTotalBytes,
+            Set<SlowConsumerPolicy> policies) {
+        this.maxSessionBytes = maxSessionBytes;
+        this.maxTotalBytes = maxTotalBytes;
+        this.offenderBytes = Math.max(1, maxSessionBytes / 8);
+        this.policies = policies.isEmpty()
+                ? EnumSet.noneOf(SlowConsumerPolicy.class) : EnumSet.copyOf(policies);
+    }
+
+    public int getMaxSessionBytes() {
+        return maxSessionBytes;
+    }
+
+    public long getMaxTotalBytes() {
+        return maxTotalBytes;
+    }
+
+    /**
+     * @param policy The policy
+     * @return true if the policy is enabled
+     */
+    public boolean isEnabled(SlowConsumerPolicy policy) {
+        return policies.contains(policy);
+    }
+
+    void reserve(int bytes) {
+        queuedBytes.addAndGet(bytes);
+    }
+
+    void release(long bytes) {
+        queuedBytes.addAndGet(-bytes);
+    }
+
+    long getOffenderBytes() {
+        return offenderBytes;
+    }
+
+    void setOffender(OutboundQueue queue, boolean offender) {
+        if (offender) {
+            offenders.add(queue);
+        } else {
+            offenders.remove(queue);
+        }
+    }
+
+    /**
+     * @return The offender with the most bytes queued, or null if no queue
+     *          holds enough to be one
+     */
+    public OutboundQueue getLargestOffender() {
+        OutboundQueue largest = null;
+        long largestBytes = 0;
+        for (OutboundQueue queue : offenders) {
+            long bytes = queue.getQueuedBytes();
+            if (bytes > largestBytes) {
+                largest = queue;
+                largestBytes = bytes;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * @return The bytes waiting across all sockets, queued or held by the
+     *          transports
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return The bytes waiting above the total limit, or 0 if within it
+     */
+    public long getExcessBytes() {
+        return Math.max(0, queuedBytes.get() - maxTotalBytes);
+    }
+
+    void countCoalesced(int count) {
+        coalescedCount.addAndGet(count);
+    }
+
+    void countDroppedChat(int count) {
+        droppedChatCount.addAndGet(count);
+    }
+
+    void countRejected() {
+        rejectedCount.incrementAndGet();
+    }
+
+    void countDisconnect() {
+        disconnectCount.incrementAndGet();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getDroppedChatCount() {
+        return droppedChatCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getDisconnectCount() {
+        return disconnectCount.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("queued: ");
+        sb.append(getQueuedBytes());
+        sb.append("/");
+        sb.append(maxTotalBytes);
+        sb.append(" bytes coalesced: ");
+        sb.append(getCoalescedCount());
+        sb.append(" dropped chat: ");
+        sb.append(getDroppedChatCount());
+        sb.append(" rejected: ");
+        sb.append(getRejectedCount());
+        sb.append(" disconnects: ");
+        sb.append(getDisconnectCount());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.common.network;
+
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import com.lttldrgn.portochat.common.network.ConnectionHandler.NetData;
+import com.lttldrgn.portochat.common.protocol.WireFormat;
+
+/**
+ * The queue of data waiting to be written to a single socket. Any thread may
+ * offer data, but only one drain runs at a time so the socket sees its
+ * messages in the order they were queued.
+ *
+ * The bytes waiting are counted against the OutboundBudget, as are the bytes
+ * a transport has taken from the queue but not yet written. When the
+ * socket's limit is reached the budget's SlowConsumerPolicies are applied to
+ * make room, and if they can't the data is rejected or the socket is marked
+ * for disconnection.
+ */
+public class OutboundQueue {
+
+    /** What the caller must do after offering data */
+    public enum OfferResult {
+        /** The data was queued and a drain is already scheduled */
+        QUEUED,
+        /** The data was queued and the caller must schedule a drain */
+        DRAIN_NEEDED,
+        /** The data was discarded */
+        REJECTED,
+        /** The data was discarded and the caller must close the socket */
+        DISCONNECT
+    }
+
+    private final Socket socket;
+    private final OutboundBudget budget;
+    private final Deque<NetData> queue = new ArrayDeque<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong writtenBytes = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong droppedChatCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private long queuedBytes = 0;
+    private long inFlightBytes = 0;
+    /** Whether the budget counts this queue among its offenders */
+    private boolean offender = false;
+    private boolean closed = false;
+    private volatile String disconnectReason = null;
+    private volatile WireFormat wireFormat = WireFormat.V1;
+    private long lastSampleTime = System.nanoTime();
+    private long lastSampleCount = 0;
+
+    /**
+     * Creates a queue with the default budget
+     *
+     * @param socket The socket this queue writes to
+     */
+    public OutboundQueue(Socket socket) {
+        this(socket, new OutboundBudget());
+    }
+
+    /**
+     * Public constructor
+     *
+     * @param socket The socket this queue writes to
+     * @param budget The budget shared with the other queues
+     */
+    public OutboundQueue(Socket socket, OutboundBudget budget) {
+        this.socket = socket;
+        this.budget = budget;
+    }
+
+    /**
+     * @return The socket this queue writes to
+     */
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * @return The format data is written to the socket in
+     */
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * Sets the format data is written to the socket in. Only the drain
+     * should call this, after writing the last data in the old format.
+     *
+     * @param wireFormat The wire format
+     */
+    public void setWireFormat(WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
+
+    /**
+     * Adds data to the end of the queue, shedding older data if the socket's
+     * limit would be exceeded.
+     *
+     * @param netData The data
+     * @return What the caller must do next
+     */
+    public OfferResult offer(NetData netData) {
+        int size = netData.data.length;
+        synchronized (this) {
+            if (disconnectReason != null || closed) {
+                // already being disconnected
+                return OfferResult.REJECTED;
+            }
+            long excess = queuedBytes + inFlightBytes + size - budget.getMaxSessionBytes();
+            if (excess > 0 && !shed(excess, "outbound buffer full")) {
+                if (disconnectReason != null) {
+                    return OfferResult.DISCONNECT;
+                }
+                rejectedCount.incrementAndGet();
+                budget.countRejected();
+                return OfferResult.REJECTED;
+            }
+            queue.offer(netData);
+            queuedBytes += size;
+            budget.reserve(size);
+            updateOffender();
+        }
+        enqueuedCount.incrementAndGet();
+        return drainScheduled.compareAndSet(false, true)
+                ? OfferResult.DRAIN_NEEDED : OfferResult.QUEUED;
+    }
+
+    /**
+     * Applies the budget's policies until the given number of bytes has been
+     * freed. If they can't free enough and disconnecting is allowed, all the
+     * data is discarded and the reason is recorded.
+     *
+     * @param bytes The number of bytes to free
+     * @param cause Why the bytes are needed
+     * @return true if enough was freed
+     */
+    public synchronized boolean shed(long bytes, String cause) {
+        long freed = 0;
+        if (budget.isEnabled(SlowConsumerPolicy.COALESCE_NOTIFICATIONS)) {
+            freed += coalesceNotifications();
+        }
+        if (freed < bytes && budget.isEnabled(SlowConsumerPolicy.DROP_OLDEST_CHAT)) {
+            freed += dropOldestChat(bytes - freed);
+        }
+        if (freed >= bytes) {
+            return true;
+        }
+        if (budget.isEnabled(SlowConsumerPolicy.DISCONNECT) && disconnectReason == null) {
+            disconnectReason = cause + " (" + queuedBytes + " bytes waiting)";
+            budget.countDisconnect();
+            clear();
+        }
+        return false;
+    }
+
+    /**
+     * Removes notifications that a later queued notification supersedes
+     *
+     * @return The number of bytes freed
+     */
+    private long coalesceNotifications() {
+        Set<String> seen = new HashSet<>();
+        long freed = 0;
+        int count = 0;
+        Iterator<NetData> iterator = queue.descendingIterator();
+        while (iterator.hasNext()) {
+            NetData netData = iterator.next();
+            if (netData.coalesceKey != null && !seen.add(netData.coalesceKey)) {
+                iterator.remove();
+                freed += netData.data.length;
+                count++;
+            }
+        }
+        release(freed);
+        coalescedCount.addAndGet(count);
+        budget.countCoalesced(count);
+        return freed;
+    }
+
+    /**
+     * Removes chat messages from the head of the queue
+     *
+     * @param bytes The number of bytes to free
+     * @return The number of bytes freed
+     */
+    private long dropOldestChat(long bytes) {
+        long freed = 0;
+        int count = 0;
+        Iterator<NetData> iterator = queue.iterator();
+        while (freed < bytes && iterator.hasNext()) {
+            NetData netData = iterator.next();
+            if (netData.droppable) {
+                iterator.remove();
+                freed += netData.data.length;
+                count++;
+            }
+        }
+        release(freed);
+        droppedChatCount.addAndGet(count);
+        budget.countDroppedChat(count);
+        return freed;
+    }
+
+    private void release(long bytes) {
+        queuedBytes -= bytes;
+        budget.release(bytes);
+        updateOffender();
+    }
+
+    /**
+     * Tells the budget when the queue starts or stops holding enough to be
+     * shed from when all the queues together are over the total limit
+     */
+    private void updateOffender() {
+        boolean isOffender = queuedBytes >= budget.getOffenderBytes();
+        if (isOffender != offender) {
+            offender = isOffender;
+            budget.setOffender(this, isOffender);
+        }
+    }
+
+    /**
+     * Records data a transport took from the queue and holds until the
+     * socket can take it. It still counts against the budget until
+     * {@link #releaseInFlight(long)}.
+     *
+     * @param bytes The number of bytes held
+     */
+    public synchronized void holdInFlight(int bytes) {
+        inFlightBytes += bytes;
+        budget.reserve(bytes);
+    }
+
+    /**
+     * Records held data written to the socket
+     *
+     * @param bytes The number of bytes written
+     */
+    public synchronized void releaseInFlight(long bytes) {
+        bytes = Math.min(bytes, inFlightBytes);
+        inFlightBytes -= bytes;
+        budget.release(bytes);
+    }
+
+    /**
+     * Removes the data at the head of the queue. Only the scheduled drain
+     * should call this.
+     *
+     * @return The data, or null if the queue is empty
+     */
+    public synchronized NetData poll() {
+        NetData netData = queue.poll();
+        if (netData != null) {
+            release(netData.data.length);
+        }
+        return netData;
+    }
+
+    /**
+     * Records data the drain has written to the socket
+     *
+     * @param bytes The number of bytes written
+     */
+    public void markWritten(int bytes) {
+        writtenCount.incrementAndGet();
+        writtenBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Called by the drain when it stops polling. Data may have been offered
+     * after the last poll, in which case the drain is rescheduled.
+     *
+     * @return true if the caller must schedule another drain of this queue
+     */
+    public boolean finishDrain() {
+        drainScheduled.set(false);
+        return !isEmpty() && drainScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * @return true if no data is waiting
+     */
+    public synchronized boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * Discards all waiting data, including any held by the transport
+     */
+    public synchronized void clear() {
+        queue.clear();
+        release(queuedBytes);
+        releaseInFlight(inFlightBytes);
+    }
+
+    /**
+     * Discards all waiting data and rejects any offered afterwards, once the
+     * socket has closed. Data offered by a thread that found the queue
+     * before it was removed is then not left counting against the budget.
+     */
+    public synchronized void close() {
+        closed = true;
+        clear();
+    }
+
+    /**
+     * @return The number of messages waiting to be written
+     */
+    public synchronized int getDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return The number of bytes waiting to be written
+     */
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @return The number of bytes the transport holds but hasn't written
+     */
+    public synchronized long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    /**
+     * @return Why the socket must be disconnected, or null if it needn't be
+     */
+    public String getDisconnectReason() {
+        return disconnectReason;
+    }
+
+    /**
+     * @return The number of messages queued since the socket connected
+     */
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    /**
+     * @return The number of messages written since the socket connected
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * @return The number of bytes written since the socket connected
+     */
+    public long getWrittenBytes() {
+        return writtenBytes.get();
+    }
+
+    /**
+     * @return The number of notifications superseded by later ones
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return The number of chat messages dropped to make room
+     */
+    public long getDroppedChatCount() {
+        return droppedChatCount.get();
+    }
+
+    /**
+     * @return The number of messages rejected because there was no room
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Gets the drain rate since the previous call to this method.
+     *
+     * @return The messages written per second
+     */
+    public synchronized double sampleDrainRate() {
+        long now = System.nanoTime();
+        long count = writtenCount.get();
+        double seconds = (now - lastSampleTime) / 1e9;
+        double rate = (seconds > 0) ? (count - lastSampleCount) / seconds : 0;
+        lastSampleTime = now;
+        lastSampleCount = count;
+        return rate;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(socket.getInetAddress());
+        sb.append("> depth: ");
+        sb.append(getDepth());
+        sb.append(" (");
+        sb.append(getQueuedBytes());
+        sb.append(" bytes, ");
+        sb.append(getInFlightBytes());
+        sb.append(" in flight) written: ");
+        sb.append(getWrittenCount());
+        sb.append(" (");
+        sb.append(getWrittenBytes());
+        sb.append(" bytes)");
+        if (getCoalescedCount() > 0 || getDroppedChatCount() > 0
+                || getRejectedCount() > 0) {
+            sb.append(" coalesced: ");
+            sb.append(getCoalescedCount());
+            sb.append(" dropped chat: ");
+            sb.append(getDroppedChatCount());
+            sb.append(" rejected: ");
+            sb.append(getRejectedCount());
+        }
+        if (disconnectReason != null) {
+            sb.append(" disconnecting: ");
+            sb.append(disconnectReason);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.common.network;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks on a shared pool of worker threads, one at a time and in the
+ * order they were submitted. Each session has one, so a session's messages
+ * are still handled in order while different sessions run in parallel, and
+ * the server's channels share a fixed set of them the same way.
+ *
+ * Only one task of an executor is handed to the pool at a time, so the
+ * pool's queue never holds more tasks than there are executors. A session's
+ * own backlog is bounded by its reader: when {@link #submit} returns false
+ * the reader must stop reading until the resume callback it passed runs.
+ */
+public class SerialExecutor implements Executor {
+
+    private static final Logger logger = Logger.getLogger(SerialExecutor.class.getName());
+    /** Tasks run before yielding the worker to other executors */
+    private static final int BATCH_SIZE = 16;
+
+    private final Executor workers;
+    private final StageStats stats;
+    private final int maxPending;
+    private final Queue<Task> tasks = new ArrayDeque<>();
+    private boolean running = false;
+    private int barriers = 0;
+    private Runnable resumeCallback = null;
+
+    /**
+     * Public constructor
+     *
+     * @param workers The pool the tasks run on
+     * @param stats Where the tasks' timings are recorded
+     * @param maxPending Tasks that may wait before the reader must stop
+     */
+    public SerialExecutor(Executor workers, StageStats stats, int maxPending) {
+        this.workers = workers;
+        this.stats = stats;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Submits a task to run after the earlier tasks
+     *
+     * @param task The task
+     * @param barrier true if nothing more may be read until the task has run,
+     *          because it may change how the following data is read
+     * @param resume Run once more may be read, if this returns false
+     * @return true if the caller may keep reading and submitting tasks
+     */
+    public boolean submit(Runnable task, boolean barrier, Runnable resume) {
+        boolean mayContinue;
+        boolean start = false;
+        synchronized (this) {
+            tasks.offer(new Task(task, barrier));
+            if (barrier) {
+                barriers++;
+            }
+            mayContinue = (barriers == 0 && tasks.size() < maxPending);
+            if (!mayContinue) {
+                resumeCallback = resume;
+            }
+            if (!running) {
+                running = true;
+                start = true;
+            }
+        }
+        if (start) {
+            workers.execute(this::runTasks);
+        }
+        return mayContinue;
+    }
+
+    /**
+     * Submits a task to run after the earlier tasks, for callers that don't
+     * need to stop submitting when the backlog grows
+     *
+     * @param task The task
+     */
+    @Override
+    public void execute(Runnable task) {
+        submit(task, false, null);
+    }
+
+    /**
+     * @return The number of tasks waiting or running
+     */
+    public synchronized int getDepth() {
+        return tasks.size();
+    }
+
+    private void runTasks() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Task task;
+            synchronized (this) {
+                task = tasks.peek();
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+            }
+
+            long start = System.nanoTime();
+            try {
+                task.runnable.run();
+            } catch (RuntimeException ex) {
+                // later tasks must still run
+                logger.log(Level.SEVERE, "Error running task", ex);
+            }
+            stats.record(start - task.submitted, System.nanoTime() - start);
+
+            Runnable resume = null;
+            synchronized (this) {
+                tasks.poll();
+                if (task.barrier) {
+                    barriers--;
+                }
+                // let the reader catch up before the executor runs dry
+                if (resumeCallback != null && barriers == 0
+                        && tasks.size() <= maxPending / 2) {
+                    resume = resumeCallback;
+                    resumeCallback = null;
+                }
+            }
+            if (resume != null) {
+                resume.run();
+            }
+        }
+        // give other executors a turn before continuing
+        workers.execute(this::runTasks);
+    }
+
+    private static class Task {
+        private final Runnable runnable;
+        private final boolean barrier;
+        private final long submitted = System.nanoTime();
+
+        Task(Runnable runnable, boolean barrier) {
+            this.runnable = runnable;
+            this.barrier = barrier;
+        }
+    }
+}
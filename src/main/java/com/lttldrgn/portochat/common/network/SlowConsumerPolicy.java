@@ -0,0 +1,31 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.common.network;
+
+/**
+ * What an OutboundQueue may do when a socket isn't reading fast enough and
+ * its buffer or the overall budget is full. Enabled policies are applied in
+ * the order they are declared until enough bytes have been freed.
+ */
+public enum SlowConsumerPolicy {
+    /** Keep only the latest queued notification about the same subject */
+    COALESCE_NOTIFICATIONS,
+    /** Discard queued chat messages starting with the oldest */
+    DROP_OLDEST_CHAT,
+    /** Close the connection, recording why */
+    DISCONNECT
+}
@@ -0,0 +1,141 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.common.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings of the work passing through a stage of a ConnectionHandler: how
+ * long each task waited to run and how long it ran for. Any thread may
+ * record a task.
+ */
+public class StageStats {
+
+    private final String name;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong queueNanos = new AtomicLong();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+    private final AtomicLong runNanos = new AtomicLong();
+    private final AtomicLong maxRunNanos = new AtomicLong();
+    private long lastSampleCount = 0;
+    private long lastSampleQueueNanos = 0;
+    private long lastSampleRunNanos = 0;
+
+    /**
+     * Public constructor
+     *
+     * @param name The name of the stage
+     */
+    public StageStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return The name of the stage
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records a task that has finished
+     *
+     * @param queued How long the task waited to run, in nanoseconds
+     * @param ran How long the task ran for, in nanoseconds
+     */
+    public void record(long queued, long ran) {
+        count.incrementAndGet();
+        queueNanos.addAndGet(queued);
+        runNanos.addAndGet(ran);
+        maxQueueNanos.accumulateAndGet(queued, Math::max);
+        maxRunNanos.accumulateAndGet(ran, Math::max);
+    }
+
+    /**
+     * @return The number of tasks recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The longest any task waited to run, in nanoseconds
+     */
+    public long getMaxQueueNanos() {
+        return maxQueueNanos.get();
+    }
+
+    /**
+     * @return The longest any task ran for, in nanoseconds
+     */
+    public long getMaxRunNanos() {
+        return maxRunNanos.get();
+    }
+
+    /**
+     * Describes the tasks recorded since the previous call to this method,
+     * with the longest times since the stage started.
+     *
+     * @return The description
+     */
+    public synchronized String sample() {
+        long sampleCount = count.get();
+        long sampleQueueNanos = queueNanos.get();
+        long sampleRunNanos = runNanos.get();
+        long tasks = sampleCount - lastSampleCount;
+        StringBuilder sb = new StringBuilder();
+        sb.append(name);
+        sb.append(": ");
+        sb.append(tasks);
+        sb.append(" tasks");
+        if (tasks > 0) {
+            sb.append(" avg queued: ");
+            sb.append(formatMicros((sampleQueueNanos - lastSampleQueueNanos) / tasks));
+            sb.append(" avg run: ");
+            sb.append(formatMicros((sampleRunNanos - lastSampleRunNanos) / tasks));
+        }
+        sb.append(" max queued: ");
+        sb.append(formatMicros(getMaxQueueNanos()));
+        sb.append(" max run: ");
+        sb.append(formatMicros(getMaxRunNanos()));
+        lastSampleCount = sampleCount;
+        lastSampleQueueNanos = sampleQueueNanos;
+        lastSampleRunNanos = sampleRunNanos;
+        return sb.toString();
+    }
+
+    private static String formatMicros(long nanos) {
+        return String.format("%.1f us", nanos / 1000.0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(name);
+        sb.append(": ");
+        sb.append(getCount());
+        sb.append(" tasks");
+        long tasks = getCount();
+        if (tasks > 0) {
+            sb.append(" avg queued: ");
+            sb.append(formatMicros(queueNanos.get() / tasks));
+            sb.append(" avg run: ");
+            sb.append(formatMicros(runNanos.get() / tasks));
+        }
+        return sb.toString();
+    }
+}
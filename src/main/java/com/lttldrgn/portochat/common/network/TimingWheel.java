@@ -0,0 +1,190 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.common.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks after a delay, for timers that are nearly always rescheduled or
+ * cancelled before they fire, such as one heartbeat per connection.
+ *
+ * Time is split into ticks and the tasks are kept in a ring of slots, one
+ * per tick. Scheduling adds a task to a queue and firing a slot only looks
+ * at the tasks in it, so neither depends on how many tasks are waiting. A
+ * task runs on the wheel's thread within a tick after it is due, so tasks
+ * should only hand work off or do something quick.
+ */
+public class TimingWheel {
+
+    private static final Logger logger = Logger.getLogger(TimingWheel.class.getName());
+
+    private final long tickNanos;
+    private final List<Timeout>[] slots;
+    private final int mask;
+    /** Tasks scheduled since the last tick, added to the slots on the next */
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private final Thread thread;
+    private volatile boolean running = true;
+    /** The ticks that have passed, only used on the wheel's thread */
+    private long tick = 0;
+
+    /**
+     * Public constructor, starts the wheel's thread
+     *
+     * @param name The name of the wheel's thread
+     * @param tick The length of a tick
+     * @param unit The unit of the tick's length
+     * @param slotCount The number of slots, rounded up to a power of two.
+     *          Tasks further off than a turn of the wheel wait in their slot
+     *          for the turns left.
+     */
+    public TimingWheel(String name, long tick, TimeUnit unit, int slotCount) {
+        tickNanos = Math.max(1, unit.toNanos(tick));
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        @SuppressWarnings("unchecked")
+        List<Timeout>[] empty = (List<Timeout>[]) new List<?>[size];
+        slots = empty;
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        mask = size - 1;
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs a task after a delay
+     *
+     * @param task The task
+     * @param delay The delay
+     * @param unit The unit of the delay
+     * @return The handle to cancel the task with
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task,
+                System.nanoTime() + Math.max(0, unit.toNanos(delay)));
+        scheduled.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel. Tasks that haven't run are dropped.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = startNanos + (tick + 1) * tickNanos;
+            long wait;
+            while (running && (wait = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+            if (!running) {
+                break;
+            }
+            addScheduled();
+            fireSlot();
+            tick++;
+        }
+    }
+
+    private void addScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // the tick the task is due at the end of, or this one if it's late
+            long due = Math.max(tick,
+                    (timeout.deadline - startNanos + tickNanos - 1) / tickNanos - 1);
+            timeout.rounds = (due - tick) / slots.length;
+            slots[(int) (due & mask)].add(timeout);
+        }
+    }
+
+    private void fireSlot() {
+        List<Timeout> slot = slots[(int) (tick & mask)];
+        if (slot.isEmpty()) {
+            return;
+        }
+        List<Timeout> due = new ArrayList<>();
+        int kept = 0;
+        for (Timeout timeout : slot) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                slot.set(kept++, timeout);
+            } else {
+                due.add(timeout);
+            }
+        }
+        slot.subList(kept, slot.size()).clear();
+
+        for (Timeout timeout : due) {
+            try {
+                timeout.task.run();
+            } catch (RuntimeException ex) {
+                // the wheel must keep turning
+                logger.log(Level.SEVERE, "Error running timed task", ex);
+            }
+        }
+    }
+
+    /**
+     * A task waiting on the wheel
+     */
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled = false;
+        /** Turns of the wheel left before the task is due */
+        private long rounds;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stops the task from running if it hasn't already
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * @return true if the task was cancelled
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
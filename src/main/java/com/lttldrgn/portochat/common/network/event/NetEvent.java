@@ -26,13 +26,27 @@ import com.lttldrgn.portochat.common.protocol.DefaultData;
 public class NetEvent extends EventObject {
 
     private DefaultData defaultData = null;
+    private final boolean local;
 
     /*
      * Public constructor
      */
     public NetEvent (Object source, DefaultData defaultData) {
+        this(source, defaultData, false);
+    }
+
+    /**
+     * Public constructor
+     *
+     * @param source The socket the event is about
+     * @param defaultData The data
+     * @param local true if the connection handler made the data itself
+     *          rather than receiving it
+     */
+    public NetEvent (Object source, DefaultData defaultData, boolean local) {
         super(source);
         this.defaultData = defaultData;
+        this.local = local;
     }
 
     /***
@@ -42,4 +56,12 @@ public class NetEvent extends EventObject {
         return defaultData;
     }
 
+    /**
+     * @return true if the connection handler made the data itself, such as
+     *          the notice of a socket closing, rather than receiving it
+     */
+    public boolean isLocal() {
+        return local;
+    }
+
 }
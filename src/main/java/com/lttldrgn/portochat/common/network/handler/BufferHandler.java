@@ -17,10 +17,12 @@
 package com.lttldrgn.portochat.common.network.handler;
 
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import com.lttldrgn.portochat.common.network.ConnectionHandler.NetData;
 import com.lttldrgn.portochat.common.protocol.DefaultData;
+import com.lttldrgn.portochat.common.protocol.WireFormat;
 
 /**
  * This is the abstract class for handling buffers. The idea behind buffer 
@@ -53,22 +55,26 @@ public abstract class BufferHandler {
     }
     
     /**
-     * This method processes the received buffer.
+     * This method processes the received buffer. The buffer's remaining
+     * bytes are the message; they may be overwritten once this returns, so
+     * nothing may keep a reference to the buffer.
      * 
      * @param socket The socket the buffer was received from
      * @param buffer The buffer to process
-     * @param length The readable length of the buffer
+     * @param wireFormat The wire format the buffer is laid out in
      * @return true if successful
      */
-    public abstract boolean processIncoming (Socket socket, byte buffer[], int length);
+    public abstract boolean processIncoming (Socket socket, ByteBuffer buffer,
+            WireFormat wireFormat);
   
     /**
      * This method processes the outgoing buffer.
      * 
      * @param netData Original packet data
-     * @return the byte array that should be sent to the socket
+     * @return the whole frame, length prefix included, that should be sent
+     *          to the socket, or null if nothing should be sent
      */
-    public abstract byte[] processOutgoing (NetData netData);
+    public abstract ByteBuffer processOutgoing (NetData netData);
     
     /**
      * @return true if this handler consumes the message.
@@ -17,13 +17,17 @@
 package com.lttldrgn.portochat.common.network.handler;
 
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.crypto.SecretKey;
-import com.lttldrgn.portochat.common.User;
 import com.lttldrgn.portochat.common.encryption.EncryptionManager;
+import com.lttldrgn.portochat.common.encryption.SessionCipher;
+import com.lttldrgn.portochat.common.network.BufferPool;
 import com.lttldrgn.portochat.common.network.ConnectionHandler.NetData;
 import com.lttldrgn.portochat.common.protocol.ProtocolHandler;
+import com.lttldrgn.portochat.common.protocol.WireFormat;
+import com.lttldrgn.portochat.server.Session;
 import com.lttldrgn.portochat.server.UserDatabase;
 
 /**
@@ -38,79 +42,128 @@ public class ChatHandler extends BufferHandler {
             Logger.getLogger(BufferHandler.class.getName());
     private final ProtocolHandler protocolHandler;
     private final EncryptionManager encryptionManager;
+    private final BufferPool bufferPool;
     
     public ChatHandler() {
         super();
         
         protocolHandler = ProtocolHandler.getInstance();
         encryptionManager = EncryptionManager.getInstance();
+        bufferPool = BufferPool.getInstance();
         messageConsumed = false;
     }
     
     @Override
-    public boolean processIncoming(Socket socket, byte[] buffer, int length) {
-        boolean error = false;
+    public boolean processIncoming(Socket socket, ByteBuffer buffer,
+            WireFormat wireFormat) {
+        logger.log(Level.FINEST, "ChatHandler.processIncoming");
+        if (!buffer.hasRemaining()) {
+            // no encryption flag
+            return false;
+        }
 
-        logger.log(Level.FINEST, "ChatHandler.processOutgoing");
-        int newLength = length-1;
-        byte[] parseBuffer = new byte[newLength];
-        System.arraycopy(buffer, 1, parseBuffer, 0, newLength);
-        if (buffer[0] == 1 && isEncryptionEnabled(socket)) {
-            parseBuffer = encryptionManager.decrypt(getSecretKey(socket), parseBuffer);
-            newLength = parseBuffer.length;
+        // the message follows the encryption flag
+        byte encryption = buffer.get();
+        Session session = getSession(socket);
+        if (encryption == 1 && isEncryptionEnabled(session)) {
+            SessionCipher sessionCipher = getSessionCipher(session);
+            ByteBuffer decrypted = bufferPool.acquire(buffer.remaining());
+            try {
+                if (sessionCipher != null
+                        && sessionCipher.decrypt(buffer, decrypted, wireFormat)) {
+                    listenerDataList = protocolHandler.processData(decrypted, wireFormat);
+                } else {
+                    listenerDataList = Collections.emptyList();
+                }
+            } finally {
+                bufferPool.release(decrypted);
+            }
+        } else if (encryption != 1 && serverHandler && isEncryptionEnabled(session)) {
+            // Once the client accepts the key everything it sends is
+            // encrypted, so this wasn't sent by the session's client
+            logger.log(Level.WARNING, "Dropping unencrypted data from {0}",
+                    session.getUser());
+            listenerDataList = Collections.emptyList();
+        } else {
+            listenerDataList = protocolHandler.processData(buffer, wireFormat);
         }
-        listenerDataList = protocolHandler.processData(parseBuffer, newLength);
         
-        return (!error);
+        return true;
     }
     
     @Override
-    public byte[] processOutgoing(NetData data) {
+    public ByteBuffer processOutgoing(NetData data) {
         logger.log(Level.FINEST, "ChatHandler.processOutgoing");
-        Socket socket = data.socket;
-        byte[] buffer = data.data;
+        Session session = getSession(data.socket);
 
-        // create an output buffer with the first byte indicating encryption
-        byte[] outputBuffer;
-        
-        if (data.canBeEncrypted && isEncryptionEnabled(socket)) {
-            byte encrypted[] = encryptionManager.encrypt(getSecretKey(socket), buffer);
-            outputBuffer = new byte[encrypted.length + 1];
-            outputBuffer[0] = 1; // encryption
-            System.arraycopy(encrypted, 0, outputBuffer, 1, encrypted.length);
-        } else {
-            // use original unmodified buffer
-            outputBuffer = new byte[buffer.length+1];
-            outputBuffer[0] = 0; // no encryption
-            System.arraycopy(buffer, 0, outputBuffer, 1, buffer.length);
+        if (serverHandler && session == null) {
+            // the session ended or resumed on another connection, so its
+            // encryption state is gone
+            return null;
+        }
+        if (!data.canBeEncrypted || !isEncryptionEnabled(session)) {
+            // the encoded frame is already flagged as unencrypted
+            return ByteBuffer.wrap(data.data);
         }
+
+        SessionCipher sessionCipher = getSessionCipher(session);
+        if (sessionCipher == null) {
+            return null;
+        }
+
+        // create a frame with the first byte indicating encryption
+        int length = data.data.length - data.offset;
+        ByteBuffer frame = data.wireFormat.allocateFrame(
+                sessionCipher.getEncryptedLength(length, data.wireFormat) + 1);
+        if (frame != null) {
+            frame.put((byte) 1); // encryption
+            ByteBuffer message = ByteBuffer.wrap(data.data, data.offset, length);
+            if (!sessionCipher.encrypt(message, frame, data.wireFormat)) {
+                return null;
+            }
+        }
+        if (frame == null) {
+            logger.log(Level.SEVERE, "Dropping message, too long to encrypt in {0}",
+                    data.wireFormat);
+            return null;
+        }
+        frame.flip();
         
-        return outputBuffer;
+        return frame;
+    }
+    
+    /**
+     * @param socket The socket the data is for
+     * @return The server's session of the socket, or null on a client
+     */
+    private Session getSession(Socket socket) {
+        return serverHandler ? UserDatabase.getInstance().getSession(socket) : null;
     }
     
-    private boolean isEncryptionEnabled(Socket socket) {
+    private boolean isEncryptionEnabled(Session session) {
         
         boolean encrypted;
         if (serverHandler) {
-            encrypted = UserDatabase.getInstance().isSocketEncrypted(socket);
+            encrypted = (session != null && session.isEncrypted());
         } else {
-            encrypted = (encryptionManager.getServerSecretKey() != null);
+            encrypted = (encryptionManager.getServerCipher() != null);
         }
         
         return encrypted;
     }
     
-    private SecretKey getSecretKey(Socket socket) {
-        SecretKey secretKey;
+    private SessionCipher getSessionCipher(Session session) {
+        SessionCipher sessionCipher = null;
     
         if (serverHandler) {
-            User user = UserDatabase.getInstance().getUserOfSocket(socket);
-            secretKey = user.getSecretKey();
+            if (session != null) {
+                sessionCipher = session.getSessionCipher();
+            }
         } else {
-            secretKey = encryptionManager.getServerSecretKey();
+            sessionCipher = encryptionManager.getServerCipher();
         }
 
-        return secretKey;
+        return sessionCipher;
     }
     
     @Override
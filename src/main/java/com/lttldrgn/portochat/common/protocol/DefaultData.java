@@ -16,10 +16,9 @@
  */
 package com.lttldrgn.portochat.common.protocol;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -63,31 +62,87 @@ public abstract class DefaultData {
     }
 
     /**
-     * Writes the header to the data output stream
+     * Parses the data from the buffer's position, leaving the position after
+     * the header
      * 
-     * @param dos The data output stream
+     * @param buffer the buffer
      */
-    private int writeHeader(DataOutputStream dos, Class clazz) {
+    public void parse(ByteBuffer buffer) {
+        buffer.get(); // message type
+        length = buffer.getInt();
+        time = buffer.getLong();
+    }
 
-        try {
-            dos.writeByte(ProtocolHandler.getInstance().getHeader(clazz));
-            int totalLength = length + HEADER_LENGTH;
-            dos.writeInt(totalLength);
-            dos.writeLong(time);
-        } catch (IOException ex) {
-            logger.log(Level.SEVERE, "Unable to write header", ex);
-        }
+    /**
+     * @return The number of bytes {@link #writePayload(ByteBuffer)} writes
+     */
+    public abstract int getPayloadSize();
+
+    /**
+     * Writes the body data for formats that don't repeat the length
+     * 
+     * @param buffer The buffer to write to, with room for the payload
+     */
+    public abstract void writePayload(ByteBuffer buffer);
+
+    /**
+     * Parses body data written by {@link #writePayload(ByteBuffer)}.
+     * The body is the buffer's remaining bytes, which are only valid until
+     * this method returns.
+     * 
+     * @param buffer The buffer holding the body
+     */
+    public abstract void parsePayload(ByteBuffer buffer);
 
-        return dos.size();
+    /**
+     * @return The number of bytes {@link #writeBody(ByteBuffer)} writes
+     */
+    protected int getBodySize() {
+        return getPayloadSize();
     }
 
     /**
-     * Writes the body data to the data output stream
+     * Writes the body data that follows the V1 header. Subclasses whose V1
+     * body differs from the payload override this with
+     * {@link #getBodySize()}.
      * 
-     * @param dos The data output stream
-     * @return Size of the date in the stream in bytes
+     * @param buffer The buffer to write to, with room for the body
      */
-    public abstract int writeBody(DataOutputStream dos);
+    protected void writeBody(ByteBuffer buffer) {
+        writePayload(buffer);
+    }
+
+    /**
+     * @param wireFormat The wire format
+     * @return The number of bytes the data takes up in the wire format
+     */
+    public int getEncodedLength(WireFormat wireFormat) {
+        if (wireFormat == WireFormat.V1) {
+            return HEADER_LENGTH + getBodySize();
+        }
+        return 1 + getPayloadSize(); // message type + payload
+    }
+
+    /**
+     * Writes the data laid out for the wire format
+     * 
+     * @param buffer The buffer to write to, with room for
+     *          {@link #getEncodedLength(WireFormat)} bytes
+     * @param wireFormat The wire format
+     */
+    public void encode(ByteBuffer buffer, WireFormat wireFormat) {
+        // Not kept in the length field, one piece of data can be encoded
+        // for several connections at once
+        int encodedLength = getEncodedLength(wireFormat);
+        buffer.put(ProtocolHandler.getInstance().getHeader(this.getClass()));
+        if (wireFormat == WireFormat.V1) {
+            buffer.putInt(encodedLength);
+            buffer.putLong(time);
+            writeBody(buffer);
+        } else {
+            writePayload(buffer);
+        }
+    }
 
     /**
      * Converts the data into a byte array
@@ -95,22 +150,38 @@ public abstract class DefaultData {
      * @return the byte array representation of the data
      */
     public byte[] toByteArray() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        
-        ByteArrayOutputStream bodyBaos = new ByteArrayOutputStream();
-        DataOutputStream bodyDos = new DataOutputStream(bodyBaos);
+        return toByteArray(WireFormat.V1);
+    }
 
-        writeBody(bodyDos);
-        length = bodyDos.size();
-        writeHeader(dos, this.getClass());
-        try {
-            dos.write(bodyBaos.toByteArray());
-        } catch (IOException ex) {
-            logger.log(Level.SEVERE, null, ex);
+    /**
+     * Converts the data into a byte array laid out for the wire format
+     * 
+     * @param wireFormat The wire format
+     * @return the byte array representation of the data
+     */
+    public byte[] toByteArray(WireFormat wireFormat) {
+        byte[] data = new byte[getEncodedLength(wireFormat)];
+        encode(ByteBuffer.wrap(data), wireFormat);
+        return data;
+    }
+
+    /**
+     * Converts the data into a whole unencrypted frame: the length prefix,
+     * the encryption flag and the data, in a single array that can be
+     * written to the socket as it is.
+     * 
+     * @param wireFormat The wire format
+     * @return the frame, or null if the data is too long for the wire format
+     */
+    public byte[] toFrame(WireFormat wireFormat) {
+        int encodedLength = getEncodedLength(wireFormat);
+        ByteBuffer frame = wireFormat.allocateFrame(1 + encodedLength);
+        if (frame == null) {
+            return null;
         }
-        
-        return baos.toByteArray();
+        frame.put((byte) 0); // no encryption
+        encode(frame, wireFormat);
+        return frame.array();
     }
 
     /**
@@ -183,4 +254,31 @@ public abstract class DefaultData {
     public boolean canBeEncrypted() {
         return canBeEncrypted;
     }
+
+    /**
+     * Retrieve if the data was parsed successfully. Data that couldn't be
+     * parsed is dropped rather than handed on.
+     * @return True if the data holds what was received
+     */
+    public boolean isParsed() {
+        return true;
+    }
+
+    /**
+     * Retrieve if this data may be discarded when the receiver can't keep up
+     * @return True if the data may be dropped
+     */
+    public boolean isDroppable() {
+        return false;
+    }
+
+    /**
+     * Retrieve the key identifying what this data describes. Queued data
+     * with the same key is superseded by this data when the receiver can't
+     * keep up.
+     * @return The key, or null if the data can't be coalesced
+     */
+    public String getCoalesceKey() {
+        return null;
+    }
 }
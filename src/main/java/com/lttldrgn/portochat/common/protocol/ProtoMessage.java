@@ -16,10 +16,13 @@
  */
 package com.lttldrgn.portochat.common.protocol;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.lttldrgn.portochat.proto.Portochat;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,35 +33,261 @@ import java.util.logging.Logger;
 public class ProtoMessage extends DefaultData {
     private static Logger logger = Logger.getLogger(ProtoMessage.class.getName());
 
+    /** Tags of the fields read to route a chat message without parsing it */
+    private static final int CHAT_MESSAGE_TAG = tag(
+            Portochat.PortoChatMessage.CHATMESSAGE_FIELD_NUMBER,
+            com.google.protobuf.WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int SENDER_ID_TAG = tag(
+            Portochat.ChatMessage.SENDERID_FIELD_NUMBER,
+            com.google.protobuf.WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int DESTINATION_ID_TAG = tag(
+            Portochat.ChatMessage.DESTINATIONID_FIELD_NUMBER,
+            com.google.protobuf.WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int IS_CHANNEL_TAG = tag(
+            Portochat.ChatMessage.ISCHANNEL_FIELD_NUMBER,
+            com.google.protobuf.WireFormat.WIRETYPE_VARINT);
+
     private Portochat.PortoChatMessage message;
+    /**
+     * A received chat message is kept serialized so it can be relayed
+     * without parsing the text, and is only parsed if asked for
+     */
+    private byte[] payload = null;
+    /** Written after the payload to replace its sender, or null */
+    private Portochat.PortoChatMessage senderStamp = null;
+    private String chatSenderId = "";
+    private String chatDestinationId = "";
+    private boolean chatIsChannel = false;
 
     public ProtoMessage() {
-        // default constructor for reflective creation
+        // default constructor for the protocol handler to parse into
     }
 
     public ProtoMessage(Portochat.PortoChatMessage message) {
         this.message = message;
     }
 
+    private static int tag(int fieldNumber, int wireType) {
+        return (fieldNumber << 3) | wireType;
+    }
+
     /**
      * Get the protobuf message
      * @return Protobuf message object
      */
     public Portochat.PortoChatMessage getMessage() {
+        if (message == null && payload != null) {
+            Portochat.PortoChatMessage.Builder builder = Portochat.PortoChatMessage.newBuilder();
+            try {
+                builder.mergeFrom(payload);
+            } catch (InvalidProtocolBufferException ex) {
+                logger.log(Level.SEVERE, "Error decoding message", ex);
+            }
+            if (senderStamp != null) {
+                builder.mergeFrom(senderStamp);
+            }
+            message = builder.build();
+        }
         return message;
     }
 
+    /**
+     * Gets the kind of message without parsing a received chat message
+     * @return The application message case
+     */
+    public Portochat.PortoChatMessage.ApplicationMessageCase getApplicationMessageCase() {
+        if (payload != null) {
+            return Portochat.PortoChatMessage.ApplicationMessageCase.CHATMESSAGE;
+        }
+        return message.getApplicationMessageCase();
+    }
+
+    /**
+     * @return The sender of a chat message
+     */
+    public String getChatSenderId() {
+        return (payload != null) ? chatSenderId : message.getChatMessage().getSenderId();
+    }
+
+    /**
+     * @return The user or channel a chat message is sent to
+     */
+    public String getChatDestinationId() {
+        return (payload != null) ? chatDestinationId : message.getChatMessage().getDestinationId();
+    }
+
+    /**
+     * @return true if a chat message is sent to a channel
+     */
+    public boolean isChatToChannel() {
+        return (payload != null) ? chatIsChannel : message.getChatMessage().getIsChannel();
+    }
+
+    /**
+     * Creates a copy of this chat message to pass on to its recipients. A
+     * received chat message is passed on as the bytes it arrived as, with
+     * the sender overwritten by a field appended after them if it differs.
+     * @param senderId The sender to set
+     * @return The chat message to send
+     */
+    public ProtoMessage createRelay(String senderId) {
+        if (payload == null) {
+            Portochat.ChatMessage chatMessage = message.getChatMessage();
+            return new ProtoMessage(ProtoUtil.createChatMessage(senderId,
+                    chatMessage.getDestinationId(), chatMessage.getIsChannel(),
+                    chatMessage.getMessage(), chatMessage.getIsAction()));
+        }
+        ProtoMessage relay = new ProtoMessage();
+        relay.payload = payload;
+        relay.chatSenderId = senderId;
+        relay.chatDestinationId = chatDestinationId;
+        relay.chatIsChannel = chatIsChannel;
+        if (!senderId.equals(chatSenderId)) {
+            // a repeated message field is merged, so the last sender wins
+            Portochat.PortoChatMessage.Builder stamp = Portochat.PortoChatMessage.newBuilder();
+            stamp.getChatMessageBuilder().setSenderId(senderId);
+            relay.senderStamp = stamp.build();
+        }
+        return relay;
+    }
+
     @Override
-    public int writeBody(DataOutputStream dos) {
-       
+    public int getPayloadSize() {
+        if (payload == null) {
+            return message.getSerializedSize();
+        }
+        return payload.length
+                + ((senderStamp != null) ? senderStamp.getSerializedSize() : 0);
+    }
+
+    @Override
+    public void writePayload(ByteBuffer buffer) {
+        if (payload == null) {
+            writeMessage(buffer, message);
+            return;
+        }
+        buffer.put(payload);
+        if (senderStamp != null) {
+            writeMessage(buffer, senderStamp);
+        }
+    }
+
+    /**
+     * Serializes a message straight into the buffer, leaving the position
+     * after it
+     * @param buffer The buffer
+     * @param message The message
+     */
+    private static void writeMessage(ByteBuffer buffer, Portochat.PortoChatMessage message) {
+        int size = message.getSerializedSize();
         try {
-            byte[] data = message.toByteArray();
-            dos.writeInt(data.length);
-            dos.write(data);
+            CodedOutputStream output;
+            if (buffer.hasArray()) {
+                output = CodedOutputStream.newInstance(buffer.array(),
+                        buffer.arrayOffset() + buffer.position(), size);
+            } else {
+                output = CodedOutputStream.newInstance(buffer.duplicate());
+            }
+            message.writeTo(output);
+            output.flush();
         } catch (IOException ex) {
             logger.log(Level.SEVERE, "Error encoding message", ex);
         }
-        return dos.size();
+        buffer.position(buffer.position() + size);
+    }
+
+    @Override
+    protected int getBodySize() {
+        return 4 + getPayloadSize(); // message length + message
+    }
+
+    @Override
+    protected void writeBody(ByteBuffer buffer) {
+        buffer.putInt(getPayloadSize());
+        writePayload(buffer);
+    }
+
+    @Override
+    public void parsePayload(ByteBuffer buffer) {
+        parseMessage(buffer, buffer.remaining());
+    }
+
+    @Override
+    public void parse(ByteBuffer buffer) {
+        super.parse(buffer);
+        int dataLength = buffer.getInt();
+        if (dataLength < 0 || dataLength > buffer.remaining()) {
+            logger.log(Level.SEVERE, "Bytes remaining doesn''t match length. Actual: {0} Expected: {1}", new Object[]{buffer.remaining(), dataLength});
+            return;
+        }
+        parseMessage(buffer, dataLength);
+    }
+
+    /**
+     * Parses the message straight out of the buffer, leaving the position
+     * after it
+     * @param buffer The buffer
+     * @param dataLength The length of the message
+     */
+    private void parseMessage(ByteBuffer buffer, int dataLength) {
+        int position = buffer.position();
+        try {
+            if (parseChatRoute(newInput(buffer, position, dataLength))) {
+                // keep the bytes, the buffer is reused once parsing is done
+                payload = new byte[dataLength];
+                buffer.get(payload);
+                message = null;
+            } else {
+                message = Portochat.PortoChatMessage.parser().parseFrom(
+                        newInput(buffer, position, dataLength));
+            }
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error decoding message", ex);
+        }
+        buffer.position(position + dataLength);
+    }
+
+    private static CodedInputStream newInput(ByteBuffer buffer, int position, int dataLength) {
+        if (buffer.hasArray()) {
+            return CodedInputStream.newInstance(buffer.array(),
+                    buffer.arrayOffset() + position, dataLength);
+        }
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position);
+        slice.limit(position + dataLength);
+        return CodedInputStream.newInstance(slice);
+    }
+
+    /**
+     * Reads just the fields needed to route a chat message, skipping over
+     * the text
+     * @param input The serialized message
+     * @return true if the message holds nothing but a chat message
+     * @throws IOException if the message is malformed
+     */
+    private boolean parseChatRoute(CodedInputStream input) throws IOException {
+        boolean chat = false;
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (tag != CHAT_MESSAGE_TAG) {
+                return false;
+            }
+            int limit = input.pushLimit(input.readRawVarint32());
+            while ((tag = input.readTag()) != 0) {
+                if (tag == SENDER_ID_TAG) {
+                    chatSenderId = input.readStringRequireUtf8();
+                } else if (tag == DESTINATION_ID_TAG) {
+                    chatDestinationId = input.readStringRequireUtf8();
+                } else if (tag == IS_CHANNEL_TAG) {
+                    chatIsChannel = input.readBool();
+                } else if (!input.skipField(tag)) {
+                    return false;
+                }
+            }
+            input.popLimit(limit);
+            chat = true;
+        }
+        return chat;
     }
 
     @Override
@@ -80,4 +309,43 @@ public class ProtoMessage extends DefaultData {
     public void setCanBeEncrypted(boolean canBeEncrypted) {
         this.canBeEncrypted = canBeEncrypted;
     }
+
+    @Override
+    public boolean isParsed() {
+        return message != null || payload != null;
+    }
+
+    @Override
+    public boolean isDroppable() {
+        return getApplicationMessageCase()
+                == Portochat.PortoChatMessage.ApplicationMessageCase.CHATMESSAGE;
+    }
+
+    @Override
+    public String getCoalesceKey() {
+        switch (getApplicationMessageCase()) {
+            case PING:
+                return "ping";
+            case NOTIFICATION:
+                Portochat.Notification notification = getMessage().getNotification();
+                switch (notification.getNotificationDataCase()) {
+                    case CHANNELJOIN:
+                        return "member:" + notification.getChannelJoin().getChannel()
+                                + ":" + notification.getChannelJoin().getUserId();
+                    case CHANNELPART:
+                        return "member:" + notification.getChannelPart().getChannel()
+                                + ":" + notification.getChannelPart().getUserId();
+                    case CHANNELADDED:
+                        return "channel:" + notification.getChannelAdded().getChannel();
+                    case CHANNELREMOVED:
+                        return "channel:" + notification.getChannelRemoved().getChannel();
+                    case USERCONNECTIONSTATUS:
+                        return "user:" + notification.getUserConnectionStatus().getUser().getId();
+                    default:
+                        return null;
+                }
+            default:
+                return null;
+        }
+    }
 }
@@ -18,8 +18,10 @@ package com.lttldrgn.portochat.common.protocol;
 
 import com.google.protobuf.ByteString;
 import com.lttldrgn.portochat.common.User;
+import com.lttldrgn.portochat.proto.Portochat.Capability;
 import com.lttldrgn.portochat.proto.Portochat.ChannelJoin;
 import com.lttldrgn.portochat.proto.Portochat.ChannelList;
+import com.lttldrgn.portochat.proto.Portochat.ChannelMembership;
 import com.lttldrgn.portochat.proto.Portochat.ChannelPart;
 import com.lttldrgn.portochat.proto.Portochat.ChatMessage;
 import com.lttldrgn.portochat.proto.Portochat.ErrorMessage;
@@ -27,12 +29,15 @@ import com.lttldrgn.portochat.proto.Portochat.Notification;
 import com.lttldrgn.portochat.proto.Portochat.Ping;
 import com.lttldrgn.portochat.proto.Portochat.Pong;
 import com.lttldrgn.portochat.proto.Portochat.PortoChatMessage;
+import com.lttldrgn.portochat.proto.Portochat.PresenceUpdate;
 import com.lttldrgn.portochat.proto.Portochat.Request;
 import com.lttldrgn.portochat.proto.Portochat.Response;
+import com.lttldrgn.portochat.proto.Portochat.SyncVersion;
 import com.lttldrgn.portochat.proto.Portochat.UserConnectionStatus;
 import com.lttldrgn.portochat.proto.Portochat.UserData;
 import com.lttldrgn.portochat.proto.Portochat.UserList;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -49,6 +54,20 @@ public class ProtoUtil {
         return appMessage.build();
     }
 
+    /**
+     * Create a ChannelList request for only the changes since a version
+     * @param epoch Epoch of the channel list the client has
+     * @param version Version of the channel list the client has
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createChannelListRequest(long epoch, long version) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Request.Builder request = appMessage.getRequestBuilder();
+        request.setRequestType(Request.RequestType.ChannelList);
+        request.setSyncVersion(createSyncVersion(epoch, version));
+        return appMessage.build();
+    }
+
     public static PortoChatMessage createChannelList(List<String> channels) {
         PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
         ChannelList.Builder channelBuilder = ChannelList.newBuilder();
@@ -57,6 +76,62 @@ public class ProtoUtil {
         return appMessage.build();
     }
 
+    /**
+     * Create a versioned ChannelList
+     * @param channels All the channels, or those added since the version
+     *          the client asked with if delta
+     * @param removedChannels Channels removed since that version if delta
+     * @param delta true if only the changes are sent
+     * @param more true if more of the list follows in another message
+     * @param epoch Epoch of the channel list
+     * @param version Version of the channel list
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createChannelList(Collection<String> channels,
+            Collection<String> removedChannels, boolean delta, boolean more,
+            long epoch, long version) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        ChannelList.Builder channelBuilder = appMessage.getChannelListBuilder();
+        channelBuilder.getChannelsBuilder().addAllValues(channels);
+        channelBuilder.addAllRemovedChannels(removedChannels);
+        channelBuilder.setDelta(delta);
+        channelBuilder.setMore(more);
+        channelBuilder.setVersion(createSyncVersion(epoch, version));
+        return appMessage.build();
+    }
+
+    /**
+     * Create a ChannelList request for one page of the channels
+     * @param pageToken Token of the page, empty for the first
+     * @param pageSize Most channels to send
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createChannelListPageRequest(String pageToken,
+            int pageSize) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Request.Builder request = appMessage.getRequestBuilder();
+        request.setRequestType(Request.RequestType.ChannelList);
+        request.setPageToken(pageToken);
+        request.setPageSize(pageSize);
+        return appMessage.build();
+    }
+
+    /**
+     * Create a page of the ChannelList
+     * @param channels The page's channels
+     * @param nextPageToken Token of the next page, empty after the last
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createChannelListPage(Collection<String> channels,
+            String nextPageToken) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        ChannelList.Builder channelBuilder = appMessage.getChannelListBuilder();
+        channelBuilder.getChannelsBuilder().addAllValues(channels);
+        channelBuilder.setPaged(true);
+        channelBuilder.setNextPageToken(nextPageToken);
+        return appMessage.build();
+    }
+
     public static PortoChatMessage createChannelUserListRequest(String channelName) {
         PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
         Request.Builder request = Request.newBuilder();
@@ -66,6 +141,74 @@ public class ProtoUtil {
         return appMessage.build();
     }
 
+    /**
+     * Create a ChannelUserList request for only the changes since a version
+     * @param channelName Channel to list the users of
+     * @param epoch Epoch of the channel's user list the client has
+     * @param version Version of the channel's user list the client has
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createChannelUserListRequest(String channelName,
+            long epoch, long version) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Request.Builder request = appMessage.getRequestBuilder();
+        request.setRequestType(Request.RequestType.ChannelUserList);
+        request.getStringRequestDataBuilder().setValue(channelName);
+        request.setSyncVersion(createSyncVersion(epoch, version));
+        return appMessage.build();
+    }
+
+    /**
+     * Create a ChannelUserList request for one page of the channel's users
+     * @param channelName Channel to list the users of
+     * @param pageToken Token of the page, empty for the first
+     * @param pageSize Most users to send
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createChannelUserListPageRequest(String channelName,
+            String pageToken, int pageSize) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Request.Builder request = appMessage.getRequestBuilder();
+        request.setRequestType(Request.RequestType.ChannelUserList);
+        request.getStringRequestDataBuilder().setValue(channelName);
+        request.setPageToken(pageToken);
+        request.setPageSize(pageSize);
+        return appMessage.build();
+    }
+
+    /**
+     * Create a ChannelUserList request for the first page of the channel's
+     * users, or only the changes since a version if they fit on the page
+     * @param channelName Channel to list the users of
+     * @param pageSize Most users to send
+     * @param epoch Epoch of the list the client has
+     * @param version Version of the list the client has
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createChannelUserListPageRequest(String channelName,
+            int pageSize, long epoch, long version) {
+        PortoChatMessage.Builder appMessage = createChannelUserListPageRequest(
+                channelName, "", pageSize).toBuilder();
+        appMessage.getRequestBuilder().setSyncVersion(createSyncVersion(epoch, version));
+        return appMessage.build();
+    }
+
+    /**
+     * Create a UserList request for one page of the users
+     * @param pageToken Token of the page, empty for the first
+     * @param pageSize Most users to send
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createUserListPageRequest(String pageToken,
+            int pageSize) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Request.Builder request = appMessage.getRequestBuilder();
+        request.setRequestType(Request.RequestType.UserList);
+        request.setPageToken(pageToken);
+        request.setPageSize(pageSize);
+        return appMessage.build();
+    }
+
     public static PortoChatMessage createUserListRequest() {
         PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
         Request.Builder request = Request.newBuilder();
@@ -74,6 +217,20 @@ public class ProtoUtil {
         return appMessage.build();
     }
 
+    /**
+     * Create a UserList request for only the changes since a version
+     * @param epoch Epoch of the user list the client has
+     * @param version Version of the user list the client has
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createUserListRequest(long epoch, long version) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Request.Builder request = appMessage.getRequestBuilder();
+        request.setRequestType(Request.RequestType.UserList);
+        request.setSyncVersion(createSyncVersion(epoch, version));
+        return appMessage.build();
+    }
+
     public static PortoChatMessage createSetUserNameRequest(String username) {
         PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
         Request.Builder request = Request.newBuilder();
@@ -94,12 +251,13 @@ public class ProtoUtil {
         return appMessage.build();
     }
 
-    public static PortoChatMessage createChannelJoinNotification(String channel, String userId) {
+    public static PortoChatMessage createChannelJoinNotification(String channel, User user) {
         PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
         Notification.Builder notification = Notification.newBuilder();
         ChannelJoin.Builder channelJoin = notification.getChannelJoinBuilder();
         channelJoin.setChannel(channel);
-        channelJoin.setUserId(userId);
+        channelJoin.setUserId(user.getId());
+        channelJoin.setUser(convertToUserData(user));
         appMessage.setNotification(notification);
         return appMessage.build();
     }
@@ -114,6 +272,25 @@ public class ProtoUtil {
         return appMessage.build();
     }
 
+    /**
+     * Create a ChannelMembership notification
+     * @param channel Channel the users joined and left
+     * @param joined Users that joined
+     * @param partedUserIds IDs of users that left
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createChannelMembership(String channel,
+            Collection<User> joined, Collection<String> partedUserIds) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        ChannelMembership.Builder membership = appMessage.getNotificationBuilder().getChannelMembershipBuilder();
+        membership.setChannel(channel);
+        for (User user : joined) {
+            membership.addJoined(convertToUserData(user));
+        }
+        membership.addAllPartedUserIds(partedUserIds);
+        return appMessage.build();
+    }
+
     public static PortoChatMessage createChannelAddedNotification(String channel) {
         PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
         Notification.Builder notification = appMessage.getNotificationBuilder();
@@ -140,6 +317,79 @@ public class ProtoUtil {
         return appMessage.build();
     }
 
+    /**
+     * Create a versioned UserList
+     * @param users All the users, or those added or changed since the
+     *          version the client asked with if delta
+     * @param removedUserIds IDs of the users removed since that version if
+     *          delta
+     * @param channel The channel the users are in, or null for the server
+     * @param delta true if only the changes are sent
+     * @param more true if more of the list follows in another message
+     * @param epoch Epoch of the user list
+     * @param version Version of the user list
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createUserList(Collection<User> users,
+            Collection<String> removedUserIds, String channel, boolean delta,
+            boolean more, long epoch, long version) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        UserList.Builder userList = appMessage.getUserListBuilder();
+        for (User user : users) {
+            userList.addUsers(convertToUserData(user));
+        }
+        userList.addAllRemovedUserIds(removedUserIds);
+        if (channel != null) {
+            userList.setChannel(channel);
+        }
+        userList.setDelta(delta);
+        userList.setMore(more);
+        userList.setVersion(createSyncVersion(epoch, version));
+        return appMessage.build();
+    }
+
+    /**
+     * Create a page of a UserList
+     * @param users The page's users
+     * @param channel The channel the users are in, or null for the server
+     * @param nextPageToken Token of the next page, empty after the last
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createUserListPage(Collection<User> users,
+            String channel, String nextPageToken) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        UserList.Builder userList = appMessage.getUserListBuilder();
+        for (User user : users) {
+            userList.addUsers(convertToUserData(user));
+        }
+        if (channel != null) {
+            userList.setChannel(channel);
+        }
+        userList.setPaged(true);
+        userList.setNextPageToken(nextPageToken);
+        return appMessage.build();
+    }
+
+    /**
+     * Create a page of a UserList holding the whole list, with the version
+     * the client can later ask for the changes since
+     * @param users All the users
+     * @param channel The channel the users are in
+     * @param epoch Epoch of the list
+     * @param version Version of the list
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createUserListPage(Collection<User> users,
+            String channel, long epoch, long version) {
+        PortoChatMessage.Builder appMessage = createUserListPage(users, channel, "").toBuilder();
+        appMessage.getUserListBuilder().setVersion(createSyncVersion(epoch, version));
+        return appMessage.build();
+    }
+
+    private static SyncVersion createSyncVersion(long epoch, long version) {
+        return SyncVersion.newBuilder().setEpoch(epoch).setVersion(version).build();
+    }
+
     private static UserData convertToUserData(User user) {
         UserData.Builder userData = UserData.newBuilder();
         userData.setId(user.getId());
@@ -211,20 +461,73 @@ public class ProtoUtil {
         return appMessage.build();
     }
 
-    public static PortoChatMessage createSetPublicKey(byte[] encodedKey) {
+    /**
+     * Creates a request giving the server the client's public key
+     * @param encodedKey The client's encoded public key
+     * @param cipherModes Ids of the cipher modes the client supports
+     * @return PortoChatMessage with a SetUserPublicKey request
+     */
+    public static PortoChatMessage createSetPublicKey(byte[] encodedKey, int... cipherModes) {
         PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
         Request.Builder request = appMessage.getRequestBuilder();
         request.setRequestType(Request.RequestType.SetUserPublicKey);
         request.setByteData(ByteString.copyFrom(encodedKey));
+        for (int cipherMode : cipherModes) {
+            request.addCipherModes(cipherMode);
+        }
+        return appMessage.build();
+    }
+
+    /**
+     * Creates a request giving the server a public key for a Diffie-Hellman
+     * key exchange
+     * @param keyExchange Id of the key exchange
+     * @param encodedKey The client's encoded public key
+     * @param cipherModes Ids of the cipher modes the client supports
+     * @return PortoChatMessage with a SetUserKeyShare request
+     */
+    public static PortoChatMessage createSetKeyShare(int keyExchange, byte[] encodedKey,
+            int... cipherModes) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Request.Builder request = appMessage.getRequestBuilder();
+        request.setRequestType(Request.RequestType.SetUserKeyShare);
+        request.setByteData(ByteString.copyFrom(encodedKey));
+        request.setKeyExchange(keyExchange);
+        for (int cipherMode : cipherModes) {
+            request.addCipherModes(cipherMode);
+        }
+        return appMessage.build();
+    }
+
+    /**
+     * Creates a request giving the client the server's public key for a
+     * Diffie-Hellman key exchange
+     * @param keyExchange Id of the key exchange
+     * @param encodedKey The server's encoded public key
+     * @param cipherMode Id of the cipher mode the session uses
+     * @return PortoChatMessage with a SetServerSharedKey request
+     */
+    public static PortoChatMessage createSetServerKeyShare(int keyExchange,
+            byte[] encodedKey, int cipherMode) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder(
+                createSetServerSharedKey(encodedKey, cipherMode));
+        appMessage.getRequestBuilder().setKeyExchange(keyExchange);
         return appMessage.build();
     }
 
-    public static PortoChatMessage createSetServerSharedKey(byte[] encodedKey) {
+    /**
+     * Creates a request giving the client the session's encrypted secret key
+     * @param encodedKey The secret key, encrypted with the client's public key
+     * @param cipherMode Id of the cipher mode the session uses
+     * @return PortoChatMessage with a SetServerSharedKey request
+     */
+    public static PortoChatMessage createSetServerSharedKey(byte[] encodedKey, int cipherMode) {
         PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
         Request.Builder request = appMessage.getRequestBuilder();
         request.setRequestId(UUID.randomUUID().toString());
         request.setRequestType(Request.RequestType.SetServerSharedKey);
         request.setByteData(ByteString.copyFrom(encodedKey));
+        request.addCipherModes(cipherMode);
         return appMessage.build();
     }
 
@@ -238,6 +541,141 @@ public class ProtoUtil {
         return appMessage.build();
     }
 
+    /**
+     * Creates a request telling the server which optional features the client
+     * supports
+     * @param capabilities The client's capabilities
+     * @return PortoChatMessage with a SetCapabilities request
+     */
+    public static PortoChatMessage createSetCapabilities(
+            Collection<Capability> capabilities) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Request.Builder request = appMessage.getRequestBuilder();
+        request.setRequestId(UUID.randomUUID().toString());
+        request.setRequestType(Request.RequestType.SetCapabilities);
+        request.addAllCapabilities(capabilities);
+        return appMessage.build();
+    }
+
+    /**
+     * Creates a response telling the client which optional features the server
+     * supports
+     * @param requestId The id of the SetCapabilities request
+     * @param capabilities The server's capabilities
+     * @param keyExchanges Ids of the key exchanges the server accepts, most
+     * preferred first
+     * @return PortoChatMessage with a ServerCapabilities response
+     */
+    public static PortoChatMessage createServerCapabilities(String requestId,
+            Collection<Capability> capabilities, int... keyExchanges) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Response.Builder response = appMessage.getResponseBuilder();
+        if (requestId != null && !requestId.isEmpty()) {
+            response.setRequestId(requestId);
+        }
+        response.setResponseType(Response.ResponseType.ServerCapabilities);
+        response.addAllCapabilities(capabilities);
+        for (int keyExchange : keyExchanges) {
+            response.addKeyExchanges(keyExchange);
+        }
+        return appMessage.build();
+    }
+
+    /**
+     * Creates a request to resume a session instead of exchanging keys
+     * @param ticket The ticket the server issued
+     * @param nonce A random nonce for deriving the resumed session's key
+     * @param binder The nonce's HMAC keyed with the ticket's secret key
+     * @return PortoChatMessage with a ResumeSession request
+     */
+    public static PortoChatMessage createResumeSession(byte[] ticket, byte[] nonce,
+            byte[] binder) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Request.Builder request = appMessage.getRequestBuilder();
+        request.setRequestId(UUID.randomUUID().toString());
+        request.setRequestType(Request.RequestType.ResumeSession);
+        request.setByteData(ByteString.copyFrom(ticket));
+        request.setResumeNonce(ByteString.copyFrom(nonce));
+        request.setResumeBinder(ByteString.copyFrom(binder));
+        return appMessage.build();
+    }
+
+    /**
+     * Creates a request giving the client a ticket to resume its session with
+     * @param ticket The sealed ticket
+     * @return PortoChatMessage with a SetSessionTicket request
+     */
+    public static PortoChatMessage createSetSessionTicket(byte[] ticket) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Request.Builder request = appMessage.getRequestBuilder();
+        request.setRequestType(Request.RequestType.SetSessionTicket);
+        request.setByteData(ByteString.copyFrom(ticket));
+        return appMessage.build();
+    }
+
+    /**
+     * Creates a response accepting a session resumption
+     * @param requestId Id of the ResumeSession request
+     * @param nonce The server's random nonce for deriving the session's key
+     * @return PortoChatMessage with a SessionResumed response
+     */
+    public static PortoChatMessage createSessionResumed(String requestId, byte[] nonce) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Response.Builder response = appMessage.getResponseBuilder();
+        if (requestId != null && !requestId.isEmpty()) {
+            response.setRequestId(requestId);
+        }
+        response.setResponseType(Response.ResponseType.SessionResumed);
+        response.setByteResponseData(ByteString.copyFrom(nonce));
+        return appMessage.build();
+    }
+
+    /**
+     * Creates a response rejecting a session resumption
+     * @param requestId Id of the ResumeSession request
+     * @return PortoChatMessage with a SessionResumeRejected response
+     */
+    public static PortoChatMessage createSessionResumeRejected(String requestId) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Response.Builder response = appMessage.getResponseBuilder();
+        if (requestId != null && !requestId.isEmpty()) {
+            response.setRequestId(requestId);
+        }
+        response.setResponseType(Response.ResponseType.SessionResumeRejected);
+        return appMessage.build();
+    }
+
+    /**
+     * Creates a request to switch to a newer wire format
+     * @param version The newest wire format version the sender supports
+     * @return PortoChatMessage with a SetWireFormat request
+     */
+    public static PortoChatMessage createSetWireFormatRequest(int version) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Request.Builder request = appMessage.getRequestBuilder();
+        request.setRequestId(UUID.randomUUID().toString());
+        request.setRequestType(Request.RequestType.SetWireFormat);
+        request.setIntRequestData(version);
+        return appMessage.build();
+    }
+
+    /**
+     * Creates a response accepting a wire format
+     * @param requestId Id of the SetWireFormat request
+     * @param version The wire format version both sides switch to
+     * @return PortoChatMessage with a WireFormatAccepted response
+     */
+    public static PortoChatMessage createWireFormatAccepted(String requestId, int version) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Response.Builder response = appMessage.getResponseBuilder();
+        if (requestId != null && !requestId.isEmpty()) {
+            response.setRequestId(requestId);
+        }
+        response.setResponseType(Response.ResponseType.WireFormatAccepted);
+        response.setIntResponseData(version);
+        return appMessage.build();
+    }
+
     /**
      * Creates a user does not exist message
      * @param user Object representing the destination user of a message that does not exist
@@ -260,6 +698,52 @@ public class ProtoUtil {
         return appMessage.build();
     }
 
+    /**
+     * Create a UserRenamed notification
+     * @param user User with their new name
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createUserRenamedNotification(User user) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        appMessage.getNotificationBuilder().getUserRenamedBuilder()
+                .setUserId(user.getId())
+                .setName(user.getName());
+        return appMessage.build();
+    }
+
+    /**
+     * Create a presence request about a user
+     * @param requestType UserPresence, SubscribePresence or
+     *          UnsubscribePresence
+     * @param userName Name of the user
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createPresenceRequest(Request.RequestType requestType,
+            String userName) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        Request.Builder request = appMessage.getRequestBuilder();
+        request.setRequestType(requestType);
+        request.getStringRequestDataBuilder().setValue(userName);
+        return appMessage.build();
+    }
+
+    /**
+     * Create a PresenceUpdate notification
+     * @param online Users that came online
+     * @param offlineUserIds IDs of users that went offline
+     * @return PortoChatMessage
+     */
+    public static PortoChatMessage createPresenceUpdate(Collection<User> online,
+            Collection<String> offlineUserIds) {
+        PortoChatMessage.Builder appMessage = PortoChatMessage.newBuilder();
+        PresenceUpdate.Builder update = appMessage.getNotificationBuilder().getPresenceUpdateBuilder();
+        for (User user : online) {
+            update.addOnline(convertToUserData(user));
+        }
+        update.addAllOfflineUserIds(offlineUserIds);
+        return appMessage.build();
+    }
+
     /**
      * Create a UserNameInUse error
      * @param name User name in use
@@ -16,15 +16,13 @@
  */
 package com.lttldrgn.portochat.common.protocol;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,15 +34,27 @@ import java.util.logging.Logger;
  */
 public class ProtocolHandler {
 
-    private Map<Byte, String> protocolClassMap = null;
-    private Map<String, Byte> protocolHeaderMap = null;
-    private static ProtocolHandler instance = null;
+    /** The number of distinct message types */
+    private static final int TYPE_COUNT = 256;
     private static final Logger logger = Logger.getLogger(ProtocolHandler.class.getName());
+    private static final ProtocolHandler instance = new ProtocolHandler();
+
+    /**
+     * Factories indexed by unsigned type byte. Registering replaces the whole
+     * array so the inbound path can read it without locking.
+     */
+    private volatile Supplier<? extends DefaultData>[] factories;
+    private final Map<Class<?>, Byte> protocolHeaderMap = new ConcurrentHashMap<>();
     
     /**
      * Private constructor
      */
     private ProtocolHandler() {
+        @SuppressWarnings("unchecked")
+        Supplier<? extends DefaultData>[] empty =
+                (Supplier<? extends DefaultData>[]) new Supplier<?>[TYPE_COUNT];
+        factories = empty;
+        registerType((byte) 0, ProtoMessage.class, ProtoMessage::new);
     }
 
     /**
@@ -53,25 +63,34 @@ public class ProtocolHandler {
      * @return ProtocolHandler
      */
     public static ProtocolHandler getInstance() {
-        if (instance == null) {
-            instance = new ProtocolHandler();
-            instance.initialize();
-        }
-
         return instance;
     }
 
     /**
-     * Initializes the protocol handler
+     * Registers a DefaultData type so it can be sent and received. Types
+     * should be registered at startup, before any connections are made.
+     * 
+     * @param <T> The DefaultData class
+     * @param type The byte identifying the type on the wire
+     * @param clazz The DefaultData class
+     * @param factory Creates an empty object of the class to parse into
+     * @throws IllegalArgumentException if the type or class is already
+     *          registered
      */
-    private void initialize() {
-        protocolClassMap = new HashMap<>();
-        protocolClassMap.put((byte)0, "com.lttldrgn.portochat.common.protocol.ProtoMessage");
-
-        protocolHeaderMap = new HashMap<>();
-        for (Map.Entry<Byte, String> entry : protocolClassMap.entrySet()) {
-            protocolHeaderMap.put(entry.getValue(), entry.getKey());
+    public synchronized <T extends DefaultData> void registerType(byte type,
+            Class<T> clazz, Supplier<T> factory) {
+        int index = type & 0xFF;
+        if (factories[index] != null) {
+            throw new IllegalArgumentException("Protocol type " + index
+                    + " is already registered");
+        }
+        if (protocolHeaderMap.putIfAbsent(clazz, type) != null) {
+            throw new IllegalArgumentException(clazz.getName()
+                    + " is already registered");
         }
+        Supplier<? extends DefaultData>[] newFactories = factories.clone();
+        newFactories[index] = factory;
+        factories = newFactories;
     }
     
     /**
@@ -83,44 +102,91 @@ public class ProtocolHandler {
      * @return a List&ltDefaultData&gt of all the processed DefaultData objects
      */
     public List<DefaultData> processData(byte[] data, int length) {
-        ArrayList<DefaultData> defaultDataList = new ArrayList<>();
+        return processData(ByteBuffer.wrap(data, 0, length), WireFormat.V1);
+    }
 
-        int index = 0;
-        while (index < length) {
-            // Byte 0 is the message type
-            String protocolClassString = protocolClassMap.get(data[index]);
-            if (protocolClassString != null) {
-                try {
-                    Class<?> protocolClass = Class.forName(protocolClassString);
-                    Constructor<?> cons = protocolClass.getConstructor();
-                    byte[] chunk;
-                    chunk = Arrays.copyOfRange(data, index, data.length);
-                    DataInputStream dis = new DataInputStream(
-                        new ByteArrayInputStream(chunk));
+    /**
+     * This method processes the remaining bytes of a buffer laid out for the
+     * wire format and returns a list of DefaultData objects. The messages are
+     * parsed straight out of the buffer, which may be reused once this
+     * returns.
+     * 
+     * @param buffer the buffer, positioned at the first message
+     * @param wireFormat the wire format
+     * 
+     * @return a List&ltDefaultData&gt of all the processed DefaultData objects
+     */
+    public List<DefaultData> processData(ByteBuffer buffer, WireFormat wireFormat) {
+        ArrayList<DefaultData> defaultDataList = new ArrayList<>(1);
+
+        if (wireFormat != WireFormat.V1) {
+            // A single message per frame, the frame length is its length
+            int length = buffer.remaining();
+            DefaultData defaultData = (length > 0) ? createData(buffer.get()) : null;
+            if (defaultData != null) {
+                defaultData.parsePayload(buffer);
+                defaultData.setLength(length);
+                addParsed(defaultDataList, defaultData);
+            }
+            return defaultDataList;
+        }
 
-                    DefaultData defaultData = (DefaultData)cons.newInstance();
-                    defaultData.parse(dis);
-                    defaultDataList.add(defaultData);
-                    int dataLength = defaultData.getLength();
-                    index += dataLength;
-                    if (dataLength <= 0) {
-                        logger.log(Level.SEVERE, "Invalid data length: {0}", dataLength);
-                        break;
-                    }
-                }
-                catch (InstantiationException | IllegalAccessException | 
-                        IllegalArgumentException | InvocationTargetException | 
-                        NoSuchMethodException | SecurityException | ClassNotFoundException ex) {
-                    logger.log(Level.SEVERE, "Error decoding data", ex);
-                }
-            } else {
-                logger.log(Level.SEVERE, "Unknown protocol to decode: {0}", data[index]);
+        int end = buffer.limit();
+        while (buffer.position() < end) {
+            int index = buffer.position();
+            // Byte 0 is the message type
+            DefaultData defaultData = createData(buffer.get(index));
+            if (defaultData == null) {
                 break;
             }
+            try {
+                defaultData.parse(buffer);
+            } catch (BufferUnderflowException ex) {
+                logger.log(Level.SEVERE, "Truncated data", ex);
+                break;
+            }
+            addParsed(defaultDataList, defaultData);
+            int dataLength = defaultData.getLength();
+            if (dataLength <= 0 || dataLength > end - index) {
+                logger.log(Level.SEVERE, "Invalid data length: {0}", dataLength);
+                break;
+            }
+            buffer.position(index + dataLength);
         }
         return defaultDataList;
     }
 
+    /**
+     * Adds data to the list if it parsed, so a malformed message is dropped
+     * instead of reaching the listeners
+     * 
+     * @param defaultDataList The list
+     * @param defaultData The parsed data
+     */
+    private void addParsed(List<DefaultData> defaultDataList, DefaultData defaultData) {
+        if (defaultData.isParsed()) {
+            defaultDataList.add(defaultData);
+        } else {
+            logger.log(Level.WARNING, "Dropping {0} that couldn''t be parsed",
+                    defaultData.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Creates an empty DefaultData object of the type
+     * 
+     * @param type The message type
+     * @return the object, or null if the type is unknown
+     */
+    private DefaultData createData(byte type) {
+        Supplier<? extends DefaultData> factory = factories[type & 0xFF];
+        if (factory == null) {
+            logger.log(Level.SEVERE, "Unknown protocol to decode: {0}", type);
+            return null;
+        }
+        return factory.get();
+    }
+
     /**
      * Gets the header of the DefaultData class
      * 
@@ -128,8 +194,8 @@ public class ProtocolHandler {
      * 
      * @return the byte value of the header for the DefaultData class
      */
-    public Byte getHeader(Class clazz) {
-        return protocolHeaderMap.get(clazz.getName());
+    public Byte getHeader(Class<?> clazz) {
+        return protocolHeaderMap.get(clazz);
     }
 }
 
@@ -0,0 +1,198 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.common.protocol;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The ways a message can be laid out on the wire. Every frame starts with its
+ * length, followed by a byte flagging encryption and then the message.
+ *
+ * V1 frames have an unsigned short length, so they can't exceed 64 KB. The
+ * message is the DefaultData header (type, length and time) followed by the
+ * body.
+ *
+ * V2 frames have a varint length, and the frame length is the only length
+ * sent. The message is the type byte followed by the body.
+ *
+ * Encrypted messages are laid out as described by the session's CipherMode.
+ *
+ * Connections start with V1. A client that supports V2 asks for it with a
+ * SetWireFormat request; the server answers with WireFormatAccepted and
+ * writes V2 from then on, and the client echoes the response before it
+ * writes V2 itself.
+ */
+public enum WireFormat {
+    V1(1, 0xFFFF),
+    V2(2, Integer.MAX_VALUE);
+
+    /** The largest frame accepted unless configured otherwise */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    /** The newest format this build supports */
+    public static final WireFormat LATEST = V2;
+    /** Bytes needed for the longest varint length */
+    public static final int MAX_HEADER_LENGTH = 5;
+
+    private final int version;
+    private final int maxFrameLength;
+
+    private WireFormat(int version, int maxFrameLength) {
+        this.version = version;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * @return The version number sent during negotiation
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The largest frame this format can describe
+     */
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * @param version A version number
+     * @return The newest format no newer than the version, or null if the
+     *          version predates all formats
+     */
+    public static WireFormat fromVersion(int version) {
+        WireFormat wireFormat = null;
+        for (WireFormat candidate : values()) {
+            if (candidate.version <= version) {
+                wireFormat = candidate;
+            }
+        }
+        return wireFormat;
+    }
+
+    /**
+     * @param length The frame length
+     * @return The number of bytes needed to write the length
+     */
+    public int getHeaderLength(int length) {
+        if (this == V1) {
+            return 2;
+        }
+        int headerLength = 1;
+        while ((length >>>= 7) != 0) {
+            headerLength++;
+        }
+        return headerLength;
+    }
+
+    /**
+     * Writes the frame length
+     *
+     * @param buffer The buffer to write to
+     * @param length The frame length
+     */
+    public void writeHeader(ByteBuffer buffer, int length) {
+        if (this == V1) {
+            buffer.putShort((short) length);
+        } else {
+            while ((length & ~0x7F) != 0) {
+                buffer.put((byte) ((length & 0x7F) | 0x80));
+                length >>>= 7;
+            }
+            buffer.put((byte) length);
+        }
+    }
+
+    /**
+     * Allocates a frame with its length prefix already written
+     *
+     * @param length The frame length, not counting the prefix
+     * @return A buffer positioned after the prefix with room for the frame,
+     *          or null if this format can't describe the length
+     */
+    public ByteBuffer allocateFrame(int length) {
+        if (length > maxFrameLength) {
+            return null;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(getHeaderLength(length) + length);
+        writeHeader(frame, length);
+        return frame;
+    }
+
+    /**
+     * Reads a frame length from a stream
+     *
+     * @param dis The stream
+     * @return The frame length
+     * @throws IOException if the stream ends or the length is malformed
+     */
+    public int readHeader(DataInputStream dis) throws IOException {
+        if (this == V1) {
+            return dis.readUnsignedShort();
+        }
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = dis.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            checkByte(b, shift);
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return length;
+            }
+        }
+    }
+
+    /**
+     * Reads a frame length from a buffer if all of it has arrived. The
+     * buffer's position is left after the length if it was read.
+     *
+     * @param buffer The buffer
+     * @return The frame length, or -1 if more bytes are needed
+     * @throws IOException if the length is malformed
+     */
+    public int readHeader(ByteBuffer buffer) throws IOException {
+        if (this == V1) {
+            return (buffer.remaining() >= 2) ? buffer.getShort() & 0xFFFF : -1;
+        }
+        int position = buffer.position();
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                buffer.position(position);
+                return -1;
+            }
+            byte b = buffer.get();
+            checkByte(b, shift);
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return length;
+            }
+        }
+    }
+
+    private static void checkByte(int b, int shift) throws IOException {
+        // the fifth byte may only hold the top three bits of an int
+        if (shift == 28 && (b & 0xF8) != 0) {
+            throw new IOException("Malformed frame length");
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Numbers the changes to a list kept by the server, such as its user list,
+ * and remembers the latest of them, so a client that has seen the list
+ * before need only be sent what changed since.
+ *
+ * Each change is an entry, identified by its key, being added, updated or
+ * removed, and raises the version by one. A log's epoch is unique to the
+ * log, so versions from another log, or from before a restart, are never
+ * taken for this one's.
+ *
+ * Versions must be read before the list they describe and changes recorded
+ * after they are made. A client may then be sent a change it already has,
+ * which adds or removes what is already added or removed, but never misses
+ * one.
+ */
+public class ChangeLog<T> {
+
+    private static final AtomicLong nextEpoch =
+            new AtomicLong(System.currentTimeMillis() << 16);
+
+    private final long epoch = nextEpoch.incrementAndGet();
+    private final int capacity;
+    /** The latest changes, oldest first */
+    private final Deque<Change<T>> changes = new ArrayDeque<>();
+    private long version = 0;
+
+    /**
+     * Public constructor
+     *
+     * @param capacity How many changes to remember
+     */
+    public ChangeLog(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * @return The epoch of the log's versions
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return The version of the list
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Records an entry being added or updated
+     *
+     * @param key The entry's key
+     * @param value The entry
+     */
+    public void put(String key, T value) {
+        record(key, value);
+    }
+
+    /**
+     * Records an entry being removed
+     *
+     * @param key The entry's key
+     */
+    public void remove(String key) {
+        record(key, null);
+    }
+
+    /**
+     * Gets the changes made since a version, each entry's latest only
+     *
+     * @param epoch The epoch of the version
+     * @param since The version
+     * @return The changes, or null if the log doesn't reach back to the
+     *          version
+     */
+    public synchronized Changes<T> getChangesSince(long epoch, long since) {
+        if (epoch != this.epoch || since > version
+                || since < version - changes.size()) {
+            return null;
+        }
+        Map<String, T> changed = new LinkedHashMap<>();
+        // Only the newest changes are after the version
+        int skip = changes.size() - (int) (version - since);
+        for (Change<T> change : changes) {
+            if (skip-- > 0) {
+                continue;
+            }
+            changed.remove(change.key);
+            changed.put(change.key, change.value);
+        }
+        List<T> updated = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, T> entry : changed.entrySet()) {
+            if (entry.getValue() != null) {
+                updated.add(entry.getValue());
+            } else {
+                removed.add(entry.getKey());
+            }
+        }
+        return new Changes<>(version, updated, removed);
+    }
+
+    private synchronized void record(String key, T value) {
+        if (changes.size() == capacity) {
+            changes.removeFirst();
+        }
+        changes.addLast(new Change<>(key, value));
+        version++;
+    }
+
+    /**
+     * The changes made to a list since a version
+     */
+    public static class Changes<T> {
+        private final long version;
+        private final List<T> updated;
+        private final List<String> removed;
+
+        Changes(long version, List<T> updated, List<String> removed) {
+            this.version = version;
+            this.updated = updated;
+            this.removed = removed;
+        }
+
+        /**
+         * @return The version of the list with the changes made
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return The entries added or updated, in the order they last changed
+         */
+        public List<T> getUpdated() {
+            return updated;
+        }
+
+        /**
+         * @return The keys of the entries removed
+         */
+        public List<String> getRemoved() {
+            return removed;
+        }
+
+        /**
+         * @return How many entries changed
+         */
+        public int size() {
+            return updated.size() + removed.size();
+        }
+    }
+
+    private static class Change<T> {
+        private final String key;
+        private final T value;
+
+        Change(String key, T value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
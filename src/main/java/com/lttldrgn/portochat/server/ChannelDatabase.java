@@ -16,11 +16,9 @@
  */
 package com.lttldrgn.portochat.server;
 
-import java.net.Socket;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -29,17 +27,36 @@ import com.lttldrgn.portochat.common.User;
 /**
  * This class handles the channel database.
  * 
+ * A channel's members are kept in an array that is never changed once
+ * stored. Joining or leaving replaces the array atomically, so messages can
+ * be sent to a snapshot of the members without locking or copying while
+ * other users come and go. A channel exists while it has members, and is
+ * removed in the same step that removes its last member.
+ * 
+ * The channels being created and removed, and the users joining and
+ * leaving each channel, are recorded in change logs, so clients can be sent
+ * only what changed since they last had a list. Each channel's log is
+ * created with the channel, so versions of a channel that was removed are
+ * never taken for the new channel's.
+ * 
  * @author Mike
  */
 public class ChannelDatabase {
 
     private static final Logger logger = Logger.getLogger(ChannelDatabase.class.getName());
+    private static final Session[] NO_SESSIONS = new Session[0];
+    private static final String[] NO_CHANNELS = new String[0];
     private static ChannelDatabase instance = null;
-    /** Map of Channel names to list of users */
-    private Map<String, ArrayList<User>> channelMap = null;
-    /** Map of User to Channels they are in */
-    private Map<User, ArrayList<String>> userChannelMap = null;   
-    private UserDatabase userDatabase = null;
+    /** Map of Channel names to their members' sessions */
+    private final ConcurrentHashMap<String, Session[]> channelMap;
+    /** Map of users' sessions to Channels they are in */
+    private final ConcurrentHashMap<Session, String[]> userChannelMap;
+    /** Channels created and removed */
+    private final ChangeLog<String> channelLog =
+            new ChangeLog<>(ServerSettings.SYNC_LOG_SIZE);
+    /** Map of Channel names to the changes to their members, by user id */
+    private final ConcurrentHashMap<String, ChangeLog<User>> memberLogs =
+            new ConcurrentHashMap<>();
 
     /**
      * Private constructor
@@ -47,7 +64,6 @@ public class ChannelDatabase {
     private ChannelDatabase() {
         channelMap = new ConcurrentHashMap<>();
         userChannelMap = new ConcurrentHashMap<>();
-        userDatabase = UserDatabase.getInstance();
     }
 
     /**
@@ -63,144 +79,121 @@ public class ChannelDatabase {
     }
 
     /**
-     * Adds a user to a channel
+     * Adds a user to a channel, creating the channel if it doesn't exist
      * 
      * @param channel
-     * @param user
+     * @param session the user's session
+     * 
+     * @return true if the channel was created
      */
-    public void addUserToChannel(String channel, User user) {
-        ArrayList<User> userList = channelMap.computeIfAbsent(channel, k -> {
-            return new ArrayList<>();
-        });
-        userList.add(user);
-        
-        ArrayList<String> userChannelList = userChannelMap.computeIfAbsent(user, k -> {
-            return new ArrayList<>();
+    public boolean addUserToChannel(String channel, Session session) {
+        boolean[] created = {false};
+        channelMap.compute(channel, (name, members) -> {
+            if (members == null) {
+                created[0] = true;
+                members = NO_SESSIONS;
+                memberLogs.put(name, new ChangeLog<>(ServerSettings.CHANNEL_SYNC_LOG_SIZE));
+            }
+            return add(members, session);
         });
-        userChannelList.add(channel);
+        userChannelMap.compute(session, (key, channels) ->
+                add((channels != null) ? channels : NO_CHANNELS, channel));
+        if (created[0]) {
+            channelLog.put(channel, channel);
+        }
+        ChangeLog<User> memberLog = memberLogs.get(channel);
+        if (memberLog != null) {
+            memberLog.put(session.getUser().getId(), session.getUser());
+        }
+
+        return created[0];
     }
 
     /**
-     * Removes a user from a channel
+     * Removes a user from a channel, removing the channel if they were its
+     * last member
      * 
      * @param channel
-     * @param user
+     * @param session the user's session
+     * 
+     * @return true if the channel was removed
      */
-    public void removeUserFromChannel(String channel, User user) {
-        ArrayList<User> userList = channelMap.get(channel);
-        if (userList != null) {
-            userList.remove(user);
-
-            if (userList.isEmpty()) {
-                // Remove from map
-                channelMap.remove(channel);
+    public boolean removeUserFromChannel(String channel, Session session) {
+        boolean[] removed = {false};
+        boolean[] wasMember = {false};
+        Session[] members = channelMap.computeIfPresent(channel, (name, current) -> {
+            Session[] remaining = remove(current, session);
+            wasMember[0] = (remaining != current);
+            removed[0] = (remaining.length == 0);
+            if (removed[0]) {
+                memberLogs.remove(name);
             }
-        } else {
+            return removed[0] ? null : remaining;
+        });
+        if (members == null && !removed[0]) {
             // Shouldn't happen
             logger.log(Level.SEVERE, "Unable to remove {0} from {1}'s user list",
-                    new Object[]{user, channel});
+                    new Object[]{session, channel});
         }
 
         // clean up user-channel associations
-        ArrayList<String> userChannelList = userChannelMap.get(user);
-        if (userChannelList != null) {
-            userChannelList.remove(channel);
-            
-            if (userChannelList.isEmpty()) {
-                // Remove from map
-                userChannelMap.remove(user);
+        userChannelMap.computeIfPresent(session, (key, channels) -> {
+            String[] remaining = remove(channels, channel);
+            return (remaining.length == 0) ? null : remaining;
+        });
+        if (removed[0]) {
+            channelLog.remove(channel);
+        } else if (wasMember[0]) {
+            ChangeLog<User> memberLog = memberLogs.get(channel);
+            if (memberLog != null) {
+                memberLog.remove(session.getUser().getId());
             }
-        } else {
-            // Shouldn't happen
-            logger.log(Level.SEVERE, "Unable to remove {0} from {1}'s channel list",
-                    new Object[]{channel, user});
         }
-    }
 
-    /**
-     * Rename a user in all his channels
-     * 
-     * @param oldUserName
-     * @param newUserName 
-     */
-    public void renameUser(String oldUserName, String newUserName) {
-        for (User user : userChannelMap.keySet()) {
-            if (user.getName().equals(oldUserName)) {
-                // Get list of channels
-                ArrayList<String> channelList = userChannelMap.get(user);
-                
-                for (String channel : channelList) {
-                    ArrayList<User> userList = channelMap.get(channel);
-                    if (userList != null) {
-                        Iterator iter = userList.iterator();
-                        while (iter.hasNext()) {
-                            if (((User) iter.next()).equals(user)) {
-                                user.setName(newUserName);
-                                break;
-                            }
-                        }
-                    }
-                }
-                
-                // Set new user name
-                user.setName(newUserName);
-                break;
-            }
-        }        
+        return removed[0];
     }
     
     /**
      * Returns true if the user is in a channel
      * 
      * @param channel
-     * @param user
+     * @param session the user's session
      * 
      * @return true if the user is in the channel
      */
-    public boolean isUserInChannel(String channel, User user) {
-        boolean exists = false;
-        
-        ArrayList<User> userList = channelMap.get(channel);
-        if (userList != null) {
-            Iterator iter = userList.iterator();
-            while (iter.hasNext()) {
-                if (((User) iter.next()).equals(user)) {
-                    exists = true;
-                    break;
-                }
-            }
-        }
-        
-        return exists;
+    public boolean isUserInChannel(String channel, Session session) {
+        Session[] members = channelMap.get(channel);
+        return members != null && indexOf(members, session) >= 0;
     }
     
     /**
      * Returns all the channels a user is in.
      * 
-     * @param user
+     * @param session the user's session
      * 
      * @return a List containing the user's channels
      */
-    public List<String> getUserChannels(User user) {
-        List<String> channelList = userChannelMap.get(user);
-        List<String> returnList = new ArrayList<>();
-        if (channelList != null) {
-            returnList.addAll(channelList);
-        }
-        return returnList;
+    public List<String> getUserChannels(Session session) {
+        String[] channels = userChannelMap.get(session);
+        return (channels != null)
+                ? new ArrayList<>(Arrays.asList(channels)) : new ArrayList<>();
     }
     
     /**
      * Removes the user from all channels they're in
      * 
-     * @param user
+     * @param session the user's session
+     * 
+     * @return the channels removed because the user was their last member
      */
-    public void removeUserFromAllChannels(User user) {
-        for (String channel : channelMap.keySet()) {
-            if (isUserInChannel(channel, user)) {
-                removeUserFromChannel(channel, user);
+    public List<String> removeUserFromAllChannels(Session session) {
+        List<String> removedChannels = new ArrayList<>();
+        for (String channel : getUserChannels(session)) {
+            if (removeUserFromChannel(channel, session)) {
+                removedChannels.add(channel);
             }
         }
+        return removedChannels;
     }
     
     /**
@@ -219,10 +212,19 @@ public class ChannelDatabase {
      * 
      * @param channel
      * 
-     * @return a List containing the users in the channel
+     * @return a List containing the users in the channel, or null if the
+     *          channel doesn't exist
      */
     public List<User> getUsersInChannel(String channel) {
-        return channelMap.get(channel);
+        List<User> users = null;
+        Session[] members = channelMap.get(channel);
+        if (members != null) {
+            users = new ArrayList<>(members.length);
+            for (Session session : members) {
+                users.add(session.getUser());
+            }
+        }
+        return users;
     }
     
     /**
@@ -233,40 +235,80 @@ public class ChannelDatabase {
     }
 
     /**
-     * Gets the sockets of the users in a channel
+     * @return the number of channels
+     */
+    public int getChannelCount() {
+        return channelMap.size();
+    }
+
+    /**
+     * Returns the log of changes to the channel list. Read its version
+     * before the list.
+     * 
+     * @return the change log of {@link #getListOfChannels()}
+     */
+    public ChangeLog<String> getChannelLog() {
+        return channelLog;
+    }
+
+    /**
+     * Returns the log of changes to a channel's users. Read its version
+     * before the users.
+     * 
+     * @param channel
+     * 
+     * @return the change log of {@link #getUsersInChannel(String)}, or null
+     *          if the channel doesn't exist
+     */
+    public ChangeLog<User> getMemberLog(String channel) {
+        return memberLogs.get(channel);
+    }
+
+    /**
+     * Gets the sessions of the users in a channel. The array is a snapshot
+     * shared with other callers and must not be changed.
      * 
      * @param channel
-     * @param filterUser Used to filter out a user you don't want in the list
-     *        (e.g. the client)
      * 
-     * @return a List containing all the user's sockets
+     * @return the members' sessions, or null if the channel doesn't exist
      */
-    public List<Socket> getSocketsOfUsersInChannel(String channel, User filterUser) {
-        ArrayList<Socket> userSocketList = null;
-        ArrayList<User> userList = channelMap.get(channel);
-        if (userList != null) {
-            ArrayList<User> copyOfUserList = new ArrayList<>(userList);
+    public Session[] getMembers(String channel) {
+        return channelMap.get(channel);
+    }
 
-            if (filterUser != null) {
-                // Remove the sender's name
-                Iterator iter = copyOfUserList.iterator();
-                while (iter.hasNext()) {
-                    if (((User) iter.next()).equals(filterUser)) {
-                        iter.remove();
-                        break;
-                    }
-                }
+    private static <T> int indexOf(T[] array, T item) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].equals(item)) {
+                return i;
             }
+        }
+        return -1;
+    }
 
-            // List of sockets for each user in the channel
-            userSocketList =
-                    (ArrayList<Socket>) userDatabase.getSocketListByUsers(copyOfUserList);
-        } else {
-            // Shouldn't happen
-            logger.log(Level.SEVERE,
-                    "User '{0}' was unable to send message to channel named {1} beacuse it doesn't exist!",
-                    new Object[]{filterUser, channel});
+    /**
+     * @return A copy of the array with the item added, or the array itself
+     *          if it already holds the item
+     */
+    private static <T> T[] add(T[] array, T item) {
+        if (indexOf(array, item) >= 0) {
+            return array;
+        }
+        T[] added = Arrays.copyOf(array, array.length + 1);
+        added[array.length] = item;
+        return added;
+    }
+
+    /**
+     * @return A copy of the array without the item, or the array itself if
+     *          it doesn't hold the item
+     */
+    private static <T> T[] remove(T[] array, T item) {
+        int index = indexOf(array, item);
+        if (index < 0) {
+            return array;
         }
-        return userSocketList;
+        T[] removed = Arrays.copyOf(array, array.length - 1);
+        System.arraycopy(array, index + 1, removed, index, array.length - index - 1);
+        return removed;
     }
 }
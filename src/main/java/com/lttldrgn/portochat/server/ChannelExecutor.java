@@ -0,0 +1,95 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.server;
+
+import java.util.concurrent.Executor;
+import com.lttldrgn.portochat.common.network.SerialExecutor;
+import com.lttldrgn.portochat.common.network.StageStats;
+
+/**
+ * Runs the operations of each channel one at a time and in the order they
+ * were submitted, so joins, parts, messages and the channel's creation and
+ * removal never race each other.
+ *
+ * Channels are spread over a fixed number of shards by name. Each shard is
+ * a SerialExecutor on the worker pool, so channels on different shards run
+ * in parallel without any lock shared between them. Without a pool each
+ * operation runs on the calling thread, holding its shard's lock.
+ */
+public class ChannelExecutor {
+
+    private final SerialExecutor[] shards;
+    private final Object[] shardLocks;
+    private final StageStats stats = new StageStats("channels");
+
+    /**
+     * Public constructor
+     *
+     * @param workers The pool the operations run on, or null to run them on
+     *          the threads submitting them
+     * @param shardCount The number of shards to spread channels over
+     */
+    public ChannelExecutor(Executor workers, int shardCount) {
+        int count = Math.max(1, shardCount);
+        if (workers != null) {
+            shards = new SerialExecutor[count];
+            for (int i = 0; i < count; i++) {
+                shards[i] = new SerialExecutor(workers, stats, Integer.MAX_VALUE);
+            }
+            shardLocks = null;
+        } else {
+            shards = null;
+            shardLocks = new Object[count];
+            for (int i = 0; i < count; i++) {
+                shardLocks[i] = new Object();
+            }
+        }
+    }
+
+    /**
+     * Runs an operation after the channel's earlier operations
+     *
+     * @param channel The channel
+     * @param task The operation
+     */
+    public void execute(String channel, Runnable task) {
+        if (shards != null) {
+            shards[getShard(channel, shards.length)].execute(task);
+        } else {
+            long start = System.nanoTime();
+            synchronized (shardLocks[getShard(channel, shardLocks.length)]) {
+                long started = System.nanoTime();
+                task.run();
+                stats.record(started - start, System.nanoTime() - started);
+            }
+        }
+    }
+
+    /**
+     * @return The timings of the channel operations
+     */
+    public StageStats getStats() {
+        return stats;
+    }
+
+    private static int getShard(String channel, int shardCount) {
+        int hash = channel.hashCode();
+        // spread the high bits, names often differ only at the end
+        hash ^= (hash >>> 16);
+        return (hash & 0x7fffffff) % shardCount;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.server;
+
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.lttldrgn.portochat.common.network.TimingWheel;
+import com.lttldrgn.portochat.common.protocol.ProtoMessage;
+import com.lttldrgn.portochat.common.protocol.ProtoUtil;
+import com.lttldrgn.portochat.server.network.ServerConnectionHandler;
+
+/**
+ * Keeps track of whether each client is still there.
+ *
+ * Every session has its own heartbeat on a timing wheel, started at a random
+ * point in the interval so the clients aren't all pinged at once. Anything
+ * read from a client shows it is alive, so a client is only pinged once it
+ * has been quiet for a whole interval. A client quiet for the idle timeout,
+ * such as one whose connection dropped without the socket noticing, is
+ * disconnected.
+ *
+ * The time each ping takes to be answered is kept as the session's round
+ * trip time.
+ */
+public class HeartbeatMonitor {
+
+    private static final Logger logger =
+            Logger.getLogger(HeartbeatMonitor.class.getName());
+    private final ServerConnectionHandler connection;
+    private final UserDatabase userDatabase = UserDatabase.getInstance();
+    private final TimingWheel wheel;
+    private final long intervalNanos;
+    private final long timeoutNanos;
+
+    /**
+     * Public constructor
+     *
+     * @param connection The connection handler the clients are connected to
+     * @param wheel The wheel the heartbeats are timed on
+     * @param intervalMillis How long a client may be quiet before it is
+     *          pinged
+     * @param timeoutMillis How long a client may be quiet before it is
+     *          disconnected
+     */
+    public HeartbeatMonitor(ServerConnectionHandler connection, TimingWheel wheel,
+            long intervalMillis, long timeoutMillis) {
+        this.connection = connection;
+        this.wheel = wheel;
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(intervalMillis, timeoutMillis));
+    }
+
+    /**
+     * Starts the heartbeat of a newly connected session
+     *
+     * @param session The session
+     */
+    public void register(Session session) {
+        long delay = intervalNanos / 2
+                + ThreadLocalRandom.current().nextLong(intervalNanos / 2 + 1);
+        wheel.schedule(() -> check(session), delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the round trip time of the ping a pong answers
+     *
+     * @param session The session that answered
+     * @param timestamp The timestamp of the ping being answered
+     */
+    public void pongReceived(Session session, long timestamp) {
+        long roundTrip = session.pongReceived(timestamp);
+        if (roundTrip >= 0) {
+            logger.log(Level.FINE, "{0} round trip {1} ms", new Object[]{
+                session, TimeUnit.NANOSECONDS.toMillis(roundTrip)});
+        }
+    }
+
+    private void check(Session session) {
+        Socket socket = session.getSocket();
+        if (session.isClosed() || userDatabase.getSession(socket) != session) {
+            // Disconnected, or resumed by another connection
+            return;
+        }
+
+        long now = System.nanoTime();
+        long idle = now - session.getLastReceivedNanos();
+        if (idle >= timeoutNanos) {
+            logger.log(Level.INFO, "{0} timed out after {1} s without a reply",
+                    new Object[]{session, TimeUnit.NANOSECONDS.toSeconds(idle)});
+            // the usual disconnect handling follows
+            connection.closeSocket(socket);
+            return;
+        }
+
+        long delay;
+        if (idle >= intervalNanos) {
+            long timestamp = System.currentTimeMillis();
+            session.pingSent(timestamp, now);
+            connection.writeData(socket, new ProtoMessage(ProtoUtil.createPing(timestamp)));
+            delay = Math.min(intervalNanos, timeoutNanos - idle);
+        } else {
+            // Heard from it recently, check again once it's been quiet a while
+            delay = intervalNanos - idle;
+        }
+        // keep the heartbeats spread out
+        delay += ThreadLocalRandom.current().nextLong(intervalNanos / 10 + 1);
+        wheel.schedule(() -> check(session), delay, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Looks up the host names of client addresses without holding up the
+ * caller. A reverse lookup can take seconds when the resolver is slow or
+ * has no answer, so the caller uses the numeric address straight away and
+ * is handed the name once the lookup completes.
+ *
+ * Names are cached for a while, and so are failed lookups so a client
+ * reconnecting from an address without a name doesn't cost a lookup each
+ * time. Clients looking up the same address at once share a single lookup.
+ */
+public class HostNameResolver {
+
+    private static final Logger logger =
+            Logger.getLogger(HostNameResolver.class.getName());
+    /** Threads looking up names, when busy the lookups wait their turn */
+    private static final int LOOKUP_THREADS = 2;
+
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final int maxEntries;
+    private final Map<InetAddress, Entry> cache = new ConcurrentHashMap<>();
+    /** Callbacks waiting for the lookup of each address */
+    private final Map<InetAddress, List<Consumer<String>>> pending =
+            new ConcurrentHashMap<>();
+    private final ExecutorService lookups;
+
+    /**
+     * Public constructor
+     *
+     * @param ttlMillis How long a name is cached
+     * @param negativeTtlMillis How long an address without a name is cached
+     * @param maxEntries The most addresses cached
+     */
+    public HostNameResolver(long ttlMillis, long negativeTtlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.maxEntries = maxEntries;
+        AtomicInteger lookupCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(LOOKUP_THREADS,
+                LOOKUP_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                (Runnable r) -> {
+                    Thread thread = new Thread(r,
+                            "HostNameLookup-" + lookupCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        lookups = executor;
+    }
+
+    /**
+     * Gets the host name of an address, looking it up in the background if
+     * it isn't cached
+     *
+     * @param address The address
+     * @param resolved Given the name if it has to be looked up, on the lookup
+     *          thread. Not called if the address has no name.
+     * @return The cached name, or the numeric address until the lookup
+     *          completes
+     */
+    public String resolve(InetAddress address, Consumer<String> resolved) {
+        String numeric = address.getHostAddress();
+        Entry entry = cache.get(address);
+        if (entry != null && entry.expires > System.currentTimeMillis()) {
+            return (entry.name != null) ? entry.name : numeric;
+        }
+
+        boolean[] first = {false};
+        pending.compute(address, (key, callbacks) -> {
+            if (callbacks == null) {
+                callbacks = new ArrayList<>();
+                first[0] = true;
+            }
+            callbacks.add(resolved);
+            return callbacks;
+        });
+        if (first[0]) {
+            lookups.execute(() -> lookup(address));
+        }
+        return numeric;
+    }
+
+    private void lookup(InetAddress address) {
+        String name = null;
+        long start = System.nanoTime();
+        try {
+            // a copy without a name, so the name is looked up again once
+            // the cached one expires
+            String found = InetAddress.getByAddress(address.getAddress()).getHostName();
+            // the numeric address comes back when there is no name
+            if (!found.equals(address.getHostAddress())) {
+                name = found;
+            }
+        } catch (UnknownHostException | SecurityException ex) {
+            logger.log(Level.FINE, "Unable to look up " + address, ex);
+        }
+        logger.log(Level.FINE, "Looked up {0} as {1} in {2} ms", new Object[]{
+            address, name, (System.nanoTime() - start) / 1000000});
+
+        long now = System.currentTimeMillis();
+        if (cache.size() >= maxEntries) {
+            cache.values().removeIf(entry -> entry.expires <= now);
+        }
+        if (cache.size() < maxEntries) {
+            cache.put(address, new Entry(name,
+                    now + ((name != null) ? ttlMillis : negativeTtlMillis)));
+        }
+
+        List<Consumer<String>> callbacks = pending.remove(address);
+        if (name != null && callbacks != null) {
+            for (Consumer<String> callback : callbacks) {
+                try {
+                    callback.accept(name);
+                } catch (RuntimeException ex) {
+                    logger.log(Level.SEVERE, "Error handling host name", ex);
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        /** The name, or null if the address has none */
+        private final String name;
+        private final long expires;
+
+        Entry(String name, long expires) {
+            this.name = name;
+            this.expires = expires;
+        }
+    }
+}
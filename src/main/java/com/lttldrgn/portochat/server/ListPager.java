@@ -0,0 +1,199 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.server;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import com.lttldrgn.portochat.common.network.OutboundQueue;
+import com.lttldrgn.portochat.common.network.TimingWheel;
+import com.lttldrgn.portochat.common.protocol.ProtoMessage;
+import com.lttldrgn.portochat.proto.Portochat.PortoChatMessage;
+import com.lttldrgn.portochat.server.network.ServerConnectionHandler;
+
+/**
+ * Sends lists that can be too long for one message, such as the users of a
+ * large channel.
+ *
+ * A client can ask for a page of a list at a time. Pages are in key order,
+ * and each page's token is the last key before it, so a page starts in the
+ * right place however the list changed since the page before.
+ *
+ * A whole list is sent as a series of messages of a page each. The next is
+ * only queued once the client's outbound queue is short enough, so a long
+ * list neither needs one huge message nor fills the queue past what the
+ * client is allowed. Lists are sent from a snapshot, so the entries must
+ * not change while they are sent.
+ */
+public class ListPager {
+
+    /** How long to wait for the client to take more of a list */
+    private static final long RETRY_MILLIS = 100;
+
+    private final ServerConnectionHandler connection;
+    private final TimingWheel wheel;
+    private final int pageSize;
+    private final long queueBytes;
+
+    /**
+     * Public constructor
+     *
+     * @param connection The connection handler the clients are connected to
+     * @param wheel The wheel the waits for the clients are timed on
+     * @param pageSize The most entries in one message
+     * @param queueBytes The most bytes that may be waiting for a client
+     *          before the next message of a list is queued
+     */
+    public ListPager(ServerConnectionHandler connection, TimingWheel wheel,
+            int pageSize, long queueBytes) {
+        this.connection = connection;
+        this.wheel = wheel;
+        this.pageSize = Math.max(1, pageSize);
+        this.queueBytes = queueBytes;
+    }
+
+    /**
+     * @param requested The page size a client asked for
+     * @return The page size to use, at most the pager's
+     */
+    public int getPageSize(int requested) {
+        return (requested > 0) ? Math.min(requested, pageSize) : pageSize;
+    }
+
+    /**
+     * Picks a page of a list, without sorting the whole list
+     *
+     * @param entries The list
+     * @param key The key of an entry, unique within the list
+     * @param pageToken The token of the page, empty for the first
+     * @param size The most entries on the page
+     * @return The page
+     */
+    public static <T> Page<T> getPage(Collection<T> entries, Function<T, String> key,
+            String pageToken, int size) {
+        Comparator<T> order = Comparator.comparing(key);
+        // The largest of the smallest keys found so far is at the head
+        PriorityQueue<T> smallest = new PriorityQueue<>(size + 1, order.reversed());
+        int after = 0;
+        for (T entry : entries) {
+            if (key.apply(entry).compareTo(pageToken) > 0) {
+                after++;
+                smallest.offer(entry);
+                if (smallest.size() > size) {
+                    smallest.poll();
+                }
+            }
+        }
+        List<T> page = new ArrayList<>(smallest);
+        Collections.sort(page, order);
+        String nextPageToken = (after > page.size())
+                ? key.apply(page.get(page.size() - 1)) : "";
+        return new Page<>(page, nextPageToken);
+    }
+
+    /**
+     * Sends a whole list, a page of it per message
+     *
+     * @param socket The client's socket
+     * @param count How many entries the list has
+     * @param messages Creates the messages holding the list
+     */
+    public void send(Socket socket, int count, Messages messages) {
+        new Sender(socket, count, messages).run();
+    }
+
+    /**
+     * Creates the messages a list is sent in
+     */
+    public interface Messages {
+        /**
+         * @param from The first entry in the message
+         * @param to The entry after the last in the message
+         * @param more true if more messages follow
+         * @return The message
+         */
+        PortoChatMessage create(int from, int to, boolean more);
+    }
+
+    /**
+     * A page of a list
+     */
+    public static class Page<T> {
+        private final List<T> entries;
+        private final String nextPageToken;
+
+        Page(List<T> entries, String nextPageToken) {
+            this.entries = entries;
+            this.nextPageToken = nextPageToken;
+        }
+
+        /**
+         * @return The page's entries in key order
+         */
+        public List<T> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return The token of the next page, empty if this is the last
+         */
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
+    /**
+     * Queues the messages of a list while the client keeps up, then waits
+     */
+    private class Sender implements Runnable {
+        private final Socket socket;
+        private final int count;
+        private final Messages messages;
+        private int next = 0;
+
+        Sender(Socket socket, int count, Messages messages) {
+            this.socket = socket;
+            this.count = count;
+            this.messages = messages;
+        }
+
+        @Override
+        public void run() {
+            do {
+                OutboundQueue queue = connection.getOutboundQueue(socket);
+                if (queue == null) {
+                    // Disconnected
+                    return;
+                }
+                if (next > 0 && queue.getQueuedBytes() > queueBytes) {
+                    wheel.schedule(this, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                int end = Math.min(count, next + pageSize);
+                connection.writeData(socket, new ProtoMessage(
+                        messages.create(next, end, end < count)));
+                next = end;
+            } while (next < count);
+        }
+    }
+}
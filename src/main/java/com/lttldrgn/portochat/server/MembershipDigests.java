@@ -0,0 +1,260 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.lttldrgn.portochat.common.User;
+import com.lttldrgn.portochat.common.network.TimingWheel;
+import com.lttldrgn.portochat.common.protocol.ProtoMessage;
+import com.lttldrgn.portochat.common.protocol.ProtoUtil;
+import com.lttldrgn.portochat.proto.Portochat.Capability;
+import com.lttldrgn.portochat.server.network.ServerConnectionHandler;
+
+/**
+ * Collects the users joining and leaving each channel and sends them to the
+ * channel's members as one ChannelMembership every flush interval, rather
+ * than a notification per member per event. A channel being rejoined by all
+ * its members after a restart then costs each member a few messages instead
+ * of one per member.
+ *
+ * Channels with at least the quiet size of members are quiet: nobody is
+ * told who joins or leaves them, and members ask for the member list when
+ * they want it.
+ *
+ * Clients that don't have the MembershipDigests capability ignore
+ * ChannelMembership, so they are sent a ChannelJoin or ChannelPart as each
+ * user joins or leaves, as before digests.
+ *
+ * Apart from the timed flush, which is handed to the channel's executor,
+ * every method must be called on the channel's executor, in order with the
+ * channel's other operations.
+ */
+public class MembershipDigests {
+
+    private static final Logger logger =
+            Logger.getLogger(MembershipDigests.class.getName());
+    /** The most users in one message, so a digest stays well below a frame */
+    private static final int MAX_USERS_PER_MESSAGE = 500;
+
+    private final ServerConnectionHandler connection;
+    private final ChannelDatabase channelDatabase = ChannelDatabase.getInstance();
+    private final ChannelExecutor channelExecutor;
+    private final TimingWheel wheel;
+    private final long flushMillis;
+    private final int quietSize;
+    /** Changes waiting for the next flush, by channel */
+    private final Map<String, Digest> pending = new ConcurrentHashMap<>();
+    /** Channels with changes waiting */
+    private final Queue<String> dirty = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Public constructor, starts flushing the changes
+     *
+     * @param connection The connection handler the clients are connected to
+     * @param channelExecutor The executor the channel operations run on
+     * @param wheel The wheel the flushes are timed on
+     * @param flushMillis How often the collected changes are sent
+     * @param quietSize Members from which a channel is quiet, or 0 for no
+     *          quiet channels
+     */
+    public MembershipDigests(ServerConnectionHandler connection,
+            ChannelExecutor channelExecutor, TimingWheel wheel, long flushMillis,
+            int quietSize) {
+        this.connection = connection;
+        this.channelExecutor = channelExecutor;
+        this.wheel = wheel;
+        this.flushMillis = Math.max(1, flushMillis);
+        this.quietSize = (quietSize > 0) ? quietSize : Integer.MAX_VALUE;
+        wheel.schedule(this::flushDirty, this.flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Notes a user that joined a channel
+     *
+     * @param channel The channel
+     * @param session The user's session
+     */
+    public void joined(String channel, Session session) {
+        Session[] members = channelDatabase.getMembers(channel);
+        Digest digest = getDigest(channel, members);
+        if (digest != null) {
+            String userId = session.getUser().getId();
+            // Leaving and coming back within an interval changes nothing
+            if (!digest.parted.remove(userId)) {
+                digest.joined.put(userId, session.getUser());
+            }
+            Session[] legacyMembers = select(members, false);
+            if (legacyMembers.length > 0) {
+                connection.broadcastData(legacyMembers, session, new ProtoMessage(
+                        ProtoUtil.createChannelJoinNotification(channel, session.getUser())));
+            }
+        }
+    }
+
+    /**
+     * Notes a user that left a channel
+     *
+     * @param channel The channel
+     * @param session The user's session
+     */
+    public void parted(String channel, Session session) {
+        Session[] members = channelDatabase.getMembers(channel);
+        Digest digest = getDigest(channel, members);
+        if (digest != null) {
+            String userId = session.getUser().getId();
+            // The members never heard of a join within the interval
+            if (digest.joined.remove(userId) == null) {
+                digest.parted.add(userId);
+            }
+            Session[] legacyMembers = select(members, false);
+            if (legacyMembers.length > 0) {
+                connection.broadcastData(legacyMembers, null, new ProtoMessage(
+                        ProtoUtil.createChannelPartNotification(channel, userId)));
+            }
+        }
+    }
+
+    /**
+     * Notes a user that left a channel by going offline, which the members
+     * are told of by its presence instead. A join they haven't heard of yet
+     * is dropped, so it isn't sent after the user is gone.
+     *
+     * @param channel The channel
+     * @param session The user's session
+     */
+    public void disconnected(String channel, Session session) {
+        Digest digest = pending.get(channel);
+        if (digest != null) {
+            digest.joined.remove(session.getUser().getId());
+        }
+    }
+
+    /**
+     * Sends the channel's changes now, so members have them before what is
+     * sent next, such as a message from a user that just joined
+     *
+     * @param channel The channel
+     */
+    public void flush(String channel) {
+        Digest digest = pending.remove(channel);
+        if (digest == null || digest.isEmpty()) {
+            return;
+        }
+        Session[] members = channelDatabase.getMembers(channel);
+        if (members == null || members.length >= quietSize) {
+            // Removed, or grew quiet since
+            return;
+        }
+        members = select(members, true);
+        List<User> joined = new ArrayList<>(digest.joined.values());
+        List<String> parted = new ArrayList<>(digest.parted);
+        for (int start = 0; start < joined.size() || start < parted.size();
+                start += MAX_USERS_PER_MESSAGE) {
+            ProtoMessage membership = new ProtoMessage(ProtoUtil.createChannelMembership(
+                    channel, slice(joined, start), slice(parted, start)));
+            connection.broadcastData(members, null, membership);
+        }
+    }
+
+    /**
+     * @param channel The channel
+     * @param members The channel's members
+     * @return The channel's digest, or null if the channel is quiet
+     */
+    private Digest getDigest(String channel, Session[] members) {
+        if (members == null || members.length >= quietSize) {
+            pending.remove(channel);
+            return null;
+        }
+        Digest digest = pending.get(channel);
+        if (digest == null) {
+            digest = new Digest();
+            pending.put(channel, digest);
+            dirty.offer(channel);
+        }
+        return digest;
+    }
+
+    private void flushDirty() {
+        try {
+            String channel;
+            while ((channel = dirty.poll()) != null) {
+                String flushed = channel;
+                channelExecutor.execute(channel, () -> flush(flushed));
+            }
+        } catch (RuntimeException ex) {
+            logger.log(Level.SEVERE, "Error sending membership changes", ex);
+        }
+        wheel.schedule(this::flushDirty, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param members A channel's members
+     * @param digests true for the members sent digests, false for the others
+     * @return Those members, the given array if that is all of them
+     */
+    private static Session[] select(Session[] members, boolean digests) {
+        int count = 0;
+        for (Session member : members) {
+            if (member.hasCapability(Capability.MembershipDigests) == digests) {
+                count++;
+            }
+        }
+        if (count == members.length) {
+            return members;
+        }
+        Session[] selected = new Session[count];
+        int i = 0;
+        for (Session member : members) {
+            if (member.hasCapability(Capability.MembershipDigests) == digests) {
+                selected[i++] = member;
+            }
+        }
+        return selected;
+    }
+
+    private static <T> List<T> slice(List<T> list, int start) {
+        if (start >= list.size()) {
+            return Collections.emptyList();
+        }
+        return list.subList(start, Math.min(list.size(), start + MAX_USERS_PER_MESSAGE));
+    }
+
+    /**
+     * A channel's changes, only touched on the channel's executor
+     */
+    private static class Digest {
+        private final Map<String, User> joined = new LinkedHashMap<>();
+        private final Set<String> parted = new LinkedHashSet<>();
+
+        boolean isEmpty() {
+            return joined.isEmpty() && parted.isEmpty();
+        }
+    }
+}
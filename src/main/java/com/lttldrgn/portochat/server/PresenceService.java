@@ -0,0 +1,364 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.lttldrgn.portochat.common.User;
+import com.lttldrgn.portochat.common.network.TimingWheel;
+import com.lttldrgn.portochat.common.protocol.ProtoMessage;
+import com.lttldrgn.portochat.common.protocol.ProtoUtil;
+import com.lttldrgn.portochat.server.network.ServerConnectionHandler;
+
+/**
+ * Tells clients when the users they are interested in come and go, instead
+ * of telling every client about every user.
+ *
+ * A client is interested in the users it shares a channel with and the
+ * users it subscribed to, by name. Clients are subscribed to each other when
+ * one sends the other a direct message, and the Swing client subscribes to
+ * the user of each direct message tab it has open. The names a client asks
+ * for needn't be online or exist, so it can only subscribe to so many.
+ *
+ * Users coming online and going offline are collected per client and sent
+ * as one PresenceUpdate every flush interval, so a burst of logins costs
+ * each interested client a message rather than one per login. Renames are
+ * sent straight away, since the next message from the user carries the new
+ * name.
+ */
+public class PresenceService {
+
+    private static final Logger logger =
+            Logger.getLogger(PresenceService.class.getName());
+
+    private final ServerConnectionHandler connection;
+    private final UserDatabase userDatabase = UserDatabase.getInstance();
+    private final ChannelDatabase channelDatabase = ChannelDatabase.getInstance();
+    private final TimingWheel wheel;
+    private final long flushMillis;
+    private final int maxSubscriptions;
+    /** Sessions subscribed to each user, by name key */
+    private final Map<String, Set<Session>> subscribers = new ConcurrentHashMap<>();
+    /** The name keys each session is subscribed to */
+    private final Map<Session, Set<String>> subscriptions = new ConcurrentHashMap<>();
+    /** Changes waiting for the next flush, by the session they go to */
+    private final Map<Session, PendingChanges> pending = new ConcurrentHashMap<>();
+    /** Sessions with changes waiting */
+    private final Queue<Session> dirty = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Public constructor, starts flushing the changes
+     *
+     * @param connection The connection handler the clients are connected to
+     * @param wheel The wheel the flushes are timed on
+     * @param flushMillis How often the collected changes are sent
+     * @param maxSubscriptions The most users a session can ask to subscribe
+     *          to
+     */
+    public PresenceService(ServerConnectionHandler connection, TimingWheel wheel,
+            long flushMillis, int maxSubscriptions) {
+        this.connection = connection;
+        this.wheel = wheel;
+        this.flushMillis = Math.max(1, flushMillis);
+        this.maxSubscriptions = maxSubscriptions;
+        wheel.schedule(this::flush, this.flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keeps a session up to date with a user until it unsubscribes or
+     * disconnects, as the client asked
+     *
+     * @param session The interested session
+     * @param userName The user's name, who needn't be online
+     * @return true if the session wasn't already subscribed and has room
+     *          for another subscription
+     */
+    public boolean subscribe(Session session, String userName) {
+        String key = UserDatabase.getNameKey(userName);
+        Set<String> keys = subscriptions.get(session);
+        if (keys != null && keys.size() >= maxSubscriptions && !keys.contains(key)) {
+            logger.log(Level.INFO, "{0} has too many presence subscriptions",
+                    session.getUser());
+            return false;
+        }
+        return addSubscription(session, key);
+    }
+
+    /**
+     * Keeps a session up to date with a user who is online, such as one it
+     * exchanged direct messages with. These don't count against the limit,
+     * as there can only be so many users.
+     *
+     * @param session The interested session
+     * @param subject The user's session
+     * @return true if the session wasn't already subscribed
+     */
+    public boolean subscribe(Session session, Session subject) {
+        return addSubscription(session, UserDatabase.getNameKey(subject.getUser().getName()));
+    }
+
+    private boolean addSubscription(Session session, String key) {
+        boolean[] added = {false};
+        subscribers.compute(key, (k, sessions) -> {
+            if (sessions == null) {
+                sessions = ConcurrentHashMap.newKeySet();
+            }
+            added[0] = sessions.add(session);
+            return sessions;
+        });
+        subscriptions.computeIfAbsent(session, k -> ConcurrentHashMap.newKeySet()).add(key);
+        return added[0];
+    }
+
+    /**
+     * Stops keeping a session up to date with a user
+     *
+     * @param session The session
+     * @param userName The user's name
+     */
+    public void unsubscribe(Session session, String userName) {
+        String key = UserDatabase.getNameKey(userName);
+        removeSubscriber(key, session);
+        Set<String> keys = subscriptions.get(session);
+        if (keys != null) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * Answers a client asking whether a user is online
+     *
+     * @param session The asking session
+     * @param userName The user's name
+     */
+    public void sendPresence(Session session, String userName) {
+        Session subject = userDatabase.getSessionByUserName(userName);
+        ProtoMessage answer;
+        if (subject != null) {
+            answer = new ProtoMessage(ProtoUtil.createPresenceUpdate(
+                    Collections.singletonList(subject.getUser()),
+                    Collections.<String>emptyList()));
+        } else {
+            User unknown = new User();
+            unknown.setName(userName);
+            answer = new ProtoMessage(ProtoUtil.createUserDoesNotExist(unknown));
+        }
+        connection.writeData(session.getSocket(), answer);
+    }
+
+    /**
+     * Makes sure a session knows of a user before it is sent something from
+     * them, subscribing it to the user
+     *
+     * @param session The session about to hear from the user
+     * @param subject The user's session
+     */
+    public void introduce(Session session, Session subject) {
+        if (subscribe(session, subject)) {
+            connection.writeData(session.getSocket(), new ProtoMessage(
+                    ProtoUtil.createUserConnectionStatus(subject.getUser(), true)));
+            if (subject.isClosed()) {
+                // Went offline while being introduced, and may have missed it
+                queueChange(session, subject.getUser(), false);
+            }
+        }
+    }
+
+    /**
+     * Tells the users subscribed to a user that they came online
+     *
+     * @param subject The user's session
+     */
+    public void userOnline(Session subject) {
+        Set<Session> sessions = subscribers.get(
+                UserDatabase.getNameKey(subject.getUser().getName()));
+        if (sessions != null) {
+            for (Session session : sessions) {
+                if (session != subject) {
+                    queueChange(session, subject.getUser(), true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells the users interested in a user that they went offline, and ends
+     * the user's own subscriptions. Must be called before the user is
+     * removed from their channels.
+     *
+     * @param subject The user's session
+     */
+    public void userOffline(Session subject) {
+        Set<String> keys = subscriptions.remove(subject);
+        if (keys != null) {
+            for (String key : keys) {
+                removeSubscriber(key, subject);
+            }
+        }
+        pending.remove(subject);
+
+        User user = subject.getUser();
+        if (user.getName() == null) {
+            // Nobody could have known of them
+            return;
+        }
+        for (Session session : getInterested(subject, user.getName())) {
+            queueChange(session, user, false);
+        }
+    }
+
+    /**
+     * Tells the users interested in a user of their new name, and moves the
+     * subscriptions to the old name over to the new one
+     *
+     * @param subject The user's session, already renamed
+     * @param oldName The user's old name
+     */
+    public void userRenamed(Session subject, String oldName) {
+        User user = subject.getUser();
+        String oldKey = UserDatabase.getNameKey(oldName);
+        String newKey = UserDatabase.getNameKey(user.getName());
+        Set<Session> interested = getInterested(subject, oldName);
+
+        if (!oldKey.equals(newKey)) {
+            Set<Session> moved = subscribers.remove(oldKey);
+            if (moved != null) {
+                for (Session session : moved) {
+                    unsubscribe(session, oldName);
+                    subscribe(session, user.getName());
+                }
+            }
+            // Those waiting for someone of the new name haven't met this user
+            Set<Session> waiting = subscribers.get(newKey);
+            if (waiting != null) {
+                for (Session session : waiting) {
+                    if (session != subject && !interested.contains(session)) {
+                        queueChange(session, user, true);
+                    }
+                }
+            }
+        }
+
+        List<Session> recipients = new ArrayList<>(interested);
+        if (!recipients.isEmpty()) {
+            connection.broadcastData(recipients.toArray(new Session[recipients.size()]),
+                    subject, new ProtoMessage(ProtoUtil.createUserRenamedNotification(user)));
+        }
+    }
+
+    /**
+     * The sessions sharing a channel with the user or subscribed to them
+     */
+    private Set<Session> getInterested(Session subject, String name) {
+        Set<Session> interested = new HashSet<>();
+        for (String channel : channelDatabase.getUserChannels(subject)) {
+            Session[] members = channelDatabase.getMembers(channel);
+            if (members != null) {
+                Collections.addAll(interested, members);
+            }
+        }
+        Set<Session> sessions = subscribers.get(UserDatabase.getNameKey(name));
+        if (sessions != null) {
+            interested.addAll(sessions);
+        }
+        interested.remove(subject);
+        return interested;
+    }
+
+    private void removeSubscriber(String key, Session session) {
+        subscribers.computeIfPresent(key, (k, sessions) -> {
+            sessions.remove(session);
+            return sessions.isEmpty() ? null : sessions;
+        });
+    }
+
+    private void queueChange(Session session, User user, boolean online) {
+        if (session.isClosed()) {
+            return;
+        }
+        PendingChanges changes = pending.computeIfAbsent(session,
+                k -> new PendingChanges());
+        boolean wasEmpty;
+        synchronized (changes) {
+            wasEmpty = changes.isEmpty();
+            // Only the last change of each user in an interval is sent
+            if (online) {
+                changes.offline.remove(user.getId());
+                changes.online.put(user.getId(), user);
+            } else {
+                changes.online.remove(user.getId());
+                changes.offline.add(user.getId());
+            }
+        }
+        if (wasEmpty) {
+            dirty.offer(session);
+        }
+    }
+
+    private void flush() {
+        try {
+            Session session;
+            int count = 0;
+            while ((session = dirty.poll()) != null) {
+                PendingChanges changes = pending.get(session);
+                if (changes == null || session.isClosed()) {
+                    continue;
+                }
+                List<User> online;
+                List<String> offline;
+                synchronized (changes) {
+                    online = new ArrayList<>(changes.online.values());
+                    offline = new ArrayList<>(changes.offline);
+                    changes.online.clear();
+                    changes.offline.clear();
+                }
+                if (!online.isEmpty() || !offline.isEmpty()) {
+                    connection.writeData(session.getSocket(), new ProtoMessage(
+                            ProtoUtil.createPresenceUpdate(online, offline)));
+                    count++;
+                }
+            }
+            if (count > 0) {
+                logger.log(Level.FINE, "Sent {0} presence updates", count);
+            }
+        } catch (RuntimeException ex) {
+            logger.log(Level.SEVERE, "Error sending presence updates", ex);
+        }
+        wheel.schedule(this::flush, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static class PendingChanges {
+        private final Map<String, User> online = new LinkedHashMap<>();
+        private final Set<String> offline = new LinkedHashSet<>();
+
+        boolean isEmpty() {
+            return online.isEmpty() && offline.isEmpty();
+        }
+    }
+}
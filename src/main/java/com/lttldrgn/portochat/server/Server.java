@@ -18,27 +18,39 @@ package com.lttldrgn.portochat.server;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.security.KeyPair;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 import com.lttldrgn.portochat.common.User;
 import com.lttldrgn.portochat.common.Util;
+import com.lttldrgn.portochat.common.encryption.CipherMode;
 import com.lttldrgn.portochat.common.encryption.EncryptionManager;
+import com.lttldrgn.portochat.common.encryption.KeyExchange;
+import com.lttldrgn.portochat.common.network.OutboundQueue;
+import com.lttldrgn.portochat.common.network.TimingWheel;
 import com.lttldrgn.portochat.common.protocol.DefaultData;
 import com.lttldrgn.portochat.common.network.event.NetEvent;
 import com.lttldrgn.portochat.common.network.event.NetListener;
 import com.lttldrgn.portochat.common.protocol.ProtoMessage;
 import com.lttldrgn.portochat.common.protocol.ProtoUtil;
-import com.lttldrgn.portochat.proto.Portochat;
+import com.lttldrgn.portochat.common.protocol.WireFormat;
+import com.lttldrgn.portochat.proto.Portochat.Capability;
 import com.lttldrgn.portochat.proto.Portochat.ChannelPart;
-import com.lttldrgn.portochat.proto.Portochat.ChatMessage;
 import com.lttldrgn.portochat.proto.Portochat.Notification;
 import com.lttldrgn.portochat.proto.Portochat.PortoChatMessage;
 import com.lttldrgn.portochat.proto.Portochat.Request;
 import com.lttldrgn.portochat.proto.Portochat.Response;
+import com.lttldrgn.portochat.proto.Portochat.SessionTicket;
 import com.lttldrgn.portochat.proto.Portochat.UserConnectionStatus;
 import com.lttldrgn.portochat.server.network.ServerConnectionHandler;
 
@@ -54,31 +66,56 @@ public class Server {
     private final EncryptionManager encryptionManager;
     private final UserDatabase userDatabase;
     private final ChannelDatabase channelDatabase;
+    private final SessionTickets sessionTickets;
     private ServerConnectionHandler connection;
+    private ChannelExecutor channelExecutor;
+    private TimingWheel timingWheel;
+    private HeartbeatMonitor heartbeatMonitor;
+    private PresenceService presenceService;
+    private MembershipDigests membershipDigests;
+    private ListPager listPager;
+    private final ServerConnectionHandler.Transport transport;
     private final Timer timer;
     private final TimerTask task;
-    private final int CLIENT_POLL_INTERVAL_MILLIS = 60000;
+    private final int STATS_LOG_INTERVAL_MILLIS = 60000;
+    /** Heartbeats and presence updates are timed to within a tick */
+    private static final int TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_SLOTS = 512;
+    /** Pages of users are in name order */
+    private static final Function<User, String> USER_KEY =
+            (user) -> UserDatabase.getNameKey(user.getName());
     
     /**
      * Public constructor
      */
     public Server() {
+        this(ServerConnectionHandler.Transport.BLOCKING);
+    }
+
+    /**
+     * Public constructor
+     * 
+     * @param transport The transport to accept clients with
+     */
+    public Server(ServerConnectionHandler.Transport transport) {
+        this.transport = transport;
         encryptionManager = EncryptionManager.getInstance();
         userDatabase = UserDatabase.getInstance();
         channelDatabase = ChannelDatabase.getInstance();
+        sessionTickets = new SessionTickets(
+                ServerSettings.TICKET_LIFETIME_SECONDS * 1000L);
         timer = new Timer();
         task = new TimerTask() {
             @Override
             public void run() {
                 try {
-                    pingAllClients();
-                    removeStaleClients();
+                    logOutboundQueues();
                 } catch (Exception e) {
-                    
+                    logger.log(Level.SEVERE, "Error logging outbound queues", e);
                 }
             }
         };
-        timer.schedule(task, 5000, CLIENT_POLL_INTERVAL_MILLIS);
+        timer.schedule(task, 5000, STATS_LOG_INTERVAL_MILLIS);
     }
 
     /**
@@ -93,12 +130,26 @@ public class Server {
         boolean success;
 
         try {
-            connection = new ServerConnectionHandler("Server");
+            connection = ServerConnectionHandler.create("Server", transport);
+            connection.setOutboundBudget(ServerSettings.createOutboundBudget());
+            connection.setMaxFrameLength(ServerSettings.MAX_FRAME_LENGTH);
+            ExecutorService workerPool = ServerSettings.createWorkerPool();
+            connection.setWorkerPool(workerPool);
+            channelExecutor = new ChannelExecutor(workerPool, ServerSettings.CHANNEL_SHARDS);
+            timingWheel = new TimingWheel("Timers", TIMER_TICK_MILLIS,
+                    TimeUnit.MILLISECONDS, TIMER_SLOTS);
+            heartbeatMonitor = ServerSettings.createHeartbeatMonitor(connection, timingWheel);
+            connection.setHeartbeatMonitor(heartbeatMonitor);
+            presenceService = ServerSettings.createPresenceService(connection, timingWheel);
+            membershipDigests = ServerSettings.createMembershipDigests(
+                    connection, channelExecutor, timingWheel);
+            listPager = ServerSettings.createListPager(connection, timingWheel);
             success = connection.bind(port);
 
             if (success) {
                 connection.addListener(new ServerHandler());
-                logger.log(Level.INFO, "Server bound to port: {0}", port);
+                logger.log(Level.INFO, "Server bound to port: {0} using {1} transport",
+                        new Object[]{port, transport});
             } else {
                 logger.log(Level.SEVERE, "Server unable to bind to port: {0}", port);
             }
@@ -126,6 +177,9 @@ public class Server {
             }
         }
         connection.disconnect();
+        if (timingWheel != null) {
+            timingWheel.stop();
+        }
         // TODO: Clear out databases
     }
 
@@ -142,10 +196,18 @@ public class Server {
             Socket socket = (Socket) event.getSource();
             DefaultData defaultData = event.getData();
 
-            User user = userDatabase.getUserOfSocket(socket);
+            Session session = userDatabase.getSession(socket);
+            if (session == null) {
+                // The session resumed on a new connection or already ended
+                logger.log(Level.FINE, "Ignoring message from replaced connection: {0}",
+                        socket);
+                return;
+            }
 
-            if (defaultData instanceof ProtoMessage) {
-                handleProtoMessage((ProtoMessage)defaultData, user, socket);
+            if (event.isLocal()) {
+                handleLocalMessage(defaultData, session);
+            } else if (defaultData instanceof ProtoMessage) {
+                handleProtoMessage((ProtoMessage)defaultData, session, socket);
                 
             } else {
                 logger.log(Level.WARNING, "Unhandled message: {0}", defaultData);
@@ -153,24 +215,40 @@ public class Server {
         }
     }
 
-    private void handleProtoMessage(ProtoMessage protoMessage, User user, Socket socket) {
-        switch (protoMessage.getMessage().getApplicationMessageCase()) {
+    /**
+     * Handles what the connection handler reports itself, which only it can
+     * send, such as a client disconnecting
+     */
+    private void handleLocalMessage(DefaultData defaultData, Session session) {
+        Notification notification = null;
+        if (defaultData instanceof ProtoMessage) {
+            notification = ((ProtoMessage) defaultData).getMessage().getNotification();
+        }
+        if (notification != null && notification.hasUserConnectionStatus()) {
+            handleUserConnectionStatus(session, notification.getUserConnectionStatus());
+        } else {
+            logger.log(Level.WARNING, "Unhandled local message: {0}", defaultData);
+        }
+    }
+
+    private void handleProtoMessage(ProtoMessage protoMessage, Session session, Socket socket) {
+        switch (protoMessage.getApplicationMessageCase()) {
             case NOTIFICATION:
                 Notification notification = protoMessage.getMessage().getNotification();
                 if (notification != null) {
-                    handleNotification(user, notification, socket);
+                    handleNotification(session, notification, socket);
                 }
                 break;
             case REQUEST:
                 Request request = protoMessage.getMessage().getRequest();
                 if (request != null) {
-                    handleRequest(user, request, socket);
+                    handleRequest(session, request, socket);
                 }
                 break;
             case RESPONSE:
                 Response response = protoMessage.getMessage().getResponse();
                 if (response != null) {
-                    handleResponse(response, user, socket);
+                    handleResponse(response, session, socket);
                 }
                 break;
             case PING:
@@ -180,47 +258,66 @@ public class Server {
                 connection.writeData(socket, pongMessage);
                 break;
             case PONG:
-                logger.log(Level.INFO, "Updating {0} last seen", user);
-                user.setLastSeen(System.currentTimeMillis());
+                logger.log(Level.FINE, "Updating {0} last seen", session.getUser());
+                session.getUser().setLastSeen(System.currentTimeMillis());
+                heartbeatMonitor.pongReceived(session,
+                        protoMessage.getMessage().getPong().getTimestamp());
                 break;
             case CHATMESSAGE:
-                handleChatMessage(protoMessage.getMessage().getChatMessage(), socket, user);
+                handleChatMessage(protoMessage, socket, session);
                 break;
             default:
                 logger.log(Level.INFO, "Message type not supported: {0}", protoMessage.getMessage().getApplicationMessageCase());
         }
     }
-    private void handleRequest(User user, Request request, Socket socket) {
+    private void handleRequest(Session session, Request request, Socket socket) {
         switch (request.getRequestType()) {
             case ChannelJoin:
-                handleChannelJoinRequest(user, request);
+                handleChannelJoinRequest(session, request);
                 break;
             case ChannelList:
-            {
-                PortoChatMessage channelList = ProtoUtil.createChannelList(channelDatabase.getListOfChannels());
-                ProtoMessage protoMessage = new ProtoMessage(channelList);
-                connection.writeData(socket, protoMessage);
-            }
+                sendChannelList(request, socket);
                 break;
             case ChannelUserList:
             {
                 String channel = request.getStringRequestData().getValue();
-                PortoChatMessage channelUserList = ProtoUtil.createUserList(channelDatabase.getUsersInChannel(channel), channel);
-                ProtoMessage protoMessage = new ProtoMessage(channelUserList);
-                connection.writeData(socket, protoMessage);
+                // After any join or part the client asked for first
+                channelExecutor.execute(channel,
+                        () -> sendChannelUserList(channel, request, socket));
             }
                 break;
             case SetUserName:
-                handleSetUserNameRequest(user, request.getStringRequestData().getValue(), socket);
+                handleSetUserNameRequest(session, request.getStringRequestData().getValue(), socket);
+                break;
+            case SetUserKeyShare:
+                handleSetUserKeyShare(session, request, socket);
+                pushUserList(session, socket);
                 break;
             case SetUserPublicKey:
-                handleSetUserPublicKey(user, request, socket);
+                handleSetUserPublicKey(session, request, socket);
+                pushUserList(session, socket);
+                break;
             case UserList:
-            {
-                PortoChatMessage userList = ProtoUtil.createUserList(userDatabase.getUserList(), null);
-                ProtoMessage protoMessage = new ProtoMessage(userList);
-                connection.writeData(socket, protoMessage);
-            }
+                sendUserList(request, socket);
+                break;
+            case SetWireFormat:
+                handleSetWireFormatRequest(request, socket);
+                break;
+            case ResumeSession:
+                handleResumeSessionRequest(session, request, socket);
+                break;
+            case SetCapabilities:
+                handleSetCapabilities(session, request, socket);
+                break;
+            case SubscribePresence:
+                presenceService.subscribe(session, request.getStringRequestData().getValue());
+                presenceService.sendPresence(session, request.getStringRequestData().getValue());
+                break;
+            case UnsubscribePresence:
+                presenceService.unsubscribe(session, request.getStringRequestData().getValue());
+                break;
+            case UserPresence:
+                presenceService.sendPresence(session, request.getStringRequestData().getValue());
                 break;
             default:
                 logger.log(Level.INFO, "Unhandled request type: {0}", request.getRequestType());
@@ -228,25 +325,220 @@ public class Server {
         }
     }
 
-    private void handleResponse(Response response, User user, Socket socket) {
+    /**
+     * Sends the user list, a page of it, or only what changed since the
+     * version the client asked with
+     */
+    private void sendUserList(Request request, Socket socket) {
+        if (request.getPageSize() > 0) {
+            ListPager.Page<User> page = ListPager.getPage(userDatabase.getUserList(),
+                    USER_KEY, request.getPageToken(), listPager.getPageSize(request.getPageSize()));
+            connection.writeData(socket, new ProtoMessage(ProtoUtil.createUserListPage(
+                    page.getEntries(), null, page.getNextPageToken())));
+            return;
+        }
+        ChangeLog<User> log = userDatabase.getUserLog();
+        ChangeLog.Changes<User> changes = getChanges(log, request, userDatabase.getUserCount());
+        if (changes != null) {
+            connection.writeData(socket, new ProtoMessage(ProtoUtil.createUserList(
+                    changes.getUpdated(), changes.getRemoved(), null, true, false,
+                    log.getEpoch(), changes.getVersion())));
+        } else {
+            sendWholeUserList(socket);
+        }
+    }
+
+    private void sendWholeUserList(Socket socket) {
+        ChangeLog<User> log = userDatabase.getUserLog();
+        long version = log.getVersion();
+        List<User> users = userDatabase.getUserList();
+        listPager.send(socket, users.size(), (from, to, more) ->
+                ProtoUtil.createUserList(users.subList(from, to),
+                        Collections.<String>emptyList(), null, from > 0, more,
+                        log.getEpoch(), version));
+    }
+
+    /**
+     * Clients from before list sync don't ask for the user list, they are
+     * sent it after their key exchange
+     */
+    private void pushUserList(Session session, Socket socket) {
+        if (!session.hasCapability(Capability.ListSync)) {
+            sendWholeUserList(socket);
+        }
+    }
+
+    /**
+     * Sends the channel list, a page of it, or only what changed since the
+     * version the client asked with
+     */
+    private void sendChannelList(Request request, Socket socket) {
+        if (request.getPageSize() > 0) {
+            ListPager.Page<String> page = ListPager.getPage(channelDatabase.getListOfChannels(),
+                    Function.identity(), request.getPageToken(),
+                    listPager.getPageSize(request.getPageSize()));
+            connection.writeData(socket, new ProtoMessage(ProtoUtil.createChannelListPage(
+                    page.getEntries(), page.getNextPageToken())));
+            return;
+        }
+        ChangeLog<String> log = channelDatabase.getChannelLog();
+        ChangeLog.Changes<String> changes = getChanges(log, request, channelDatabase.getChannelCount());
+        if (changes != null) {
+            connection.writeData(socket, new ProtoMessage(ProtoUtil.createChannelList(
+                    changes.getUpdated(), changes.getRemoved(), true, false,
+                    log.getEpoch(), changes.getVersion())));
+        } else {
+            long version = log.getVersion();
+            List<String> channels = channelDatabase.getListOfChannels();
+            listPager.send(socket, channels.size(), (from, to, more) ->
+                    ProtoUtil.createChannelList(channels.subList(from, to),
+                            Collections.<String>emptyList(), from > 0, more,
+                            log.getEpoch(), version));
+        }
+    }
+
+    /**
+     * Sends a channel's users, a page of them, or only what changed since
+     * the version the client asked with. Runs on the channel's executor.
+     */
+    private void sendChannelUserList(String channel, Request request, Socket socket) {
+        ChangeLog<User> log = channelDatabase.getMemberLog(channel);
+        List<User> users = channelDatabase.getUsersInChannel(channel);
+        if (log == null || users == null) {
+            // No such channel
+            log = null;
+            users = Collections.<User>emptyList();
+        }
+        int pageSize = (request.getPageSize() > 0)
+                ? listPager.getPageSize(request.getPageSize()) : 0;
+        // A client paging through the list only wants changes that fit on
+        // a page, the first page is cheaper than more
+        ChangeLog.Changes<User> changes = (log != null) ? getChanges(log, request,
+                (pageSize > 0) ? Math.min(users.size(), pageSize) : users.size()) : null;
+        if (changes != null) {
+            connection.writeData(socket, new ProtoMessage(ProtoUtil.createUserList(
+                    changes.getUpdated(), changes.getRemoved(), channel, true, false,
+                    log.getEpoch(), changes.getVersion())));
+        } else if (pageSize > 0) {
+            ListPager.Page<User> page = ListPager.getPage(users, USER_KEY,
+                    request.getPageToken(), pageSize);
+            if (log != null && request.getPageToken().isEmpty()
+                    && page.getNextPageToken().isEmpty()) {
+                // The whole list, which the client can keep in sync
+                connection.writeData(socket, new ProtoMessage(ProtoUtil.createUserListPage(
+                        page.getEntries(), channel, log.getEpoch(), log.getVersion())));
+            } else {
+                connection.writeData(socket, new ProtoMessage(ProtoUtil.createUserListPage(
+                        page.getEntries(), channel, page.getNextPageToken())));
+            }
+        } else if (log == null) {
+            connection.writeData(socket, new ProtoMessage(
+                    ProtoUtil.createUserList(users, channel)));
+        } else {
+            // The members can't change while this runs
+            long epoch = log.getEpoch();
+            long version = log.getVersion();
+            List<User> members = users;
+            listPager.send(socket, members.size(), (from, to, more) ->
+                    ProtoUtil.createUserList(members.subList(from, to),
+                            Collections.<String>emptyList(), channel, from > 0, more,
+                            epoch, version));
+        }
+    }
+
+    /**
+     * @param log The log of the list asked for
+     * @param request The request for the list
+     * @param size How many entries the list has
+     * @return The changes since the version the client asked with, or null
+     *          if it should be sent the whole list
+     */
+    private static <T> ChangeLog.Changes<T> getChanges(ChangeLog<T> log, Request request,
+            int size) {
+        if (!request.hasSyncVersion()) {
+            return null;
+        }
+        ChangeLog.Changes<T> changes = log.getChangesSince(
+                request.getSyncVersion().getEpoch(), request.getSyncVersion().getVersion());
+        // After a long enough absence the whole list is smaller
+        return (changes != null && changes.size() <= size) ? changes : null;
+    }
+
+    private void handleResponse(Response response, Session session, Socket socket) {
         switch (response.getResponseType()) {
             case ServerKeyAccepted:
-                userDatabase.setSocketIsEncrypted(socket, true);
+                session.setEncrypted(true);
+                if (session.getUser().getName() != null) {
+                    // A resumed session, replace the ticket it used
+                    sendSessionTicket(session);
+                }
+                break;
+            case WireFormatAccepted:
+            {
+                // The client writes the new format after echoing the
+                // response, so read it from the next frame onwards
+                WireFormat wireFormat = WireFormat.fromVersion(response.getIntResponseData());
+                if (wireFormat != null
+                        && wireFormat == connection.getOutboundWireFormat(socket)) {
+                    connection.setInboundWireFormat(socket, wireFormat);
+                    logger.log(Level.FINE, "{0} switched to wire format {1}",
+                            new Object[]{session.getUser(), wireFormat});
+                }
+            }
                 break;
         }
     }
-    private void handleSetUserNameRequest(User user, String newName, Socket socket) {
+
+    private void handleSetWireFormatRequest(Request request, Socket socket) {
+        WireFormat wireFormat = WireFormat.fromVersion(
+                Math.min(request.getIntRequestData(), WireFormat.LATEST.getVersion()));
+        if (wireFormat != null && wireFormat != WireFormat.V1
+                && connection.getOutboundWireFormat(socket) == WireFormat.V1) {
+            // Everything after the response is written in the new format
+            ProtoMessage accepted = new ProtoMessage(ProtoUtil.createWireFormatAccepted(
+                    request.getRequestId(), wireFormat.getVersion()));
+            connection.switchOutboundWireFormat(socket, accepted, wireFormat);
+        }
+    }
+
+    /**
+     * Notes the optional features the client supports and answers with the
+     * server's own. Key shares are only offered with the exchanges this JRE
+     * supports, so clients of a server that can't take them use RSA.
+     */
+    private void handleSetCapabilities(Session session, Request request, Socket socket) {
+        session.setCapabilities(request.getCapabilitiesList());
+        List<Capability> capabilities = new ArrayList<>();
+        List<KeyExchange> keyExchanges = new ArrayList<>();
+        if (ServerSettings.ACCEPT_KEY_SHARES) {
+            for (KeyExchange keyExchange : KeyExchange.PREFERRED) {
+                if (keyExchange.isAvailable()) {
+                    keyExchanges.add(keyExchange);
+                }
+            }
+            if (!keyExchanges.isEmpty()) {
+                capabilities.add(Capability.KeyShare);
+            }
+        }
+        ProtoMessage protoMessage = new ProtoMessage(ProtoUtil.createServerCapabilities(
+                request.getRequestId(), capabilities,
+                keyExchanges.stream().mapToInt(KeyExchange::getId).toArray()));
+        connection.writeData(socket, protoMessage);
+    }
+
+    private void handleSetUserNameRequest(Session session, String newName, Socket socket) {
         // Set user info
+        User user = session.getUser();
         String oldUserName = user.getName();
         boolean rename = (oldUserName != null);
         boolean success;
 
         if (!rename) {
             // First time setting a name
-            success = userDatabase.addUser(newName, socket);
+            success = userDatabase.addUser(newName, session);
         } else {
             // Rename
-            success = userDatabase.renameUser(user, newName);
+            success = userDatabase.renameUser(session, newName);
 
             // Log
             logger.log(Level.INFO, "Renamed of {0} to {1} was {2}",
@@ -257,159 +549,322 @@ public class Server {
         if (success) {
             user.setLastSeen(System.currentTimeMillis());
             if (!rename) {
-                // Notify other users of connection
-                ProtoMessage userConnection = new ProtoMessage(ProtoUtil.createUserConnectionStatus(user, true));
-
-                ArrayList<Socket> userSocketList
-                        = (ArrayList<Socket>) userDatabase.getSocketList();
-                sendToAllSockets(userSocketList, userConnection);
+                // Notify the users waiting for them
+                presenceService.userOnline(session);
             } else {
-                // update channel database
-                channelDatabase.renameUser(oldUserName, newName);
+                // Channel memberships are keyed on the session, so only
+                // the clients need telling
+                presenceService.userRenamed(session, oldUserName);
             }
             ProtoMessage usernameSet = new ProtoMessage(ProtoUtil.createUserNameSetNotification(newName));
             connection.writeData(socket, usernameSet);
+            sendSessionTicket(session);
         } else {
             ProtoMessage usernameInUse = new ProtoMessage(ProtoUtil.createUserNameInUseError(newName));
             connection.writeData(socket, usernameInUse);
         }
     }
 
-    private void handleSetUserPublicKey(User user, Request request, Socket socket) {
+    private void handleSetUserPublicKey(Session session, Request request, Socket socket) {
 
-        user.setSecretKey(encryptionManager.generateServerSecretKey());
-        user.setClientPublicKey(encryptionManager.getClientPublicKey(request.getByteData().toByteArray()));
+        CipherMode cipherMode = CipherMode.negotiate(request.getCipherModesList());
+        session.setSecretKey(encryptionManager.generateServerSecretKey());
+        session.setSessionCipher(encryptionManager.createSessionCipher(
+                session.getSecretKey(), cipherMode, true));
+        session.setClientPublicKey(encryptionManager.getClientPublicKey(request.getByteData().toByteArray()));
         if (logger.isLoggable(Level.FINEST)) {
             logger.log(Level.FINEST, "public: {0}",
-                    Util.byteArrayToHexString(user.getClientPublicKey().getEncoded()));
+                    Util.byteArrayToHexString(session.getClientPublicKey().getEncoded()));
         }
 
         // Encode the private key using the client's public key
         byte[] encodedEncryptedSecretKey
                 = encryptionManager.encryptSecretKeyWithPublicKey(
-                        user.getSecretKey(), user.getClientPublicKey());
-        ProtoMessage protoMessage = new ProtoMessage(ProtoUtil.createSetServerSharedKey(encodedEncryptedSecretKey));
+                        session.getSecretKey(), session.getClientPublicKey());
+        ProtoMessage protoMessage = new ProtoMessage(ProtoUtil.createSetServerSharedKey(
+                encodedEncryptedSecretKey, cipherMode.getId()));
         connection.writeData(socket, protoMessage);
     }
 
-    private void sendToChannelUsers(String channel, User filterUser, DefaultData data) {
-        // Notify users in channel
-        ArrayList<Socket> userSocketList =
-                (ArrayList<Socket>) channelDatabase.getSocketsOfUsersInChannel(
-                channel,
-                filterUser);
-        sendToAllSockets(userSocketList, data);
+    private void handleSetUserKeyShare(Session session, Request request, Socket socket) {
+        KeyExchange keyExchange = KeyExchange.fromId(request.getKeyExchange());
+        if (!ServerSettings.ACCEPT_KEY_SHARES || keyExchange == null
+                || keyExchange == KeyExchange.RSA || !keyExchange.isAvailable()) {
+            // Clients only send the exchanges listed in ServerCapabilities
+            logger.log(Level.WARNING, "Unsupported key exchange {0} from {1}",
+                    new Object[]{request.getKeyExchange(), session.getUser()});
+            return;
+        }
+
+        KeyPair keyShare = encryptionManager.generateKeyShare(keyExchange);
+        if (keyShare == null) {
+            return;
+        }
+        byte[] clientEncodedKey = request.getByteData().toByteArray();
+        byte[] serverEncodedKey = keyShare.getPublic().getEncoded();
+        SecretKey secretKey = encryptionManager.deriveSharedKey(keyExchange,
+                keyShare.getPrivate(), clientEncodedKey, serverEncodedKey, true);
+        if (secretKey == null) {
+            return;
+        }
+        CipherMode cipherMode = CipherMode.negotiate(request.getCipherModesList());
+        session.setSecretKey(secretKey);
+        session.setSessionCipher(encryptionManager.createSessionCipher(
+                secretKey, cipherMode, true));
+
+        ProtoMessage protoMessage = new ProtoMessage(ProtoUtil.createSetServerKeyShare(
+                keyExchange.getId(), serverEncodedKey, cipherMode.getId()));
+        connection.writeData(socket, protoMessage);
     }
 
-    private void handleChannelJoinRequest(User user, Request request) {
-        String channel = request.getStringRequestData().getValue();
-        if (!channelDatabase.channelExists(channel)) {
-            // Creating channel, notify all users
-            notifyChannelStatusChange(channel, true);
+    private void handleResumeSessionRequest(Session session, Request request, Socket socket) {
+        SessionTicket ticket = null;
+        if (session.getUser().getName() == null && session.getSessionCipher() == null) {
+            ticket = sessionTickets.open(request.getByteData().toByteArray());
+        }
+        CipherMode cipherMode = null;
+        SecretKey ticketKey = null;
+        byte[] clientNonce = request.getResumeNonce().toByteArray();
+        if (ticket != null) {
+            cipherMode = CipherMode.fromId(ticket.getCipherMode());
+            ticketKey = new SecretKeySpec(ticket.getSecretKey().toByteArray(), "AES");
+        }
+        Session resumedSession = null;
+        if (cipherMode != null && encryptionManager.verifyResumeBinder(ticketKey,
+                clientNonce, request.getResumeBinder().toByteArray())) {
+            resumedSession = restoreSession(ticket, session, socket);
+        }
+        if (resumedSession == null) {
+            // The client falls back to a full key exchange
+            logger.log(Level.INFO, "Rejected session resumption from {0}",
+                    session.getUser());
+            ProtoMessage rejected = new ProtoMessage(
+                    ProtoUtil.createSessionResumeRejected(request.getRequestId()));
+            connection.writeData(socket, rejected);
+            return;
         }
-        channelDatabase.addUserToChannel(channel, user);
 
-        // notify all apps
-        Portochat.PortoChatMessage join = ProtoUtil.createChannelJoinNotification(channel, user.getId());
-        ProtoMessage protoMessage = new ProtoMessage(join);
-        sendToChannelUsers(channel, user, protoMessage);
+        // Never reuse the ticket's key, so GCM nonces can't repeat
+        byte[] serverNonce = encryptionManager.generateNonce();
+        SecretKey secretKey = encryptionManager.deriveResumedKey(ticketKey,
+                clientNonce, serverNonce);
+        resumedSession.setSecretKey(secretKey);
+        resumedSession.setSessionCipher(encryptionManager.createSessionCipher(
+                secretKey, cipherMode, true));
+        resumedSession.getUser().setLastSeen(System.currentTimeMillis());
+        resumedSession.markReceived();
+
+        ProtoMessage resumed = new ProtoMessage(
+                ProtoUtil.createSessionResumed(request.getRequestId(), serverNonce));
+        resumed.setCanBeEncrypted(false);
+        connection.writeData(socket, resumed);
+        ProtoMessage usernameSet = new ProtoMessage(
+                ProtoUtil.createUserNameSetNotification(resumedSession.getUser().getName()));
+        connection.writeData(socket, usernameSet);
+        logger.log(Level.INFO, "{0} resumed their session", resumedSession.getUser());
     }
 
-    private void handleNotification(User user, Notification notification, Socket socket) {
+    /**
+     * Restores the user and channels of a ticket on a new connection
+     * 
+     * @param ticket The opened ticket
+     * @param session The session of the new connection
+     * @param socket The new connection's socket
+     * @return The resumed session, or null if it can't be restored
+     */
+    private Session restoreSession(SessionTicket ticket, Session session, Socket socket) {
+        Session oldSession = userDatabase.getSessionByUserId(ticket.getUserId());
+        if (oldSession != null) {
+            // The old connection hasn't noticed it dropped yet. Take its
+            // place, nobody else needs to know the connection changed.
+            Socket oldSocket = oldSession.getSocket();
+            if (!userDatabase.moveSession(oldSession, socket)) {
+                return null;
+            }
+            oldSession.setCapabilities(session.getCapabilities());
+            connection.closeSocket(oldSocket);
+            return oldSession;
+        }
+
+        // The session already ended, so the others saw it leave
+        User user = session.getUser();
+        user.setId(ticket.getUserId());
+        if (!userDatabase.addUser(ticket.getUserName(), session)) {
+            return null;
+        }
+        presenceService.userOnline(session);
+        for (String channel : ticket.getChannelsList()) {
+            joinChannel(session, channel);
+        }
+        return session;
+    }
+
+    /**
+     * Gives the client a ticket to resume its session with if its
+     * connection drops. Channel operations on different executors may send
+     * tickets at once, so the last ticket written is always the latest.
+     * 
+     * @param session The user's session
+     */
+    private void sendSessionTicket(Session session) {
+        synchronized (session) {
+            byte[] ticket = sessionTickets.seal(session, channelDatabase.getUserChannels(session));
+            if (ticket != null) {
+                ProtoMessage protoMessage = new ProtoMessage(
+                        ProtoUtil.createSetSessionTicket(ticket));
+                connection.writeData(session.getSocket(), protoMessage);
+            }
+        }
+    }
+
+    private void handleChannelJoinRequest(Session session, Request request) {
+        joinChannel(session, request.getStringRequestData().getValue());
+    }
+
+    /**
+     * Adds the user to the channel after the channel's earlier operations,
+     * then gives them a ticket that includes it
+     * 
+     * @param session The user's session
+     * @param channel The channel
+     */
+    private void joinChannel(Session session, String channel) {
+        channelExecutor.execute(channel, () -> {
+            if (session.isClosed()) {
+                return;
+            }
+            if (channelDatabase.addUserToChannel(channel, session)) {
+                // Created the channel, notify all users
+                notifyChannelStatusChange(channel, true);
+            }
+            if (session.isClosed()) {
+                // Disconnected while joining, and may have missed this channel
+                leaveChannel(session, channel, false);
+                return;
+            }
+
+            // The members hear of it with the channel's other changes
+            membershipDigests.joined(channel, session);
+            if (session.isEncrypted()) {
+                // A resumed session gets its ticket once its key is accepted
+                sendSessionTicket(session);
+            }
+        });
+    }
+
+    /**
+     * Removes the user from the channel, removing the channel if they were
+     * the last one in it
+     * 
+     * @param session The user's session
+     * @param channel The channel
+     * @param notifyPart true to tell the others in the channel the user left
+     * @return false if the user wasn't in the channel
+     */
+    private boolean leaveChannel(Session session, String channel, boolean notifyPart) {
+        // Runs on the channel's executor, so nobody joins in between
+        if (!channelDatabase.isUserInChannel(channel, session)) {
+            return false;
+        }
+        if (channelDatabase.removeUserFromChannel(channel, session)) {
+            // Channel was removed when user left so notify all users of removal
+            notifyChannelStatusChange(channel, false);
+        } else if (notifyPart) {
+            membershipDigests.parted(channel, session);
+        } else {
+            membershipDigests.disconnected(channel, session);
+        }
+        return true;
+    }
+
+    private void handleNotification(Session session, Notification notification, Socket socket) {
         switch (notification.getNotificationDataCase()) {
             case CHANNELPART:
-                handleChannelPartNotification(user, notification.getChannelPart());
+                handleChannelPartNotification(session, notification.getChannelPart());
                 break;
             case USERCONNECTIONSTATUS:
-                handleUserConnectionStatus(notification.getUserConnectionStatus());
+                // Only the connection handler says when a client has gone
+                logger.log(Level.WARNING, "Ignoring connection status sent by {0}",
+                        session.getUser());
                 break;
             default:
                 logger.log(Level.INFO, "Unsupported notification type: {0}", notification.getNotificationDataCase());
         }
     }
 
-    private void handleChannelPartNotification(User user, ChannelPart channelPart) {
+    private void handleChannelPartNotification(Session session, ChannelPart channelPart) {
         String channel = channelPart.getChannel();
-        channelDatabase.removeUserFromChannel(channel, user);
-
-        if (!channelDatabase.channelExists(channel)) {
-            // Channel was removed when user left so notify all users of removal
-            notifyChannelStatusChange(channel, false);
-        } else {
-            // notify users in channel of part event
-            Portochat.PortoChatMessage newPart =
-                    ProtoUtil.createChannelPartNotification(channel, user.getId());
-            ProtoMessage protoMessage = new ProtoMessage(newPart);
-            sendToChannelUsers(channel, user, protoMessage);
-        }
+        channelExecutor.execute(channel, () -> {
+            if (leaveChannel(session, channel, true)) {
+                sendSessionTicket(session);
+            }
+        });
     }
 
-    private void handleUserConnectionStatus(UserConnectionStatus userConnection) {
-        User user = ProtoUtil.convertToUser(userConnection.getUser());
+    private void handleUserConnectionStatus(Session session,
+            UserConnectionStatus userConnection) {
         // Should be only getting disconnects here, but check anyway
         if (!userConnection.getConnected()) {
-            boolean success = userDatabase.removeUser(user);
-
-            ArrayList<String> userChannelList =
-                    (ArrayList<String>) channelDatabase.getUserChannels(user);
-
-            channelDatabase.removeUserFromAllChannels(user);
-
-            for (String channel : userChannelList) {
-                if (!channelDatabase.channelExists(channel)) {
-                    notifyChannelStatusChange(channel, false);
-                }
+            // Joins still queued see this and won't add the session back
+            session.close();
+            userDatabase.removeSession(session);
+            // While the channels still list the user
+            presenceService.userOffline(session);
+
+            for (String channel : channelDatabase.getUserChannels(session)) {
+                channelExecutor.execute(channel,
+                        () -> leaveChannel(session, channel, false));
             }
         }
 
-        ProtoMessage connectStatus = new ProtoMessage(ProtoUtil.createUserConnectionStatus(user, false));
-        // Send to all other clients
-        ArrayList<Socket> userSocketList =
-                (ArrayList<Socket>) userDatabase.getSocketList();
-        sendToAllSockets(userSocketList, connectStatus);
-
         // Log the connection
         logger.info(userConnection.toString());
     }
 
-    private void handleChatMessage(ChatMessage chatMessage, Socket socket, User user) {
-        ProtoMessage protoMessage = new ProtoMessage(ProtoUtil.createChatMessage(
-                chatMessage.getSenderId(),
-                chatMessage.getDestinationId(),
-                chatMessage.getIsChannel(),
-                chatMessage.getMessage(),
-                chatMessage.getIsAction()));
-        if (chatMessage.getIsChannel()) {
-            // Send to all users in channel
-            ArrayList<Socket> userSocketList
-                    = (ArrayList<Socket>) channelDatabase.getSocketsOfUsersInChannel(
-                            chatMessage.getDestinationId(),
-                            user);
-
-            if (userSocketList != null) {
-                for (Socket userSocket : userSocketList) {
-                    connection.writeData(userSocket, protoMessage);
+    private void handleChatMessage(ProtoMessage chatMessage, Socket socket, Session session) {
+        String senderName = session.getUser().getName();
+        if (senderName == null) {
+            // Nobody to send it as, the sender the client gave isn't trusted
+            logger.log(Level.WARNING, "Dropping chat from {0} before it has a name",
+                    session.getUser());
+            return;
+        }
+        // Pass the message on as it arrived, only making sure of the sender
+        ProtoMessage protoMessage = chatMessage.createRelay(senderName);
+        if (chatMessage.isChatToChannel()) {
+            // Send to all users in channel, in order with its joins and parts
+            String channel = chatMessage.getChatDestinationId();
+            channelExecutor.execute(channel, () -> {
+                Session[] members = channelDatabase.getMembers(channel);
+
+                if (members != null) {
+                    // So the members know the sender if they just joined
+                    membershipDigests.flush(channel);
+                    connection.broadcastData(members, session, protoMessage);
+                } else {
+                    ProtoMessage doesNotExist = new ProtoMessage(ProtoUtil.createChannelDoesNotExistError(channel));
+                    connection.writeData(socket, doesNotExist);
                 }
-            } else {
-                ProtoMessage doesNotExist = new ProtoMessage(ProtoUtil.createChannelDoesNotExistError(chatMessage.getDestinationId()));
-                connection.writeData(socket, doesNotExist);
-            }
+            });
         } else {
             // direct user message
-            Socket toUserSocket = userDatabase.getSocketByUserId(chatMessage.getDestinationId());
-            if (toUserSocket != null) {
-                connection.writeData(toUserSocket, protoMessage);
+            Session toSession = userDatabase.getSessionByUserId(chatMessage.getChatDestinationId());
+            if (toSession != null) {
+                // The recipient may not have met the sender yet, and each
+                // now wants to know if the other leaves
+                presenceService.introduce(toSession, session);
+                presenceService.subscribe(session, toSession);
+                connection.writeData(toSession.getSocket(), protoMessage);
             } else {
-                ProtoMessage doesNotExist = new ProtoMessage(ProtoUtil.createUserDoesNotExist(user));
+                ProtoMessage doesNotExist = new ProtoMessage(
+                        ProtoUtil.createUserDoesNotExist(session.getUser()));
                 connection.writeData(socket, doesNotExist);
             }
         }
     }
     private void sendToAllSockets(List<Socket> userSocketList, DefaultData data) {
         if (userSocketList != null && userSocketList.size() > 0) {
-            for (Socket userSocket : userSocketList) {
-                connection.writeData(userSocket, data);
-            }
+            connection.broadcastData(userSocketList, data);
         }
     }
 
@@ -433,27 +888,21 @@ public class Server {
         sendToAllSockets(userSocketList, protoMessage);
     }
     
-    private void pingAllClients() {
-        // send a message to all clients to see if they are alive
-        ProtoMessage pingMessage = new ProtoMessage(ProtoUtil.createPing(0));
-        ArrayList<Socket> userSocketList =
-                (ArrayList<Socket>) userDatabase.getSocketList();
-
-        sendToAllSockets(userSocketList, pingMessage);
-    }
-    
-    private final long CLIENT_TIMEOUT = 3 * 60 * 1000;
-    private void removeStaleClients() {
-        long now = System.currentTimeMillis();
-        for (User user : userDatabase.getUserList()) {
-            if ((now - user.getLastSeen()) > CLIENT_TIMEOUT) {
-                logger.log(Level.INFO, "{0} timed out", user);
-                // disconnect socket for user and remove
-                // TODO we can clean up manually or maybe try to send a message over that socket to make it error out?
-                Socket socket = userDatabase.getSocketForUser(user);
-//                socket.close();
-//                userDatabase.removeUser(user);
+    /**
+     * Logs the depth and drain rate of each client's outbound queue, and the
+     * timings of the incoming, outgoing and channel stages
+     */
+    private void logOutboundQueues() {
+        if (connection != null && logger.isLoggable(Level.FINE)) {
+            for (OutboundQueue queue : connection.getOutboundQueues()) {
+                logger.log(Level.FINE, "{0} {1} drain rate: {2} msg/s",
+                        new Object[]{userDatabase.getUserOfSocket(queue.getSocket()),
+                            queue, String.format("%.1f", queue.sampleDrainRate())});
             }
+            logger.log(Level.FINE, "Outbound {0}", connection.getOutboundBudget());
+            logger.log(Level.FINE, "Stage {0}", connection.getIncomingStats().sample());
+            logger.log(Level.FINE, "Stage {0}", connection.getOutgoingStats().sample());
+            logger.log(Level.FINE, "Stage {0}", channelExecutor.getStats().sample());
         }
     }
 }
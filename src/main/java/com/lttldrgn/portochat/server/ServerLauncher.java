@@ -17,15 +17,19 @@
 package com.lttldrgn.portochat.server;
 
 import com.lttldrgn.portochat.common.Settings;
+import com.lttldrgn.portochat.server.network.ServerConnectionHandler.Transport;
 
 /**
- * This class is used to launch the server from the CLI
+ * This class is used to launch the server from the CLI.
+ * 
+ * Usage: ServerLauncher [port] [blocking|nio]
  * @author Mike
  */
 public class ServerLauncher {
     
     public static void main (String args[]) {
         int port = Settings.DEFAULT_SERVER_PORT;
+        Transport transport = Transport.BLOCKING;
         if (args.length > 0) {
             try {
                 port = Integer.parseInt(args[0]);
@@ -34,7 +38,15 @@ public class ServerLauncher {
                         port);
             }
         }
-        Server server = new Server();
+        if (args.length > 1) {
+            try {
+                transport = Transport.valueOf(args[1].toUpperCase());
+            } catch (IllegalArgumentException iae) {
+                System.out.println("Unknown transport " + args[1] +
+                        ".  Using " + transport.name().toLowerCase());
+            }
+        }
+        Server server = new Server(transport);
         server.bind(port);
     }
 }
@@ -0,0 +1,230 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.server;
+
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.lttldrgn.portochat.common.network.OutboundBudget;
+import com.lttldrgn.portochat.common.network.SlowConsumerPolicy;
+import com.lttldrgn.portochat.common.network.TimingWheel;
+import com.lttldrgn.portochat.common.protocol.WireFormat;
+import com.lttldrgn.portochat.server.network.ServerConnectionHandler;
+
+/**
+ * Server tuning, read from system properties prefixed with portochat.server.
+ * so they can be set on the command line with -D.
+ */
+public class ServerSettings {
+
+    private static final Logger logger = Logger.getLogger(ServerSettings.class.getName());
+    private static final String PREFIX = "portochat.server.";
+
+    /** Bytes that may wait to be written to a single client */
+    public static final int MAX_SESSION_OUTBOUND_BYTES = Integer.getInteger(
+            PREFIX + "maxSessionOutboundBytes", OutboundBudget.DEFAULT_MAX_SESSION_BYTES);
+    /** Bytes that may wait to be written across all clients */
+    public static final long MAX_TOTAL_OUTBOUND_BYTES = Long.getLong(
+            PREFIX + "maxTotalOutboundBytes", OutboundBudget.DEFAULT_MAX_TOTAL_BYTES);
+    /** The largest frame a client may send or be sent */
+    public static final int MAX_FRAME_LENGTH = Integer.getInteger(
+            PREFIX + "maxFrameLength", WireFormat.DEFAULT_MAX_FRAME_LENGTH);
+    /**
+     * Whether clients may agree on a key with Diffie-Hellman. The server's
+     * half costs more CPU than encrypting a key with RSA, but spares the
+     * client from generating an RSA key pair. When off the server doesn't
+     * offer key shares, so clients use RSA.
+     */
+    public static final boolean ACCEPT_KEY_SHARES = Boolean.parseBoolean(
+            System.getProperty(PREFIX + "acceptKeyShares", "true"));
+    /**
+     * How long a client may resume its session with the ticket it was last
+     * issued, or 0 to issue no tickets
+     */
+    public static final int TICKET_LIFETIME_SECONDS = Integer.getInteger(
+            PREFIX + "ticketLifetimeSeconds", 3600);
+    /**
+     * Threads handling client messages, so key exchanges and other costly
+     * work don't hold up the threads reading sockets. With 0 messages are
+     * handled by the threads that read them.
+     */
+    public static final int WORKER_THREADS = Integer.getInteger(
+            PREFIX + "workerThreads", Runtime.getRuntime().availableProcessors());
+    /**
+     * Executors the channels are spread over. Each channel's operations run
+     * in order on one of them, while channels on different ones run in
+     * parallel on the worker threads.
+     */
+    public static final int CHANNEL_SHARDS = Integer.getInteger(
+            PREFIX + "channelShards", 4 * Runtime.getRuntime().availableProcessors());
+    /** How long a client's host name is cached once looked up */
+    public static final int HOST_NAME_TTL_SECONDS = Integer.getInteger(
+            PREFIX + "hostNameTtlSeconds", 600);
+    /** How long an address without a host name is remembered as such */
+    public static final int HOST_NAME_NEGATIVE_TTL_SECONDS = Integer.getInteger(
+            PREFIX + "hostNameNegativeTtlSeconds", 60);
+    /** The most client addresses whose host names are cached */
+    public static final int MAX_HOST_NAMES = Integer.getInteger(
+            PREFIX + "maxHostNames", 10000);
+    /** How long a client may be quiet before it is pinged */
+    public static final int HEARTBEAT_INTERVAL_SECONDS = Integer.getInteger(
+            PREFIX + "heartbeatIntervalSeconds", 60);
+    /**
+     * How long a client may be quiet before it is disconnected, which
+     * should allow for a couple of unanswered pings
+     */
+    public static final int IDLE_TIMEOUT_SECONDS = Integer.getInteger(
+            PREFIX + "idleTimeoutSeconds", 180);
+    /** How often the users coming and going are sent to interested clients */
+    public static final int PRESENCE_FLUSH_MILLIS = Integer.getInteger(
+            PREFIX + "presenceFlushMillis", 500);
+    /** The most users a client can subscribe to by name */
+    public static final int MAX_PRESENCE_SUBSCRIPTIONS = Integer.getInteger(
+            PREFIX + "maxPresenceSubscriptions", 1000);
+    /**
+     * How many changes to the user and channel lists are remembered, so a
+     * client that had the list can be sent only what changed
+     */
+    public static final int SYNC_LOG_SIZE = Integer.getInteger(
+            PREFIX + "syncLogSize", 1024);
+    /** How many changes to each channel's users are remembered */
+    public static final int CHANNEL_SYNC_LOG_SIZE = Integer.getInteger(
+            PREFIX + "channelSyncLogSize", 128);
+    /** The most users or channels sent in one message */
+    public static final int LIST_PAGE_SIZE = Integer.getInteger(
+            PREFIX + "listPageSize", 500);
+    /**
+     * Bytes that may wait to be written to a client before the next page of
+     * a long list is queued
+     */
+    public static final int LIST_QUEUE_BYTES = Integer.getInteger(
+            PREFIX + "listQueueBytes", 256 * 1024);
+    /** How often the users joining and leaving each channel are sent */
+    public static final int CHANNEL_DIGEST_MILLIS = Integer.getInteger(
+            PREFIX + "channelDigestMillis", 300);
+    /**
+     * Members from which a channel no longer tells its members who joins and
+     * leaves, or 0 to always tell them
+     */
+    public static final int QUIET_CHANNEL_SIZE = Integer.getInteger(
+            PREFIX + "quietChannelSize", 1000);
+    /** Comma separated SlowConsumerPolicy names, or "none" */
+    public static final String SLOW_CONSUMER_POLICIES = System.getProperty(
+            PREFIX + "slowConsumerPolicies",
+            "coalesce_notifications,drop_oldest_chat,disconnect");
+
+    private ServerSettings() {
+    }
+
+    /**
+     * @return The outbound budget described by the settings
+     */
+    public static OutboundBudget createOutboundBudget() {
+        return new OutboundBudget(MAX_SESSION_OUTBOUND_BYTES,
+                MAX_TOTAL_OUTBOUND_BYTES, parsePolicies(SLOW_CONSUMER_POLICIES));
+    }
+
+    /**
+     * @return The pool described by the settings to handle client messages
+     *          on, or null if they are handled as they are read
+     */
+    public static ExecutorService createWorkerPool() {
+        if (WORKER_THREADS <= 0) {
+            return null;
+        }
+        AtomicInteger workerCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(WORKER_THREADS, (Runnable r) -> {
+            Thread thread = new Thread(r, "Worker-" + workerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return The host name resolver described by the settings
+     */
+    public static HostNameResolver createHostNameResolver() {
+        return new HostNameResolver(HOST_NAME_TTL_SECONDS * 1000L,
+                HOST_NAME_NEGATIVE_TTL_SECONDS * 1000L, MAX_HOST_NAMES);
+    }
+
+    /**
+     * @param connection The connection handler the clients are connected to
+     * @param wheel The wheel the heartbeats are timed on
+     * @return The heartbeat monitor described by the settings
+     */
+    public static HeartbeatMonitor createHeartbeatMonitor(
+            ServerConnectionHandler connection, TimingWheel wheel) {
+        return new HeartbeatMonitor(connection, wheel,
+                HEARTBEAT_INTERVAL_SECONDS * 1000L, IDLE_TIMEOUT_SECONDS * 1000L);
+    }
+
+    /**
+     * @param connection The connection handler the clients are connected to
+     * @param wheel The wheel the updates are timed on
+     * @return The presence service described by the settings
+     */
+    public static PresenceService createPresenceService(
+            ServerConnectionHandler connection, TimingWheel wheel) {
+        return new PresenceService(connection, wheel, PRESENCE_FLUSH_MILLIS,
+                MAX_PRESENCE_SUBSCRIPTIONS);
+    }
+
+    /**
+     * @param connection The connection handler the clients are connected to
+     * @param channelExecutor The executor the channel operations run on
+     * @param wheel The wheel the digests are timed on
+     * @return The membership digests described by the settings
+     */
+    public static MembershipDigests createMembershipDigests(
+            ServerConnectionHandler connection, ChannelExecutor channelExecutor,
+            TimingWheel wheel) {
+        return new MembershipDigests(connection, channelExecutor, wheel,
+                CHANNEL_DIGEST_MILLIS, QUIET_CHANNEL_SIZE);
+    }
+
+    /**
+     * @param connection The connection handler the clients are connected to
+     * @param wheel The wheel the waits for the clients are timed on
+     * @return The list pager described by the settings
+     */
+    public static ListPager createListPager(ServerConnectionHandler connection,
+            TimingWheel wheel) {
+        return new ListPager(connection, wheel, LIST_PAGE_SIZE, LIST_QUEUE_BYTES);
+    }
+
+    private static Set<SlowConsumerPolicy> parsePolicies(String value) {
+        Set<SlowConsumerPolicy> policies = EnumSet.noneOf(SlowConsumerPolicy.class);
+        for (String name : value.split(",")) {
+            name = name.trim();
+            if (name.isEmpty() || name.equalsIgnoreCase("none")) {
+                continue;
+            }
+            try {
+                policies.add(SlowConsumerPolicy.valueOf(name.toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException ex) {
+                logger.log(Level.WARNING, "Ignoring unknown slow consumer policy: {0}", name);
+            }
+        }
+        return policies;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.server;
+
+import java.net.Socket;
+import java.security.PublicKey;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.SecretKey;
+import com.lttldrgn.portochat.common.User;
+import com.lttldrgn.portochat.common.encryption.SessionCipher;
+import com.lttldrgn.portochat.common.network.handler.BufferHandler;
+import com.lttldrgn.portochat.proto.Portochat.Capability;
+
+/**
+ * Everything the server keeps about a client's connection: its socket, the
+ * user's profile, the encryption state and the handlers its data passes
+ * through.
+ *
+ * A session's id is assigned when the client connects and never changes,
+ * and a session is only equal to itself, so sessions can key maps while the
+ * user's name changes. When a client resumes its session on a new
+ * connection the session moves to the new socket.
+ */
+public class Session {
+
+    private static final AtomicLong nextId = new AtomicLong();
+
+    private final long id = nextId.incrementAndGet();
+    private final User user;
+    private final List<BufferHandler> handlers = new CopyOnWriteArrayList<>();
+    private volatile Socket socket;
+    private volatile boolean encrypted = false;
+    private volatile SecretKey secretKey = null;
+    private volatile SessionCipher sessionCipher = null;
+    private volatile PublicKey clientPublicKey = null;
+    private volatile Set<Capability> capabilities = Collections.emptySet();
+    private volatile boolean closed = false;
+    private volatile long lastReceivedNanos = System.nanoTime();
+    private long pingTimestamp = -1;
+    private long pingSentNanos = 0;
+    private volatile long roundTripNanos = -1;
+
+    /**
+     * Public constructor
+     *
+     * @param socket The client's socket
+     * @param user The user connected on the socket
+     */
+    public Session(Socket socket, User user) {
+        this.socket = socket;
+        this.user = user;
+    }
+
+    /**
+     * @return The session's id, unique for as long as the server runs
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return The user connected on the session
+     */
+    public User getUser() {
+        return user;
+    }
+
+    /**
+     * @return The socket the session is currently connected on
+     */
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Moves the session to a new connection. The new connection isn't
+     * encrypted until the client accepts its key.
+     *
+     * @param socket The new connection's socket
+     */
+    void setSocket(Socket socket) {
+        this.socket = socket;
+        encrypted = false;
+    }
+
+    /**
+     * @return true once the client has accepted the session's key, so data
+     *          sent either way is encrypted
+     */
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    public void setEncrypted(boolean encrypted) {
+        this.encrypted = encrypted;
+    }
+
+    public SecretKey getSecretKey() {
+        return secretKey;
+    }
+
+    public void setSecretKey(SecretKey secretKey) {
+        this.secretKey = secretKey;
+    }
+
+    /**
+     * @return The cipher state of the encrypted session, or null if the key
+     *          exchange hasn't happened
+     */
+    public SessionCipher getSessionCipher() {
+        return sessionCipher;
+    }
+
+    /**
+     * Sets the cipher state of the encrypted session
+     *
+     * @param sessionCipher The session cipher
+     */
+    public void setSessionCipher(SessionCipher sessionCipher) {
+        this.sessionCipher = sessionCipher;
+    }
+
+    public PublicKey getClientPublicKey() {
+        return clientPublicKey;
+    }
+
+    public void setClientPublicKey(PublicKey clientPublicKey) {
+        this.clientPublicKey = clientPublicKey;
+    }
+
+    /**
+     * @return The optional features the client supports, none until it
+     *          says otherwise
+     */
+    public Set<Capability> getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Sets the optional features the client supports
+     *
+     * @param capabilities The client's capabilities
+     */
+    public void setCapabilities(Collection<Capability> capabilities) {
+        Set<Capability> copy = EnumSet.noneOf(Capability.class);
+        copy.addAll(capabilities);
+        this.capabilities = Collections.unmodifiableSet(copy);
+    }
+
+    /**
+     * @param capability An optional feature
+     * @return true if the client supports it
+     */
+    public boolean hasCapability(Capability capability) {
+        return capabilities.contains(capability);
+    }
+
+    /**
+     * @return true once the client has disconnected for good
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Marks the session as ended, so channel operations still queued for it
+     * don't add it back to a channel
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Notes that data was read from the client, showing it's still there
+     */
+    public void markReceived() {
+        lastReceivedNanos = System.nanoTime();
+    }
+
+    /**
+     * @return When data was last read from the client, by System.nanoTime()
+     */
+    public long getLastReceivedNanos() {
+        return lastReceivedNanos;
+    }
+
+    /**
+     * @return The time the client last took to answer a ping in
+     *          nanoseconds, or -1 if it hasn't answered one
+     */
+    public long getRoundTripNanos() {
+        return roundTripNanos;
+    }
+
+    /**
+     * Notes a ping sent to the client
+     *
+     * @param timestamp The ping's timestamp, echoed back in the pong
+     * @param sentNanos When it was sent, by System.nanoTime()
+     */
+    synchronized void pingSent(long timestamp, long sentNanos) {
+        pingTimestamp = timestamp;
+        pingSentNanos = sentNanos;
+    }
+
+    /**
+     * Notes a pong from the client
+     *
+     * @param timestamp The timestamp of the ping it answers
+     * @return The round trip time in nanoseconds, or -1 if it doesn't answer
+     *          the last ping sent
+     */
+    synchronized long pongReceived(long timestamp) {
+        if (timestamp != pingTimestamp) {
+            return -1;
+        }
+        pingTimestamp = -1;
+        roundTripNanos = System.nanoTime() - pingSentNanos;
+        return roundTripNanos;
+    }
+
+    /**
+     * @return The handlers the session's data passes through
+     */
+    public List<BufferHandler> getHandlers() {
+        return handlers;
+    }
+
+    public void addHandler(BufferHandler handler) {
+        handlers.add(handler);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id);
+    }
+
+    @Override
+    public String toString() {
+        return user + " #" + id;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.server;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.lttldrgn.portochat.common.User;
+import com.lttldrgn.portochat.common.encryption.SessionCipher;
+import com.lttldrgn.portochat.proto.Portochat.SessionTicket;
+
+/**
+ * Seals a session's key, user and channels into a ticket only this server
+ * can open, so a client whose connection dropped can resume its session
+ * without a new key exchange.
+ *
+ * Tickets are encrypted with AES-GCM under a key generated when the server
+ * starts, so they can't be read or altered by the client and stop working
+ * when the server restarts. Each ticket can only be used once, so a
+ * resumption seen on the network can't be replayed to take over the
+ * session; the client is given a new ticket once its session resumes.
+ */
+public class SessionTickets {
+
+    private static final Logger logger =
+            Logger.getLogger(SessionTickets.class.getName());
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    /** The length of the random nonce at the start of each ticket */
+    private static final int NONCE_LENGTH = 12;
+    /** The length of a GCM authentication tag */
+    private static final int TAG_LENGTH = 16;
+    /** How often used tickets that have expired are forgotten */
+    private static final long PURGE_INTERVAL_MILLIS = 60 * 1000;
+
+    private final SecretKey ticketKey;
+    private final long lifetimeMillis;
+    private final SecureRandom random = new SecureRandom();
+    /** The nonces of the tickets already used, with when each expires */
+    private final Map<ByteBuffer, Long> usedTickets = new ConcurrentHashMap<>();
+    private volatile long nextPurgeMillis = 0;
+
+    /**
+     * Public constructor
+     *
+     * @param lifetimeMillis How long a ticket can be used for, or 0 to issue
+     *          no tickets
+     */
+    public SessionTickets(long lifetimeMillis) {
+        this.lifetimeMillis = lifetimeMillis;
+        SecretKey key = null;
+        if (lifetimeMillis > 0) {
+            try {
+                KeyGenerator generator = KeyGenerator.getInstance("AES");
+                generator.init(128);
+                key = generator.generateKey();
+            } catch (NoSuchAlgorithmException ex) {
+                logger.log(Level.SEVERE, "Unable to create ticket key!", ex);
+            }
+        }
+        ticketKey = key;
+    }
+
+    /**
+     * Seals a user's session into a ticket
+     *
+     * @param session The session, with a named user and encryption
+     * @param channels The channels the user is in
+     * @return The sealed ticket, or null if tickets are disabled or the
+     *          session isn't encrypted
+     */
+    public byte[] seal(Session session, List<String> channels) {
+        User user = session.getUser();
+        SessionCipher sessionCipher = session.getSessionCipher();
+        if (ticketKey == null || sessionCipher == null || user.getName() == null) {
+            return null;
+        }
+        byte[] state = SessionTicket.newBuilder()
+                .setSecretKey(ByteString.copyFrom(sessionCipher.getSecretKey().getEncoded()))
+                .setCipherMode(sessionCipher.getMode().getId())
+                .setUserId(user.getId())
+                .setUserName(user.getName())
+                .addAllChannels(channels)
+                .setExpires(System.currentTimeMillis() + lifetimeMillis)
+                .build().toByteArray();
+
+        byte[] ticket = null;
+        try {
+            byte[] nonce = new byte[NONCE_LENGTH];
+            random.nextBytes(nonce);
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, ticketKey,
+                    new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            ticket = Arrays.copyOf(nonce, NONCE_LENGTH + cipher.getOutputSize(state.length));
+            cipher.doFinal(state, 0, state.length, ticket, NONCE_LENGTH);
+        } catch (GeneralSecurityException ex) {
+            logger.log(Level.SEVERE, "Unable to seal session ticket!", ex);
+        } finally {
+            Arrays.fill(state, (byte) 0);
+        }
+
+        return ticket;
+    }
+
+    /**
+     * Opens a ticket sealed by this server, which uses it up
+     *
+     * @param ticket The sealed ticket
+     * @return The session state, or null if the ticket wasn't sealed by this
+     *          server, was altered, has expired or was already used
+     */
+    public SessionTicket open(byte[] ticket) {
+        if (ticketKey == null || ticket.length <= NONCE_LENGTH + TAG_LENGTH) {
+            return null;
+        }
+        SessionTicket sessionTicket = null;
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, ticketKey,
+                    new GCMParameterSpec(TAG_LENGTH * 8, ticket, 0, NONCE_LENGTH));
+            byte[] state = cipher.doFinal(ticket, NONCE_LENGTH, ticket.length - NONCE_LENGTH);
+            sessionTicket = SessionTicket.parseFrom(state);
+            Arrays.fill(state, (byte) 0);
+            long now = System.currentTimeMillis();
+            if (sessionTicket.getExpires() < now) {
+                logger.log(Level.FINE, "Ticket of {0} has expired",
+                        sessionTicket.getUserName());
+                sessionTicket = null;
+            } else if (!markUsed(ticket, sessionTicket.getExpires(), now)) {
+                logger.log(Level.WARNING, "Ticket of {0} was already used",
+                        sessionTicket.getUserName());
+                sessionTicket = null;
+            }
+        } catch (GeneralSecurityException | InvalidProtocolBufferException ex) {
+            logger.log(Level.FINE, "Rejecting session ticket", ex);
+        }
+
+        return sessionTicket;
+    }
+
+    /**
+     * Records that a ticket was used. Every ticket has its own random nonce,
+     * so the nonce identifies it, and it only needs remembering until the
+     * ticket expires.
+     *
+     * @param ticket The sealed ticket
+     * @param expires When the ticket expires
+     * @param now The current time
+     * @return false if the ticket was already used
+     */
+    private boolean markUsed(byte[] ticket, long expires, long now) {
+        if (now >= nextPurgeMillis) {
+            nextPurgeMillis = now + PURGE_INTERVAL_MILLIS;
+            usedTickets.values().removeIf(usedExpires -> usedExpires < now);
+        }
+        ByteBuffer nonce = ByteBuffer.wrap(Arrays.copyOf(ticket, NONCE_LENGTH));
+        return usedTickets.putIfAbsent(nonce, expires) == null;
+    }
+}
@@ -19,26 +19,44 @@ package com.lttldrgn.portochat.server;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.crypto.SecretKey;
 import com.lttldrgn.portochat.common.User;
-import com.lttldrgn.portochat.common.network.handler.BufferHandler;
 
 /**
  * This class is a singleton class used to contain the user database.
  * 
+ * Each connection has a Session, found by its socket. Registered sessions
+ * are also indexed by user id and by name, so looking up the target of a
+ * message doesn't depend on how many users are connected. Names are claimed
+ * in the name index before they are set, so two connections asking for the
+ * same name can't both get it. Names differing only in case are the same
+ * name.
+ * 
+ * Registering, renaming and removing users, and their host names being
+ * looked up, are recorded in a change log, so clients can be sent only
+ * what changed in the user list since they last had it.
+ * 
  * @author Mike
  */
 public class UserDatabase {
 
     private static final Logger logger = Logger.getLogger(UserDatabase.class.getName());
     private static UserDatabase instance = null;
-    private final Map<User, Socket> userMap = new ConcurrentHashMap<>();;
-    private final Map<Socket, User> socketMap = new ConcurrentHashMap<>();;
-    private final Map<Socket, Boolean> socketEncryptionMap = new ConcurrentHashMap<>();
+    /** Sessions by the socket they are connected on */
+    private final Map<Socket, Session> socketMap = new ConcurrentHashMap<>();
+    /** Registered sessions by user id */
+    private final Map<String, Session> userMap = new ConcurrentHashMap<>();
+    /** Registered sessions by name key, see {@link #getNameKey(String)} */
+    private final Map<String, Session> userNameMap = new ConcurrentHashMap<>();
+    private final HostNameResolver hostNameResolver =
+            ServerSettings.createHostNameResolver();
+    /** Changes to the registered users, by user id */
+    private final ChangeLog<User> userLog =
+            new ChangeLog<>(ServerSettings.SYNC_LOG_SIZE);
     
     /**
      * Private constructor.
@@ -59,43 +77,51 @@ public class UserDatabase {
         return instance;
     }
     
-    public boolean addConnection(Socket socket) {
-        boolean success = false;
-        
-        if (!socketMap.containsKey(socket)) {
-            User user = new User();
-            user.setHost(socket.getInetAddress().getHostName());
-            socketEncryptionMap.put(socket, false); // not encrypted initially
+    /**
+     * Creates the session of a newly connected socket
+     * 
+     * @param socket the socket
+     * 
+     * @return the new session, or null if the socket already has one
+     */
+    public Session addConnection(Socket socket) {
+        User user = new User();
+        Session session = new Session(socket, user);
+        // Looking up the name could hold up accepting the next connection
+        user.setHost(hostNameResolver.resolve(socket.getInetAddress(),
+                (host) -> hostResolved(session, host)));
 
-            socketMap.put(socket, user);
-            logger.log(Level.INFO, "{0} has connected", 
-                    new Object[]{user});
-            success = true;
+        if (socketMap.putIfAbsent(socket, session) != null) {
+            return null;
         }
+        logger.log(Level.INFO, "{0} has connected", 
+                new Object[]{user});
         
-        return success;
+        return session;
     }
+
     /**
-     * Adds a user to the database
+     * Registers a session's user under a name
      * 
      * @param userName user name to add
-     * @param socket the user's socket. 
+     * @param session the user's session
      * 
      * @return true if successful
      */
-    public boolean addUser(String userName, Socket socket) {
+    public boolean addUser(String userName, Session session) {
         boolean success = false;
         
-        User user = socketMap.get(socket);
-        if (user != null) {
-            if (!userNameInUse(userName)) {
-                user.setName(userName);
+        User user = session.getUser();
+        if (socketMap.get(session.getSocket()) == session
+                && !userMap.containsKey(user.getId())
+                && claimUserName(userName, session)) {
+            user.setName(userName);
 
-                userMap.put(user, socket);
-                logger.log(Level.INFO, "{0} has registered", 
-                        new Object[]{user});
-                success = true;
-            }
+            userMap.put(user.getId(), session);
+            userLog.put(user.getId(), user);
+            logger.log(Level.INFO, "{0} has registered", 
+                    new Object[]{user});
+            success = true;
         }
         
         return success;
@@ -104,20 +130,27 @@ public class UserDatabase {
     /**
      * Renames a user in the database.
      * 
-     * @param user User object with current username
+     * @param session the session of the user
      * @param newUserName new username
      * 
      * @return true if successful
      */
-    public boolean renameUser(User user, String newUserName) {
+    public boolean renameUser(Session session, String newUserName) {
         boolean success = false;
         
-        if (userMap.containsKey(user)) {
-            
-            // Check if the username is in use
-            if (!userNameInUse(newUserName)) {
-                String oldUserName = user.getName();
+        User user = session.getUser();
+        if (userMap.get(user.getId()) == session) {
+            String oldUserName = user.getName();
+            String oldKey = getNameKey(oldUserName);
+            boolean sameKey = oldKey.equals(getNameKey(newUserName));
+
+            // Claim the new name before giving up the old one
+            if (sameKey || claimUserName(newUserName, session)) {
                 user.setName(newUserName);
+                if (!sameKey) {
+                    userNameMap.remove(oldKey, session);
+                }
+                userLog.put(user.getId(), user);
                 logger.log(Level.INFO, "{0} is now known as {1}", 
                         new Object[]{oldUserName, newUserName});
                 success = true;
@@ -128,21 +161,22 @@ public class UserDatabase {
     }
     
     /**
-     * Removes a user from the database
+     * Removes a session, and its user if registered, from the database
      * 
-     * @param user the user to be removed
+     * @param session the session to be removed
      * 
      * @return true if successful
      */
-    public boolean removeUser(User user) {
+    public boolean removeSession(Session session) {
         
         boolean success = false;
         
-        if (userMap.containsKey(user)) {
-            Socket userSocket = getSocketForUser(user);
-            userMap.remove(user);
-            socketMap.remove(userSocket);
-            socketEncryptionMap.remove(userSocket);
+        if (socketMap.remove(session.getSocket(), session)) {
+            User user = session.getUser();
+            if (userMap.remove(user.getId(), session)) {
+                userNameMap.remove(getNameKey(user.getName()), session);
+                userLog.remove(user.getId());
+            }
             logger.log(Level.INFO, "{0} has been removed", 
                     new Object[]{user});
             success = true;
@@ -152,152 +186,156 @@ public class UserDatabase {
     }
     
     /**
-     * Used to see if a user name is in use
-     * @param userName
-     * @return true if the user name is in use
+     * Moves a registered session to a new socket, as when a client resumes
+     * its session on a new connection. The old socket and the session first
+     * created for the new one are dropped from the database.
+     * 
+     * @param session the registered session
+     * @param socket the session's new socket
+     * 
+     * @return true if successful
      */
-    public boolean userNameInUse(String userName) {
-        boolean inUse = false;
+    public boolean moveSession(Session session, Socket socket) {
+        boolean success = false;
         
-        for (User user : userMap.keySet()) {
-            if (user.getName().equals(userName)) {
-                inUse = true;
-                break;
-            }
+        Socket oldSocket = session.getSocket();
+        if (userMap.get(session.getUser().getId()) == session
+                && socketMap.remove(oldSocket, session)) {
+            session.setSocket(socket);
+            socketMap.put(socket, session);
+            logger.log(Level.INFO, "{0} has moved to a new connection", 
+                    new Object[]{session.getUser()});
+            success = true;
         }
         
-        return inUse;
+        return success;
     }
     
     /**
-     * Returns the socket associated with the User
+     * Sets a user's host once its name has been looked up
      * 
-     * @param user the user
+     * @param session the user's session
+     * @param host the host name
+     */
+    private void hostResolved(Session session, String host) {
+        User user = session.getUser();
+        user.setHost(host);
+        if (userMap.get(user.getId()) == session) {
+            userLog.put(user.getId(), user);
+        }
+    }
+    
+    /**
+     * Returns the log of changes to the user list. Read its version before
+     * the list.
      * 
-     * @return the user's socket
+     * @return the change log of {@link #getUserList()}
      */
-    public Socket getSocketForUser(User user) {
-        return userMap.get(user);
+    public ChangeLog<User> getUserLog() {
+        return userLog;
     }
     
     /**
-     * Returns the user's socket
+     * Used to see if a user name is in use
+     * @param userName
+     * @return true if the user name is in use
+     */
+    public boolean userNameInUse(String userName) {
+        return userNameMap.containsKey(getNameKey(userName));
+    }
+    
+    /**
+     * Claims a name for a session, failing if another session has it
      * 
-     * @param userName the user
+     * @param userName the name
+     * @param session the session claiming it
      * 
-     * @return the user's socket
+     * @return true if the session now holds the name
      */
-    public Socket getSocketForUser(String userName) {
-        Socket socket = null;
-        
-        for (User user : userMap.keySet()) {
-            if (user.getName().equals(userName)) {
-                socket = userMap.get(user);
-                break;
-            }
-        }
-        return socket;
+    private boolean claimUserName(String userName, Session session) {
+        Session holder = userNameMap.putIfAbsent(getNameKey(userName), session);
+        return holder == null || holder == session;
     }
-
-    public Socket getSocketByUserId(String userId) {
-        Socket socket = null;
-
-        for (User user : userMap.keySet()) {
-            if (user.getId().equals(userId)) {
-                socket = userMap.get(user);
-                break;
-            }
-        }
-        return socket;
+    
+    /**
+     * @param userName a user name
+     * @return The key of the name in the name index
+     */
+    static String getNameKey(String userName) {
+        return userName.toLowerCase(Locale.ROOT);
     }
-
+    
     /**
-     * Returns the user using the specified socket
+     * Returns the session connected on a socket
      * 
-     * @param socket the user's socket
+     * @param socket the socket
      * 
-     * @return the user
+     * @return the session, or null if the socket has none
      */
-    public User getUserOfSocket(Socket socket) {
+    public Session getSession(Socket socket) {
         return socketMap.get(socket);
     }
     
     /**
-     * Returns the address of the user
+     * Returns the registered session of the user with the name
+     * 
+     * @param userName the user's name
      * 
-     * @param user
-     * @return The address of the user
+     * @return the session, or null if no user has the name
      */
-    public String getAddressOfUserName(User user) {
-        return userMap.get(user).getInetAddress().getHostName();
+    public Session getSessionByUserName(String userName) {
+        return userNameMap.get(getNameKey(userName));
     }
 
     /**
-     * Returns the whole userlist as User objects
+     * Returns the registered session of the user with the id
      * 
-     * @return Copy of the user list 
+     * @param userId the user's id
+     * 
+     * @return the session, or null if no user has the id
      */
-    public List<User> getUserList() {
-        return new ArrayList<>(userMap.keySet());
+    public Session getSessionByUserId(String userId) {
+        return userMap.get(userId);
     }
 
     /**
-     * Returns the whole socketlist
+     * Returns the user using the specified socket
      * 
-     * @return List of sockets
+     * @param socket the user's socket
+     * 
+     * @return the user
      */
-    public List<Socket> getSocketList() {
-        return new ArrayList<>(socketMap.keySet());
+    public User getUserOfSocket(Socket socket) {
+        Session session = socketMap.get(socket);
+        return (session != null) ? session.getUser() : null;
     }
-    
+
     /**
-     * Returns the socket list of the specified users
-     * 
-     * @param userList The user list
+     * Returns the whole userlist as User objects
      * 
-     * @return List of sockets corresponding to the lists of users
+     * @return Copy of the user list 
      */
-    public List<Socket> getSocketListByUsers(List<User> userList) {
-        List<Socket> socketList = new ArrayList<>();
-        for (User user : userList) {
-            socketList.add(UserDatabase.this.getSocketForUser(user));
-        }
-        return socketList;
-    }
-
-    public void clearHandlers(Socket socket) {
-        User user = socketMap.get(socket);
-        if (user != null) {
-            user.clearHandlers();
+    public List<User> getUserList() {
+        List<User> userList = new ArrayList<>(userMap.size());
+        for (Session session : userMap.values()) {
+            userList.add(session.getUser());
         }
+        return userList;
     }
 
-    public void addHandler(Socket socket, BufferHandler handler) {
-        User user = socketMap.get(socket);
-        if (user != null) {
-            user.addHandler(handler);
-        }
+    /**
+     * @return the number of registered users
+     */
+    public int getUserCount() {
+        return userMap.size();
     }
 
-    public void setSocketIsEncrypted(Socket socket, boolean isEncrypted) {
-        socketEncryptionMap.put(socket, isEncrypted);
-    }
-    
-    public boolean isSocketEncrypted(Socket socket) {
-        return socketEncryptionMap.get(socket);
-    }
-    
     /**
-     * Get the secret key associated with the socket object
-     * @param socket
-     * @return Key of the socket/user or null if not found
+     * Returns the whole socketlist
+     * 
+     * @return List of sockets
      */
-    public SecretKey getSecretKey(Socket socket) {
-        SecretKey key = null;
-        User user = getUserOfSocket(socket);
-        if (user != null) {
-            key = user.getSecretKey();
-        }
-        return key;
+    public List<Socket> getSocketList() {
+        return new ArrayList<>(socketMap.keySet());
     }
 }
@@ -0,0 +1,500 @@
+/*
+ *  This file is a part of port-o-chat.
+ *
+ *  port-o-chat is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.lttldrgn.portochat.server.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.lttldrgn.portochat.common.network.OutboundQueue;
+
+/**
+ * Extends ServerConnectionHandler with a non-blocking transport. Instead of
+ * an IncomingThread per client, a small fixed set of reactor threads accept,
+ * read and write over selectors, draining each socket's OutboundQueue when
+ * the channel can take more data. Messages still go through the socket's
+ * BufferHandlers and are fired to the NetListeners with the client's Socket
+ * as the source, so listeners can't tell the transports apart.
+ */
+public class NioServerConnectionHandler extends ServerConnectionHandler {
+
+    private static final Logger logger = Logger.getLogger(NioServerConnectionHandler.class.getName());
+    /** Default number of reactor threads */
+    public static final int DEFAULT_REACTOR_COUNT =
+            Math.max(2, Runtime.getRuntime().availableProcessors());
+    /** Bytes read from a channel at a time, larger frames are reassembled */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    /** Buffers handed to a single gathering write */
+    private static final int GATHER_LIMIT = 64;
+    private final Reactor[] reactors;
+    private final Map<Socket, NioConnection> connectionMap = new ConcurrentHashMap<>();
+    private ServerSocketChannel serverChannel = null;
+    private int nextReactor = 0;
+    private volatile boolean listening = false;
+
+    /**
+     * Public constructor
+     *
+     * @param name The socket name
+     * @param reactorCount The number of reactor threads to run
+     */
+    public NioServerConnectionHandler(String name, int reactorCount) {
+        super(name);
+        reactors = new Reactor[Math.max(1, reactorCount)];
+    }
+
+    @Override
+    public boolean bind(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(i);
+            reactors[i].start();
+        }
+        listening = true;
+        // The first reactor also accepts new clients
+        reactors[0].register(serverChannel, SelectionKey.OP_ACCEPT, null);
+
+        return true;
+    }
+
+    @Override
+    protected void scheduleDrain(OutboundQueue queue) {
+        NioConnection connection = connectionMap.get(queue.getSocket());
+        if (connection != null) {
+            connection.reactor.execute(() -> connection.runGuarded(connection::write));
+        }
+    }
+
+    @Override
+    protected void disconnectSlowConsumer(OutboundQueue queue) {
+        NioConnection connection = connectionMap.get(queue.getSocket());
+        if (connection != null) {
+            reportError(userDatabase.getUserOfSocket(connection.socket), Level.WARNING,
+                    "Disconnecting slow consumer: " + queue.getDisconnectReason(), null);
+            connection.reactor.execute(connection::close);
+        }
+    }
+
+    @Override
+    public void closeSocket(Socket socket) {
+        NioConnection connection = connectionMap.get(socket);
+        if (connection != null) {
+            connection.reactor.execute(connection::close);
+        }
+    }
+
+    @Override
+    protected void writeFrame(Socket socket, ByteBuffer frame)
+            throws IOException {
+        NioConnection connection = connectionMap.get(socket);
+        if (connection == null) {
+            throw new ClosedChannelException();
+        }
+        connection.pendingBuffers.add(frame);
+        // still counts against the budget until the channel takes it
+        connection.outboundQueue.holdInFlight(frame.remaining());
+    }
+
+    @Override
+    protected synchronized void cleanup() {
+        listening = false;
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException ex) {
+                logger.log(Level.INFO, "Error closing server channel", ex);
+            }
+        }
+        for (Reactor reactor : reactors) {
+            if (reactor != null) {
+                reactor.shutdown();
+            }
+        }
+        super.cleanup();
+    }
+
+    /**
+     * Accepts all pending clients and hands them to the reactors round robin.
+     * A client's connection and outbound queue exist, and its registration
+     * is queued on its reactor, before its session does. So data written as
+     * soon as the session exists is queued rather than dropped, and the
+     * drain it schedules runs after the registration.
+     */
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while (listening && (channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                Socket socket = channel.socket();
+
+                Reactor reactor = reactors[nextReactor];
+                nextReactor = (nextReactor + 1) % reactors.length;
+                NioConnection connection = new NioConnection(channel, reactor);
+                connection.outboundQueue = addOutboundQueue(socket);
+                connectionMap.put(socket, connection);
+                reactor.register(channel, SelectionKey.OP_READ, connection);
+                addConnection(socket);
+            }
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Unable to accept client", ex);
+        }
+    }
+
+    /**
+     * A thread multiplexing many channels over one selector. Work for the
+     * reactor's channels that originates on other threads is queued with
+     * {@link #execute(Runnable)} so the selector is only touched here.
+     */
+    private class Reactor extends Thread {
+
+        private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+        private final Selector selector;
+        private volatile boolean running = true;
+
+        Reactor(int index) throws IOException {
+            super("Reactor-" + index);
+            selector = Selector.open();
+        }
+
+        /**
+         * Queues a task to run on this reactor's thread
+         *
+         * @param task The task
+         */
+        void execute(Runnable task) {
+            taskQueue.offer(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Registers a channel with this reactor's selector. Tasks for the
+         * channel queued afterwards run after the registration.
+         *
+         * @param channel The channel
+         * @param ops The interest set
+         * @param connection The connection of a client channel, or null
+         */
+        void register(SelectableChannel channel, int ops, NioConnection connection) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, ops, connection);
+                    if (connection != null) {
+                        connection.key = key;
+                    }
+                } catch (ClosedChannelException ex) {
+                    logger.log(Level.INFO, "Channel closed before registration", ex);
+                    if (connection != null) {
+                        connection.close();
+                    }
+                }
+            });
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException ex) {
+                    logger.log(Level.SEVERE, "Error selecting", ex);
+                    break;
+                }
+
+                Runnable task;
+                while ((task = taskQueue.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException ex) {
+                        logger.log(Level.SEVERE, "Error running reactor task", ex);
+                    }
+                }
+
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    NioConnection connection = (NioConnection) key.attachment();
+                    connection.runGuarded(() -> {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    });
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection) {
+                    ((NioConnection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                logger.log(Level.INFO, "Error closing selector", ex);
+            }
+        }
+    }
+
+    /**
+     * The state of a single client channel. Reads and writes only happen on
+     * the owning reactor's thread, while any thread may queue data.
+     */
+    private class NioConnection {
+
+        private final SocketChannel channel;
+        private final Socket socket;
+        private final Reactor reactor;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        /** Encoded buffers waiting for the channel, reactor thread only */
+        private final Queue<ByteBuffer> pendingBuffers = new ArrayDeque<>();
+        /** Reused to pass the pending frames to a gathering write */
+        private final ByteBuffer[] gatherBuffers = new ByteBuffer[GATHER_LIMIT + 1];
+        /** A pooled buffer for a frame that didn't arrive in one read */
+        private ByteBuffer partialFrame = null;
+        private OutboundQueue outboundQueue = null;
+        private SelectionKey key = null;
+        private boolean closed = false;
+        /** Set while the socket's handling catches up with reading */
+        private boolean readPaused = false;
+
+        NioConnection(SocketChannel channel, Reactor reactor) {
+            this.channel = channel;
+            this.socket = channel.socket();
+            this.reactor = reactor;
+        }
+
+        /**
+         * Runs work for the connection on the reactor thread. Without worker
+         * threads the handlers run inline, so a failure closes only this
+         * connection rather than ending the reactor.
+         *
+         * @param action The work
+         */
+        void runGuarded(Runnable action) {
+            try {
+                action.run();
+            } catch (RuntimeException ex) {
+                reportError(userDatabase.getUserOfSocket(socket), Level.SEVERE,
+                        "Closing connection to client after an error handling it", ex);
+                close();
+            }
+        }
+
+        void read() {
+            if (readPaused) {
+                return;
+            }
+            int bytesRead;
+            try {
+                bytesRead = channel.read(readBuffer);
+            } catch (IOException ex) {
+                reportError(userDatabase.getUserOfSocket(socket), Level.INFO,
+                        "Error reading channel", ex);
+                close();
+                return;
+            }
+            if (bytesRead == -1) {
+                close();
+                return;
+            }
+            processFrames();
+        }
+
+        /**
+         * Hands on the frames in the read buffer, stopping early if the
+         * socket's handling needs to catch up
+         */
+        private void processFrames() {
+            readBuffer.flip();
+            try {
+                while (!closed && !readPaused) {
+                    if (partialFrame == null) {
+                        // the format may change after any frame
+                        int length = getInboundWireFormat(socket).readHeader(readBuffer);
+                        if (length == -1) {
+                            // wait for the rest of the length
+                            break;
+                        }
+                        if (length > getMaxFrameLength()) {
+                            reportError(userDatabase.getUserOfSocket(socket), Level.WARNING,
+                                    "Closing connection, frame of " + length
+                                    + " bytes exceeds the limit of " + getMaxFrameLength(), null);
+                            close();
+                            return;
+                        }
+                        if (readBuffer.remaining() >= length) {
+                            // the whole frame is here, so pass it on in place
+                            int limit = readBuffer.limit();
+                            int end = readBuffer.position() + length;
+                            readBuffer.limit(end);
+                            boolean more = dispatchIncoming(socket, readBuffer, false,
+                                    this::scheduleResume);
+                            readBuffer.limit(limit);
+                            readBuffer.position(end);
+                            if (!more) {
+                                pauseReading();
+                            }
+                            continue;
+                        }
+                        partialFrame = bufferPool.acquire(length);
+                    }
+
+                    int count = Math.min(readBuffer.remaining(), partialFrame.remaining());
+                    int limit = readBuffer.limit();
+                    readBuffer.limit(readBuffer.position() + count);
+                    partialFrame.put(readBuffer);
+                    readBuffer.limit(limit);
+                    if (partialFrame.hasRemaining()) {
+                        // wait for the rest of the frame
+                        break;
+                    }
+                    ByteBuffer frame = partialFrame;
+                    partialFrame = null;
+                    frame.flip();
+                    if (!dispatchIncoming(socket, frame, true, this::scheduleResume)) {
+                        pauseReading();
+                    }
+                }
+            } catch (IOException ex) {
+                reportError(userDatabase.getUserOfSocket(socket), Level.WARNING,
+                        "Closing connection due to malformed frame", ex);
+                close();
+                return;
+            }
+            readBuffer.compact();
+        }
+
+        private void pauseReading() {
+            readPaused = true;
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        private void scheduleResume() {
+            reactor.execute(() -> runGuarded(this::resumeReading));
+        }
+
+        /**
+         * Hands on the frames already read and starts reading again
+         */
+        private void resumeReading() {
+            if (closed || !readPaused) {
+                return;
+            }
+            readPaused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            processFrames();
+        }
+
+        void write() {
+            if (closed) {
+                return;
+            }
+            try {
+                do {
+                    while (true) {
+                        // encode queued data until there is a batch to write
+                        NetData netData;
+                        while (pendingBuffers.size() < GATHER_LIMIT
+                                && (netData = outboundQueue.poll()) != null) {
+                            outboundQueue.markWritten(processOutgoing(outboundQueue, netData));
+                        }
+                        if (pendingBuffers.isEmpty()) {
+                            break;
+                        }
+
+                        int count = pendingBuffers.size();
+                        long written = channel.write(
+                                pendingBuffers.toArray(gatherBuffers), 0, count);
+                        outboundQueue.releaseInFlight(written);
+                        while (!pendingBuffers.isEmpty()
+                                && !pendingBuffers.peek().hasRemaining()) {
+                            pendingBuffers.poll();
+                        }
+                        if (!pendingBuffers.isEmpty()) {
+                            // socket buffer is full, wait until it is writable
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                    }
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    // pick up anything queued after the queue was drained
+                } while (outboundQueue.finishDrain());
+            } catch (IOException ex) {
+                reportError(userDatabase.getUserOfSocket(socket), Level.INFO,
+                        "Closing connection to client due to exception", ex);
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connectionMap.remove(socket);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                logger.log(Level.INFO, "Error closing channel", ex);
+            }
+            removeOutboundQueue(socket);
+            pendingBuffers.clear();
+            bufferPool.release(partialFrame);
+            partialFrame = null;
+            fireUserDisconnect(socket);
+        }
+    }
+}
@@ -24,6 +24,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import com.lttldrgn.portochat.common.network.ConnectionHandler;
 import com.lttldrgn.portochat.common.network.handler.ChatHandler;
+import com.lttldrgn.portochat.server.HeartbeatMonitor;
+import com.lttldrgn.portochat.server.Session;
 
 /**
  * Extends ConnectionHandler with server specific code for network handling
@@ -35,10 +37,40 @@ public class ServerConnectionHandler extends ConnectionHandler {
     private AcceptThread acceptThread = null;
     private volatile boolean listening = false;
     private final boolean encryptedStream = true;
+    private HeartbeatMonitor heartbeatMonitor = null;
+
+    /**
+     * The transports the server can accept clients with
+     */
+    public enum Transport {
+        /** A reader thread per client over blocking sockets */
+        BLOCKING,
+        /** A fixed set of selector driven reactor threads */
+        NIO
+    }
     
     public ServerConnectionHandler(String name) {
         super(name);
     }
+
+    /**
+     * Creates a server connection handler for the given transport
+     * 
+     * @param name The socket name
+     * @param transport The transport to accept clients with
+     * 
+     * @return the connection handler
+     */
+    public static ServerConnectionHandler create(String name, Transport transport) {
+        ServerConnectionHandler handler;
+        if (transport == Transport.NIO) {
+            handler = new NioServerConnectionHandler(name,
+                    NioServerConnectionHandler.DEFAULT_REACTOR_COUNT);
+        } else {
+            handler = new ServerConnectionHandler(name);
+        }
+        return handler;
+    }
     
     /**
      * Binds to the specified port
@@ -69,6 +101,37 @@ public class ServerConnectionHandler extends ConnectionHandler {
         super.cleanup();
         // TODO: Should listeners be cleared also?
     }
+
+    /**
+     * Registers a newly accepted client socket with the user database and
+     * sets up its handlers.
+     * 
+     * @param socket The accepted socket
+     */
+    protected void addConnection(Socket socket) {
+        Session session = userDatabase.addConnection(socket);
+        if (session == null) {
+            return;
+        }
+
+        // Add the handlers
+        ChatHandler chatHandler = new ChatHandler();
+        chatHandler.setServerHandler(true);
+        session.addHandler(chatHandler);
+
+        if (heartbeatMonitor != null) {
+            heartbeatMonitor.register(session);
+        }
+    }
+
+    /**
+     * Sets the monitor that starts a heartbeat for each accepted client
+     * 
+     * @param heartbeatMonitor The monitor, or null for no heartbeats
+     */
+    public void setHeartbeatMonitor(HeartbeatMonitor heartbeatMonitor) {
+        this.heartbeatMonitor = heartbeatMonitor;
+    }
     
     /*
      * This class is used to accept incoming connections.
@@ -86,14 +149,7 @@ public class ServerConnectionHandler extends ConnectionHandler {
             while (listening) {
                 try {
                     Socket socket = serverSocket.accept();
-                    userDatabase.addConnection(socket);
-
-                    // Add the handlers
-                    userDatabase.clearHandlers(socket);
-                    ChatHandler chatHandler = new ChatHandler();
-                    chatHandler.setServerHandler(true);
-                    userDatabase.addHandler(socket, chatHandler);
-
+                    addConnection(socket);
                     startProcessingThreads(socket);
                 } catch (SocketException ex) {
                     logger.log(Level.INFO, "Server Socket closed", ex);